@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.light.DirectionalLight;
+import com.jme3.post.FilterPostProcessor;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
+import com.jme3.shadow.DirectionalLightShadowFilter;
+import com.jme3.shadow.EdgeFilteringMode;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Steps the directional light shadows up and down to hold a frame budget.
+ * <p>
+ * The average frame cost over a window of frames is compared with the budget.
+ * Quality drops one level when the average is over the budget and rises one
+ * level only when it has been well under the budget for a longer window, and
+ * every change is followed by a cool down. That hysteresis keeps the quality
+ * from flapping between two levels. On level 0 the shadow filter is off.
+ * <p>
+ * The frame cost is not the frame time: with vsync on the frame time never
+ * drops below the refresh interval, so quality could never rise. The cost is
+ * the larger of the CPU time from {@link #update(float)} to
+ * {@link #postRender()}, which ends before the buffers are swapped, and the
+ * GPU time of the rendering between {@link #render(RenderManager)} and
+ * {@link #postRender()}, read from timer queries a few frames later. The
+ * update of states attached before this one is not counted. Without timer
+ * queries only the CPU time is used.
+ * <p>
+ * The shadow map size and split count of a <code>DirectionalLightShadowFilter</code>
+ * are fixed when it is created, so changing them replaces the filter. The
+ * filter works in screen space, every geometry that writes depth receives its
+ * shadows whatever its shadow mode, so only the filter itself is changed.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class AdaptiveShadowState extends BaseAppState {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveShadowState.class.getName());
+
+    private static final int[] MAP_SIZES = { 0, 512, 1024, 2048, 2048, 4096 };
+    private static final int[] SPLITS = { 0, 1, 1, 1, 2, 3 };
+    private static final EdgeFilteringMode[] FILTER_MODES = { null, EdgeFilteringMode.Nearest,
+            EdgeFilteringMode.Bilinear, EdgeFilteringMode.Bilinear, EdgeFilteringMode.PCF4, EdgeFilteringMode.PCF8 };
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_MAX = MAP_SIZES.length - 1;
+
+    private static final float OVER_BUDGET = 1.05f;  // average frame cost that makes the quality drop
+    private static final float UNDER_BUDGET = 0.7f;  // average frame cost that lets the quality rise
+    private static final int DOWN_WINDOW = 30;       // frames averaged before dropping
+    private static final int UP_WINDOW = 180;        // frames averaged before rising
+    private static final float COOL_DOWN = 2.0f;     // seconds without changes after a change
+    private static final int GPU_QUERIES = 4;        // timer queries in flight, the results lag a few frames
+
+    private final FilterPostProcessor processor;
+    private final DirectionalLight light;
+    private final float budget;
+
+    private DirectionalLightShadowFilter filter;
+    private int filterLevel; // the level the filter was created for
+    private int level;
+
+    private Renderer renderer;
+    private int[] gpuQueries; // empty when the renderer has no timer queries
+    private final boolean[] gpuPending = new boolean[GPU_QUERIES];
+    private int gpuNext; // the query started next, also the oldest one in flight
+    private boolean gpuStarted;
+    private float gpuTime;
+    private long cpuStart;
+    private float cpuTime;
+
+    private float downTime;
+    private int downFrames;
+    private float upTime;
+    private int upFrames;
+    private float coolDown;
+
+    /**
+     * @param processor the processor the shadow filter is added to
+     * @param light the light casting the shadows
+     * @param budget the target frame cost in seconds
+     * @param level the quality level to start with
+     */
+    public AdaptiveShadowState(FilterPostProcessor processor, DirectionalLight light, float budget, int level) {
+        this.processor = processor;
+        this.light = light;
+        this.budget = budget;
+        this.level = Math.max(LEVEL_OFF, Math.min(LEVEL_MAX, level));
+    }
+
+    @Override
+    protected void initialize(Application app) {
+        renderer = app.getRenderer();
+        gpuQueries = renderer.generateProfilingTasks(GPU_QUERIES);
+        if(gpuQueries.length < GPU_QUERIES) {
+            LOGGER.log(Level.INFO, "No GPU timer queries, shadow quality follows the CPU time only");
+            gpuQueries = new int[0];
+        }
+        applyLevel();
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        if(filter != null) {
+            processor.removeFilter(filter);
+            filter = null;
+        }
+    }
+
+    @Override
+    protected void onEnable() {
+    }
+
+    @Override
+    protected void onDisable() {
+    }
+
+    @Override
+    public void update(float tpf) {
+        cpuStart = System.nanoTime();
+        pollGpuTime();
+        float cost = Math.max(cpuTime, gpuTime); // of the last frame measured, the GPU lags a few frames
+        downTime += cost;
+        upTime += cost;
+        downFrames++;
+        upFrames++;
+
+        if(coolDown > 0) {
+            coolDown -= tpf;
+            if(coolDown <= 0) {
+                clearWindows();
+            }
+            return;
+        }
+
+        if(downFrames >= DOWN_WINDOW) {
+            if(downTime / downFrames > budget * OVER_BUDGET && level > LEVEL_OFF) {
+                setLevel(level - 1);
+                return;
+            }
+            downTime = 0;
+            downFrames = 0;
+        }
+        if(upFrames >= UP_WINDOW) {
+            if(upTime / upFrames < budget * UNDER_BUDGET && level < LEVEL_MAX) {
+                setLevel(level + 1);
+                return;
+            }
+            upTime = 0;
+            upFrames = 0;
+        }
+    }
+
+    private void pollGpuTime() {
+        for(int i = 0; i < gpuQueries.length; i++) {
+            int slot = (gpuNext + i) % gpuQueries.length; // oldest first, so the newest result is kept
+            if(gpuPending[slot] && renderer.isTaskResultAvailable(gpuQueries[slot])) {
+                gpuTime = renderer.getProfilingTime(gpuQueries[slot]) / 1e9f;
+                gpuPending[slot] = false;
+            }
+        }
+    }
+
+    @Override
+    public void render(RenderManager renderManager) {
+        if(gpuQueries.length > 0 && !gpuPending[gpuNext]) { // a frame is not timed when every query is still in flight
+            renderer.startProfiling(gpuQueries[gpuNext]);
+            gpuStarted = true;
+        }
+    }
+
+    @Override
+    public void postRender() {
+        if(gpuStarted) {
+            renderer.stopProfiling();
+            gpuPending[gpuNext] = true;
+            gpuNext = (gpuNext + 1) % gpuQueries.length;
+            gpuStarted = false;
+        }
+        cpuTime = (System.nanoTime() - cpuStart) / 1e9f; // the buffer swap, where vsync waits, comes after this
+    }
+    private void clearWindows() {
+        downTime = 0;
+        downFrames = 0;
+        upTime = 0;
+        upFrames = 0;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Changes the quality level right away and starts the cool down.
+     *
+     * @param level between {@link #LEVEL_OFF} and {@link #LEVEL_MAX}
+     */
+    public void setLevel(int level) {
+        level = Math.max(LEVEL_OFF, Math.min(LEVEL_MAX, level));
+        if(level == this.level) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Shadow quality {0} -> {1}", new Object[] { this.level, level });
+        this.level = level;
+        clearWindows();
+        coolDown = COOL_DOWN;
+        if(isInitialized()) {
+            applyLevel();
+        }
+    }
+
+    private void applyLevel() {
+        if(level == LEVEL_OFF) {
+            if(filter != null) {
+                filter.setEnabled(false);
+            }
+        } else if(filter == null || MAP_SIZES[filterLevel] != MAP_SIZES[level] || SPLITS[filterLevel] != SPLITS[level]) {
+            if(filter != null) {
+                processor.removeFilter(filter);
+            }
+            filter = new DirectionalLightShadowFilter(getApplication().getAssetManager(), MAP_SIZES[level], SPLITS[level]);
+            filter.setLight(light);
+            filter.setEdgeFilteringMode(FILTER_MODES[level]);
+            processor.addFilter(filter);
+            filterLevel = level;
+        } else {
+            filter.setEdgeFilteringMode(FILTER_MODES[level]);
+            filter.setEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes the current thread allocates between {@link #begin()} and
+ * {@link #end()}.
+ * <p>
+ * Uses the per thread allocation counter of the HotSpot
+ * <code>com.sun.management.ThreadMXBean</code>. The cost of reading the counter
+ * is measured once and subtracted, so an allocation free section reads as
+ * zero. AllocationProbeTest measures the frame of {@link GameFrame} during the
+ * build, so the build fails when it starts allocating.
+ * <p>
+ * {@link #probeHeadless(int)} steps a headless {@link MarbleSimulation} and
+ * measures every step. Bullet reuses the objects of its contact events but
+ * still allocates now and then, so the step has no fixed limit. Run as an
+ * application the probe prints the bytes allocated per step, and exits with
+ * status 1 when a limit is given and a step allocated more.
+ * <p>
+ * Usage: <code>AllocationProbe [steps] [maxBytesPerStep]</code>
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class AllocationProbe {
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final long threadId;
+    private final long overhead;
+
+    private long start;
+    private long last;
+    private long total;
+    private long max;
+    private long samples;
+
+    /**
+     * Creates a probe for the calling thread.
+     *
+     * @throws UnsupportedOperationException if the JVM cannot count allocations
+     */
+    public AllocationProbe() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("Thread allocation counting is not available");
+        }
+        threads = (com.sun.management.ThreadMXBean) bean;
+        if(!threads.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("Thread allocation counting is not supported");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        threadId = Thread.currentThread().getId();
+
+        // some JVMs allocate while reading the counter, measure that once
+        long smallest = Long.MAX_VALUE;
+        for(int i = 0; i < 100; i++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long after = threads.getThreadAllocatedBytes(threadId);
+            smallest = Math.min(smallest, after - before);
+        }
+        overhead = smallest;
+    }
+
+    public void begin() {
+        start = threads.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Ends the measured section.
+     *
+     * @return the bytes allocated since {@link #begin()}
+     */
+    public long end() {
+        last = Math.max(0, threads.getThreadAllocatedBytes(threadId) - start - overhead);
+        total += last;
+        max = Math.max(max, last);
+        samples++;
+        return last;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public double getAverage() {
+        return samples == 0 ? 0 : (double) total / samples;
+    }
+
+    /**
+     * Starts a new series of samples.
+     */
+    public void clear() {
+        total = 0;
+        max = 0;
+        samples = 0;
+    }
+
+    /**
+     * @param maxBytes the most bytes a section may allocate
+     * @throws AssertionError if any section since the last clear allocated more
+     */
+    public void assertAtMost(long maxBytes) {
+        if(max > maxBytes) {
+            throw new AssertionError("Allocated up to " + max + " bytes per section, limit is " + maxBytes);
+        }
+    }
+
+    /**
+     * Steps a headless {@link MarbleSimulation} of the default level, driven
+     * by a bot, and measures every step on this thread. The simulation runs
+     * the same number of steps unmeasured first so the JIT has settled.
+     *
+     * @param steps the number of steps to measure
+     * @return the probe holding the samples
+     */
+    public static AllocationProbe probeHeadless(int steps) {
+        LevelData level = LevelData.createDefault(16, 0.5f, 15.0f, new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f));
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(level, true);
+        SimulationFarm.Bot bot = new SimulationFarm.NearestPickUpBot();
+        AllocationProbe probe = new AllocationProbe();
+
+        // let the JIT settle first, escape analysis removes many temporary objects
+        for(int step = 0; step < steps; step++) {
+            simulation.setInput(bot.decide(simulation));
+            simulation.step();
+        }
+        simulation.reset();
+
+        for(int step = 0; step < steps; step++) {
+            probe.begin();
+            simulation.setInput(bot.decide(simulation));
+            simulation.step();
+            probe.end();
+            if(simulation.isComplete()) {
+                probe.begin();
+                simulation.reset();
+                probe.end();
+            }
+        }
+        simulation.destroy();
+        return probe;
+    }
+
+    public static void main(String[] args) {
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : 60 * 60;
+        long maxBytes = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        AllocationProbe probe = probeHeadless(steps);
+
+        System.out.printf("%d samples: %.1f bytes per step on average, %d bytes at most%n",
+                probe.getSamples(), probe.getAverage(), probe.getMax());
+        try {
+            probe.assertAtMost(maxBytes);
+        } catch(AssertionError error) {
+            System.err.println(error.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.collision.shapes.HullCollisionShape;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Derives the collision of a level from its render meshes, so what is drawn
+ * and what the ball rolls on cannot drift apart.
+ * <p>
+ * A mesh whose vertices all lie on its bounding box and whose area is the area
+ * of that box becomes a box. A mesh whose vertices are all as far from the
+ * center as the bounding box is wide becomes a sphere. Anything else becomes a
+ * convex hull of the vertices furthest out in {@link #HULL_DIRECTIONS} even
+ * spread directions, which keeps the hull small whatever the vertex count.
+ * The results can be cached in a directory, keyed by a checksum of the
+ * vertices, the triangles and the settings of the derivation, so a cached
+ * shape is never used for a mesh or a version of the rules it was not
+ * derived with.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionDeriver {
+
+    public static final int BOX    = 1; // center x, y, z, half extent x, y, z
+    public static final int SPHERE = 2; // center x, y, z, radius
+    public static final int HULL   = 3; // x, y, z of every point
+
+    public static final int HULL_DIRECTIONS = 64;
+
+    private static final int MAGIC = 0x524D4331; // "RMC1"
+    private static final int DERIVATION_VERSION = 2; // part of the cache key, raise it whenever compute() changes
+    private static final float TOLERANCE = 0.01f; // relative to the size of the mesh
+    private static final float MIN_HALF_EXTENT = 0.01f;
+
+    private static final Logger logger = Logger.getLogger(CollisionDeriver.class.getName());
+
+    /**
+     * A derived shape in world space.
+     */
+    public static class Shape {
+
+        private final int kind;
+        private final float[] data;
+
+        public Shape(int kind, float[] data) {
+            this.kind = kind;
+            this.data = data;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public float[] getData() {
+            return data;
+        }
+
+        /**
+         * Builds the bullet shape for a body that moves, like the player.
+         * Boxes and spheres are centered on the body, hull points keep
+         * their coordinates, so derive the mesh at the origin.
+         *
+         * @return a new collision shape
+         */
+        public CollisionShape createCollisionShape() {
+            switch(kind) {
+                case BOX:
+                    return new BoxCollisionShape(new Vector3f(data[3], data[4], data[5]));
+                case SPHERE:
+                    return new SphereCollisionShape(data[3]);
+                default:
+                    return new HullCollisionShape(data);
+            }
+        }
+    }
+
+    private final File cacheDirectory;
+
+    /**
+     * @param cacheDirectory keeps the derived shapes between runs, may be null
+     */
+    public CollisionDeriver(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Derives the collision of every part and packs it with the pickups into
+     * a level. Every collision piece keeps the material of its part.
+     *
+     * @param parts the render meshes of the level
+     * @param pickUps pickup centers packed as x, y, z triples
+     * @param pickUpSize the half extent of a pickup
+     * @param playerStart where the player ball starts
+     * @return a new level
+     */
+    public LevelData deriveLevel(List<LevelFile.Part> parts, float[] pickUps, float pickUpSize, Vector3f playerStart) {
+        List<float[]> boxes = new ArrayList<>();
+        List<float[]> spheres = new ArrayList<>();
+        List<float[]> hulls = new ArrayList<>();
+        List<LevelFile.Part> boxParts = new ArrayList<>();
+        List<LevelFile.Part> sphereParts = new ArrayList<>();
+        List<LevelFile.Part> hullParts = new ArrayList<>();
+        for(LevelFile.Part part : parts) {
+            Shape shape = derive(part.getMesh(), part.getTranslation());
+            switch(shape.getKind()) {
+                case BOX:
+                    boxes.add(shape.getData());
+                    boxParts.add(part);
+                    break;
+                case SPHERE:
+                    spheres.add(shape.getData());
+                    sphereParts.add(part);
+                    break;
+                default:
+                    hulls.add(shape.getData());
+                    hullParts.add(part);
+            }
+        }
+        // the pieces are numbered boxes first, then spheres, then hulls
+        boxParts.addAll(sphereParts);
+        boxParts.addAll(hullParts);
+        int[] materials = new int[boxParts.size()];
+        for(int piece = 0; piece < materials.length; piece++) {
+            materials[piece] = boxParts.get(piece).getMaterial();
+        }
+        return new LevelData(concat(boxes), concat(spheres), hulls.toArray(new float[0][]), materials,
+                pickUps, pickUpSize, playerStart);
+    }
+
+    private static float[] concat(List<float[]> arrays) {
+        int length = 0;
+        for(float[] array : arrays) {
+            length += array.length;
+        }
+        float[] result = new float[length];
+        int offset = 0;
+        for(float[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    /**
+     * Derives the collision of one mesh, from the cache when it was derived before.
+     *
+     * @param mesh the render mesh
+     * @param translation where the mesh is placed
+     * @return the shape in world space
+     */
+    public Shape derive(Mesh mesh, Vector3f translation) {
+        float[] positions = readPositions(mesh, translation);
+        File cacheFile = null;
+        if(cacheDirectory != null) {
+            CRC32 checksum = new CRC32();
+            update(checksum, DERIVATION_VERSION);
+            update(checksum, Float.floatToIntBits(TOLERANCE));
+            update(checksum, Float.floatToIntBits(MIN_HALF_EXTENT));
+            update(checksum, HULL_DIRECTIONS);
+            update(checksum, mesh.getMode().ordinal()); // the box test reads the triangles, not only the vertices
+            IndexBuffer indices = mesh.getIndexBuffer();
+            if(indices != null) {
+                for(int i = 0; i < indices.size(); i++) {
+                    update(checksum, indices.get(i));
+                }
+            }
+            for(float value : positions) {
+                update(checksum, Float.floatToIntBits(value));
+            }
+            cacheFile = new File(cacheDirectory, String.format("%08x-%d.shape", checksum.getValue(), positions.length / 3));
+            Shape cached = readCache(cacheFile, positions.length / 3);
+            if(cached != null) {
+                return cached;
+            }
+        }
+
+        Shape shape = compute(mesh, positions);
+        if(cacheFile != null) {
+            writeCache(cacheFile, shape);
+        }
+        return shape;
+    }
+
+    private static void update(CRC32 checksum, int value) {
+        checksum.update(value);
+        checksum.update(value >>> 8);
+        checksum.update(value >>> 16);
+        checksum.update(value >>> 24);
+    }
+
+    private static float[] readPositions(Mesh mesh, Vector3f translation) {
+        FloatBuffer buffer = mesh.getFloatBuffer(VertexBuffer.Type.Position);
+        float[] positions = new float[mesh.getVertexCount() * 3];
+        for(int i = 0; i < positions.length; i += 3) {
+            positions[i] = buffer.get(i) + translation.x;
+            positions[i + 1] = buffer.get(i + 1) + translation.y;
+            positions[i + 2] = buffer.get(i + 2) + translation.z;
+        }
+        return positions;
+    }
+
+    private static Shape compute(Mesh mesh, float[] positions) {
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        Vector3f vertex = new Vector3f();
+        for(int i = 0; i < positions.length; i += 3) {
+            vertex.set(positions[i], positions[i + 1], positions[i + 2]);
+            min.minLocal(vertex);
+            max.maxLocal(vertex);
+        }
+        Vector3f center = min.add(max).multLocal(0.5f);
+        Vector3f half = max.subtract(min).multLocal(0.5f);
+        float size = Math.max(half.x, Math.max(half.y, half.z));
+        float tolerance = size * TOLERANCE;
+
+        if(mesh.getMode() == Mesh.Mode.Triangles && isBox(mesh, positions, min, max, half, tolerance)) {
+            return new Shape(BOX, new float[] { center.x, center.y, center.z,
+                Math.max(half.x, MIN_HALF_EXTENT), Math.max(half.y, MIN_HALF_EXTENT), Math.max(half.z, MIN_HALF_EXTENT) });
+        }
+        if(isSphere(positions, center, half, tolerance)) {
+            return new Shape(SPHERE, new float[] { center.x, center.y, center.z, size });
+        }
+        return new Shape(HULL, hullPoints(positions));
+    }
+
+    private static boolean isBox(Mesh mesh, float[] positions, Vector3f min, Vector3f max, Vector3f half, float tolerance) {
+        for(int i = 0; i < positions.length; i += 3) {
+            boolean onFace = Math.abs(positions[i] - min.x) <= tolerance || Math.abs(positions[i] - max.x) <= tolerance
+                    || Math.abs(positions[i + 1] - min.y) <= tolerance || Math.abs(positions[i + 1] - max.y) <= tolerance
+                    || Math.abs(positions[i + 2] - min.z) <= tolerance || Math.abs(positions[i + 2] - max.z) <= tolerance;
+            if(!onFace) {
+                return false;
+            }
+        }
+        // vertices on the faces are not enough, a tetrahedron in a corner has them too
+        Vector3f a = new Vector3f(), b = new Vector3f(), c = new Vector3f();
+        float area = 0;
+        for(int triangle = 0; triangle < mesh.getTriangleCount(); triangle++) {
+            mesh.getTriangle(triangle, a, b, c);
+            b.subtractLocal(a);
+            c.subtractLocal(a);
+            area += b.crossLocal(c).length() * 0.5f;
+        }
+        float boxArea = 8 * (half.x * half.y + half.y * half.z + half.z * half.x);
+        return Math.abs(area - boxArea) <= boxArea * TOLERANCE;
+    }
+
+    private static boolean isSphere(float[] positions, Vector3f center, Vector3f half, float tolerance) {
+        if(Math.abs(half.x - half.y) > tolerance || Math.abs(half.y - half.z) > tolerance) {
+            return false;
+        }
+        float radius = half.x;
+        for(int i = 0; i < positions.length; i += 3) {
+            float dx = positions[i] - center.x;
+            float dy = positions[i + 1] - center.y;
+            float dz = positions[i + 2] - center.z;
+            if(Math.abs(FastMath.sqrt(dx * dx + dy * dy + dz * dz) - radius) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static float[] hullPoints(float[] positions) {
+        int vertexCount = positions.length / 3;
+        boolean[] chosen = new boolean[vertexCount];
+        int count = 0;
+        if(vertexCount <= HULL_DIRECTIONS) {
+            Arrays.fill(chosen, true);
+            count = vertexCount;
+        } else {
+            // the vertex furthest out along every direction of a golden spiral over the sphere
+            for(int direction = 0; direction < HULL_DIRECTIONS; direction++) {
+                float y = 1 - 2 * (direction + 0.5f) / HULL_DIRECTIONS;
+                float ring = FastMath.sqrt(1 - y * y);
+                float angle = direction * FastMath.PI * (3 - FastMath.sqrt(5));
+                float x = FastMath.cos(angle) * ring;
+                float z = FastMath.sin(angle) * ring;
+
+                int best = 0;
+                float bestDot = Float.NEGATIVE_INFINITY;
+                for(int vertex = 0; vertex < vertexCount; vertex++) {
+                    float dot = positions[vertex * 3] * x + positions[vertex * 3 + 1] * y + positions[vertex * 3 + 2] * z;
+                    if(dot > bestDot) {
+                        bestDot = dot;
+                        best = vertex;
+                    }
+                }
+                if(!chosen[best]) {
+                    chosen[best] = true;
+                    count++;
+                }
+            }
+        }
+        float[] points = new float[count * 3];
+        int point = 0;
+        for(int vertex = 0; vertex < vertexCount; vertex++) {
+            if(chosen[vertex]) {
+                System.arraycopy(positions, vertex * 3, points, point * 3, 3);
+                point++;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @return the cached shape, null when there is none or the file does not
+     * hold a shape compute() could have made for the mesh
+     */
+    private static Shape readCache(File file, int vertexCount) {
+        if(!file.isFile()) {
+            return null;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) {
+                return null;
+            }
+            int kind = in.readInt();
+            int length = in.readInt();
+            if(!fitsMesh(kind, length, vertexCount)) {
+                return broken(file);
+            }
+            float[] data = new float[length];
+            for(int i = 0; i < data.length; i++) {
+                data[i] = in.readFloat();
+                if(Float.isNaN(data[i]) || Float.isInfinite(data[i])) {
+                    return broken(file);
+                }
+            }
+            if(in.read() != -1) {
+                return broken(file);
+            }
+            return new Shape(kind, data);
+        } catch(IOException exception) {
+            logger.log(Level.WARNING, "Cannot read cached shape " + file, exception);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if compute() makes shapes of the kind with that many floats
+     * for a mesh of the vertex count
+     */
+    private static boolean fitsMesh(int kind, int length, int vertexCount) {
+        switch(kind) {
+            case BOX:
+                return length == 6;
+            case SPHERE:
+                return length == 4;
+            case HULL:
+                // one point per vertex, or per direction when there are more vertices
+                return length > 0 && length % 3 == 0 && length / 3 <= Math.min(vertexCount, HULL_DIRECTIONS);
+            default:
+                return false;
+        }
+    }
+
+    private static Shape broken(File file) {
+        logger.log(Level.WARNING, "Cached shape {0} is broken, deriving it again", file);
+        return null;
+    }
+
+    private static void writeCache(File file, Shape shape) {
+        file.getParentFile().mkdirs();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(shape.getKind());
+            out.writeInt(shape.getData().length);
+            for(float value : shape.getData()) {
+                out.writeFloat(value);
+            }
+        } catch(IOException exception) {
+            logger.log(Level.WARNING, "Cannot cache shape " + file, exception);
+        }
+    }
+}
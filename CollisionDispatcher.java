@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.collision.PhysicsCollisionEvent;
+import com.jme3.bullet.collision.PhysicsCollisionListener;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import java.util.Arrays;
+
+/**
+ * Routes collision events to handlers by collision group.
+ * <p>
+ * Handlers are stored in a table indexed by the bit positions of the two
+ * collision groups, and bodies can carry an integer tag looked up by their
+ * native object id in an open addressing map. Resolving a contact therefore
+ * needs no names, no control lookups and no allocation. A handler registered
+ * for (groupA, groupB) always receives the groupA object first, no matter which
+ * object Bullet reported as A. Contacts between groups without a handler are
+ * dropped before any handler code runs.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionDispatcher implements PhysicsCollisionListener {
+
+    /**
+     * Receives the contacts between two collision groups.
+     */
+    public interface Handler {
+
+        /**
+         * @param self the object of the first registered group
+         * @param selfTag the tag of self or {@link CollisionDispatcher#NO_TAG}
+         * @param other the object of the second registered group
+         * @param otherTag the tag of other or {@link CollisionDispatcher#NO_TAG}
+         */
+        void collide(PhysicsCollisionObject self, int selfTag, PhysicsCollisionObject other, int otherTag);
+    }
+
+    public static final int NO_TAG = -1;
+
+    private static final int GROUPS = 16;
+
+    private final Handler[] handlers = new Handler[GROUPS * GROUPS];
+    private final boolean[] swapped = new boolean[GROUPS * GROUPS];
+
+    private FrameProfiler profiler;
+
+    private long[] tagKeys = new long[64];
+    private int[] tagValues = new int[64];
+    private int tagCount;
+
+    /**
+     * Registers the handler for contacts between objects of the two groups.
+     *
+     * @param groupA a single collision group, passed to the handler as self
+     * @param groupB a single collision group, passed to the handler as other
+     * @param handler the handler
+     */
+    public void addHandler(int groupA, int groupB, Handler handler) {
+        int a = groupIndex(groupA);
+        int b = groupIndex(groupB);
+        handlers[a * GROUPS + b] = handler;
+        swapped[a * GROUPS + b] = false;
+        if(a != b) {
+            handlers[b * GROUPS + a] = handler;
+            swapped[b * GROUPS + a] = true;
+        }
+    }
+
+    public void removeHandler(int groupA, int groupB) {
+        int a = groupIndex(groupA);
+        int b = groupIndex(groupB);
+        handlers[a * GROUPS + b] = null;
+        handlers[b * GROUPS + a] = null;
+        swapped[a * GROUPS + b] = false; // a later addHandler for either order starts clean
+        swapped[b * GROUPS + a] = false;
+    }
+
+    private static int groupIndex(int group) {
+        if(Integer.bitCount(group) != 1 || group >>> GROUPS != 0) {
+            throw new IllegalArgumentException("Not a single collision group: " + group);
+        }
+        return Integer.numberOfTrailingZeros(group);
+    }
+
+    /**
+     * Attaches an integer tag, e.g. an array index, to a body.
+     *
+     * @param body the body
+     * @param tag the tag, must not be {@link #NO_TAG}
+     */
+    public void setTag(PhysicsCollisionObject body, int tag) {
+        if((tagCount + 1) * 2 > tagKeys.length) {
+            growTags();
+        }
+        if(putTag(tagKeys, tagValues, body.getObjectId(), tag)) {
+            tagCount++;
+        }
+    }
+
+    public int getTag(PhysicsCollisionObject body) {
+        long key = body.getObjectId();
+        int mask = tagKeys.length - 1;
+        for(int slot = hash(key) & mask; tagKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if(tagKeys[slot] == key) {
+                return tagValues[slot];
+            }
+        }
+        return NO_TAG;
+    }
+
+    public void clearTags() {
+        Arrays.fill(tagKeys, 0);
+        tagCount = 0;
+    }
+
+    private void growTags() {
+        long[] keys = new long[tagKeys.length * 2];
+        int[] values = new int[tagValues.length * 2];
+        for(int slot = 0; slot < tagKeys.length; slot++) {
+            if(tagKeys[slot] != 0) {
+                putTag(keys, values, tagKeys[slot], tagValues[slot]);
+            }
+        }
+        tagKeys = keys;
+        tagValues = values;
+    }
+
+    private static boolean putTag(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while(keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        boolean added = keys[slot] == 0;
+        keys[slot] = key;
+        values[slot] = value;
+        return added;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L; // native ids are aligned pointers, spread the low bits
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * @param profiler receives the time spent in every dispatch as {@link FrameProfiler.Stage#COLLISION}, may be null
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @Override
+    public void collision(PhysicsCollisionEvent event) {
+        if(profiler == null) {
+            dispatch(event);
+        } else {
+            long start = System.nanoTime();
+            dispatch(event);
+            profiler.add(FrameProfiler.Stage.COLLISION, System.nanoTime() - start);
+        }
+    }
+
+    private void dispatch(PhysicsCollisionEvent event) {
+        PhysicsCollisionObject objectA = event.getObjectA();
+        PhysicsCollisionObject objectB = event.getObjectB();
+
+        int a = Integer.numberOfTrailingZeros(objectA.getCollisionGroup());
+        int b = Integer.numberOfTrailingZeros(objectB.getCollisionGroup());
+        if(a >= GROUPS || b >= GROUPS) {
+            return; // an object without a group
+        }
+        int slot = a * GROUPS + b;
+        Handler handler = handlers[slot];
+        if(handler == null) {
+            return;
+        }
+
+        if(swapped[slot]) {
+            handler.collide(objectB, getTag(objectB), objectA, getTag(objectA));
+        } else {
+            handler.collide(objectA, getTag(objectA), objectB, getTag(objectB));
+        }
+    }
+}
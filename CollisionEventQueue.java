@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single producer, single consumer ring buffer of game events.
+ * <p>
+ * The physics thread records what happened as compact (type, index) pairs and
+ * the render thread applies them to the scene graph when it drains the queue.
+ * Neither side takes a lock or allocates. Only one thread may call
+ * {@link #offer} and only one thread may call {@link #drain}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionEventQueue {
+
+    /**
+     * Receives the drained events on the consumer thread.
+     */
+    public interface Listener {
+
+        void event(int type, int index);
+    }
+
+    private final long[] events;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next slot to read, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to write, written by the producer
+
+    private long cachedHead; // producer side copy of head, saves a volatile read per offer
+
+    /**
+     * @param capacity the minimum number of events the queue can hold
+     */
+    public CollisionEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        events = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an event. Called by the producer thread only.
+     *
+     * @param type the event type
+     * @param index the index of the entity the event is about
+     * @return false if the queue is full and the event was not added
+     */
+    public boolean offer(int type, int index) {
+        long t = tail.get();
+        if(t - cachedHead >= events.length) {
+            cachedHead = head.get();
+            if(t - cachedHead >= events.length) {
+                return false;
+            }
+        }
+        events[(int) t & mask] = ((long) type << 32) | (index & 0xFFFFFFFFL);
+        tail.lazySet(t + 1); // publishes the slot written above
+        return true;
+    }
+
+    /**
+     * Passes every queued event to the listener. Called by the consumer thread only.
+     *
+     * @param listener receives the events in the order they were offered
+     * @return the number of events drained
+     */
+    public int drain(Listener listener) {
+        long h = head.get();
+        long t = tail.get();
+        for(long i = h; i < t; i++) {
+            long event = events[(int) i & mask];
+            listener.event((int) (event >>> 32), (int) event);
+        }
+        head.lazySet(t); // frees the slots for the producer
+        return (int) (t - h);
+    }
+
+    public int capacity() {
+        return events.length;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.material.Material;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.instancing.InstancedNode;
+
+/**
+ * Draws a {@link MarbleCrowd} with hardware instancing: every marble is an
+ * instance of one shared mesh and the whole crowd is a single draw call.
+ * <p>
+ * Marbles outside the camera frustum or farther than the cull distance are
+ * scaled to zero, so they cost no fragments and the instance data does not
+ * have to be rebuilt when they come back.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CrowdRenderer extends InstancedNode {
+
+    private final MarbleCrowd crowd;
+    private final Geometry[] marbles;
+    private final float radius;
+
+    private final BoundingSphere bounds = new BoundingSphere();
+    private final Vector3f location = new Vector3f();
+    private final Quaternion rotation = new Quaternion();
+
+    /**
+     * @param name the name of the node
+     * @param crowd the crowd to draw
+     * @param mesh the mesh of one marble
+     * @param material a material supporting instancing, UseInstancing is turned on
+     */
+    public CrowdRenderer(String name, MarbleCrowd crowd, Mesh mesh, Material material) {
+        super(name);
+        this.crowd = crowd;
+        this.radius = 2 * MarbleSimulation.PLAYER_RADIUS;
+        material.setBoolean("UseInstancing", true);
+
+        marbles = new Geometry[crowd.getCount()];
+        for(int marble = 0; marble < marbles.length; marble++) {
+            Geometry geometry = new Geometry("marble" + marble, mesh);
+            geometry.setMaterial(material);
+            geometry.setShadowMode(ShadowMode.Cast);
+            marbles[marble] = geometry;
+            attachChild(geometry);
+        }
+        instance();
+    }
+
+    /**
+     * Copies the marble transforms from the physics and culls the marbles.
+     * Call it on the render thread while the physics space is not stepping.
+     *
+     * @param camera the camera to cull against
+     * @param cullDistance marbles farther than this from the camera are hidden
+     */
+    public void update(Camera camera, float cullDistance) {
+        float cullDistanceSquared = cullDistance * cullDistance;
+        for(int marble = 0; marble < marbles.length; marble++) {
+            Geometry geometry = marbles[marble];
+            crowd.getBody(marble).getPhysicsLocation(location);
+            bounds.setCenter(location);
+            bounds.setRadius(radius);
+
+            camera.setPlaneState(0);
+            boolean visible = location.distanceSquared(camera.getLocation()) <= cullDistanceSquared
+                    && camera.contains(bounds) != Camera.FrustumIntersect.Outside;
+            if(!visible) {
+                if(geometry.getLocalScale().x != 0) {
+                    geometry.setLocalScale(0);
+                }
+                continue;
+            }
+            boolean shown = geometry.getLocalScale().x != 1;
+            if(shown) {
+                geometry.setLocalScale(1);
+            }
+            if(shown || crowd.getBody(marble).isActive()) { // sleeping marbles keep their transform
+                geometry.setLocalTranslation(location);
+                geometry.setLocalRotation(crowd.getBody(marble).getPhysicsRotation(rotation));
+            }
+        }
+    }
+}
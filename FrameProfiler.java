@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.post.SceneProcessor;
+import com.jme3.profile.AppProfiler;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.texture.FrameBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the time every stage of a frame takes.
+ * <p>
+ * Stages can be timed from any thread with {@link #add}. The time of a stage
+ * is summed over the frame and recorded into the histogram of the stage when
+ * {@link #endFrame()} is called. The histograms are log-linear like an HDR
+ * histogram: values up to a minute are kept with about 3% precision, and
+ * recording is a single atomic increment. The physics step is timed as a tick
+ * listener, so the profiler has to be added to the physics space before the
+ * listeners of the game. The shadow and post processing passes are timed by two scene
+ * processors placed around the <code>FilterPostProcessor</code>. All times are
+ * measured on the CPU, so they include the time spent submitting GPU work but
+ * not the GPU work itself.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class FrameProfiler implements PhysicsTickListener {
+
+    /**
+     * The measured stages of a frame.
+     */
+    public enum Stage {
+        /** from one endFrame to the next */
+        FRAME,
+        /** the game update of the render thread */
+        UPDATE,
+        /** the bullet step, from the first tick listener to the first tick listener */
+        PHYSICS,
+        /** pickup collection and collision dispatch */
+        COLLISION,
+        /** the postQueue pass of the filters, where the shadow maps are rendered */
+        SHADOWS,
+        /** the postFrame pass of the filters, the full screen post processing */
+        POST
+    }
+
+    /**
+     * Lock free log-linear histogram of nanosecond values.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BITS = 5;            // 32 sub buckets per power of two
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 36;       // 2^36 ns is about 68 s
+
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 1) * SUB_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private static int bucketOf(long value) {
+            if(value < SUB_COUNT) {
+                return (int) Math.max(0, value);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+            if(exponent > MAX_EXPONENT) {
+                return (MAX_EXPONENT + 1) * SUB_COUNT - 1;
+            }
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long valueOf(int bucket) {
+            if(bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            int sub = bucket % SUB_COUNT;
+            long low = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+            long width = 1L << (exponent - SUB_BITS);
+            return low + width / 2; // the middle of the bucket
+        }
+
+        public void record(long nanos) {
+            counts.incrementAndGet(bucketOf(nanos));
+            count.incrementAndGet();
+            long current;
+            while(nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // another thread raised max, try again
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value at the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if(total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for(int bucket = 0; bucket < counts.length(); bucket++) {
+                seen += counts.get(bucket);
+                if(seen >= rank) {
+                    return Math.min(valueOf(bucket), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Forgets every recorded value. Values recorded concurrently may be lost.
+         */
+        public void clear() {
+            for(int bucket = 0; bucket < counts.length(); bucket++) {
+                counts.set(bucket, 0);
+            }
+            count.set(0);
+            max.set(0);
+        }
+    }
+
+    /**
+     * Times the filter passes. One probe is placed in front of the
+     * <code>FilterPostProcessor</code> and one behind it.
+     */
+    private class FilterProbe implements SceneProcessor {
+
+        private final boolean opening;
+        private boolean initialized;
+
+        FilterProbe(boolean opening) {
+            this.opening = opening;
+        }
+
+        @Override
+        public void initialize(RenderManager renderManager, ViewPort viewPort) {
+            initialized = true;
+        }
+
+        @Override
+        public void reshape(ViewPort viewPort, int width, int height) {
+        }
+
+        @Override
+        public boolean isInitialized() {
+            return initialized;
+        }
+
+        @Override
+        public void preFrame(float tpf) {
+        }
+
+        @Override
+        public void postQueue(RenderQueue renderQueue) {
+            if(opening) {
+                shadowStart = System.nanoTime();
+            } else {
+                add(Stage.SHADOWS, System.nanoTime() - shadowStart);
+            }
+        }
+
+        @Override
+        public void postFrame(FrameBuffer out) {
+            if(opening) {
+                postStart = System.nanoTime();
+            } else {
+                add(Stage.POST, System.nanoTime() - postStart);
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            initialized = false;
+        }
+
+        @Override
+        public void setProfiler(AppProfiler profiler) {
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final Histogram[] histograms = new Histogram[STAGES.length];
+    private final AtomicLongArray frameTotals = new AtomicLongArray(STAGES.length);
+
+    private long physicsStart;
+    private long shadowStart;
+    private long postStart;
+    private long frameStart;
+
+    public FrameProfiler() {
+        for(int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Adds time to a stage of the current frame. May be called from any thread.
+     *
+     * @param stage the stage
+     * @param nanos the time spent
+     */
+    public void add(Stage stage, long nanos) {
+        frameTotals.addAndGet(stage.ordinal(), nanos);
+    }
+
+    /**
+     * Records the stage times of the frame that just ended. Call once per
+     * frame on the render thread.
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        if(frameStart != 0) {
+            frameTotals.addAndGet(Stage.FRAME.ordinal(), now - frameStart);
+            for(int i = 0; i < STAGES.length; i++) {
+                histograms[i].record(frameTotals.getAndSet(i, 0));
+            }
+        }
+        frameStart = now;
+    }
+
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public void clear() {
+        for(Histogram histogram : histograms) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * @return a processor to add to the view port right before the filters
+     */
+    public SceneProcessor createFilterStartProbe() {
+        return new FilterProbe(true);
+    }
+
+    /**
+     * @return a processor to add to the view port right after the filters
+     */
+    public SceneProcessor createFilterEndProbe() {
+        return new FilterProbe(false);
+    }
+
+    @Override
+    public void prePhysicsTick(PhysicsSpace space, float tpf) {
+        physicsStart = System.nanoTime();
+    }
+
+    @Override
+    public void physicsTick(PhysicsSpace space, float tpf) {
+        add(Stage.PHYSICS, System.nanoTime() - physicsStart);
+    }
+}
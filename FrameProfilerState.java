@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.app.Application;
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.font.BitmapFont;
+import com.jme3.font.BitmapText;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shows the stage times of a {@link FrameProfiler} and exports them.
+ * <p>
+ * Closes the profiler frame on every update, shows p50, p99 and max of every
+ * stage in a <code>guiNode</code> overlay and periodically appends the
+ * histograms to a CSV file. The histograms are cleared after every export, so
+ * every CSV row describes one export interval. The file is written on a
+ * background thread.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class FrameProfilerState extends BaseAppState {
+
+    private static final Logger LOGGER = Logger.getLogger(FrameProfilerState.class.getName());
+
+    private static final float OVERLAY_INTERVAL = 0.5f;
+    private static final String CSV_HEADER = "time_ms,stage,frames,p50_us,p90_us,p99_us,max_us\n";
+
+    private final FrameProfiler profiler;
+    private final File csvFile;
+    private final float exportInterval;
+
+    private BitmapText overlay;
+    private ExecutorService writer;
+    private float overlayTime;
+    private float exportTime;
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param profiler the profiler to show
+     * @param csvFile the file the histograms are appended to, null to not export
+     * @param exportInterval seconds between two exports
+     */
+    public FrameProfilerState(FrameProfiler profiler, File csvFile, float exportInterval) {
+        this.profiler = profiler;
+        this.csvFile = csvFile;
+        this.exportInterval = exportInterval;
+    }
+
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    @Override
+    protected void initialize(Application app) {
+        BitmapFont font = app.getAssetManager().loadFont("Interface/Fonts/Console.fnt");
+        overlay = new BitmapText(font);
+        overlay.setSize(font.getCharSet().getRenderedSize());
+
+        if(csvFile != null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FrameProfiler CSV");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        if(writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    @Override
+    protected void onEnable() {
+        ((SimpleApplication) getApplication()).getGuiNode().attachChild(overlay);
+    }
+
+    @Override
+    protected void onDisable() {
+        overlay.removeFromParent();
+    }
+
+    @Override
+    public void update(float tpf) {
+        profiler.endFrame();
+
+        overlayTime += tpf;
+        if(overlayTime >= OVERLAY_INTERVAL) {
+            overlayTime = 0;
+            updateOverlay();
+        }
+
+        exportTime += tpf;
+        if(writer != null && exportTime >= exportInterval) {
+            exportTime = 0;
+            export();
+        }
+    }
+
+    private void updateOverlay() {
+        text.setLength(0);
+        text.append("stage       p50 ms   p99 ms   max ms\n");
+        for(FrameProfiler.Stage stage : FrameProfiler.Stage.values()) {
+            FrameProfiler.Histogram histogram = profiler.getHistogram(stage);
+            text.append(String.format("%-9s %8.2f %8.2f %8.2f%n", stage.name().toLowerCase(),
+                    histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6));
+        }
+        overlay.setText(text.toString());
+        int height = getApplication().getCamera().getHeight();
+        overlay.setLocalTranslation(getApplication().getCamera().getWidth() - overlay.getLineWidth() - 10, height - 10, 0);
+    }
+
+    private void export() {
+        final StringBuilder rows = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for(FrameProfiler.Stage stage : FrameProfiler.Stage.values()) {
+            FrameProfiler.Histogram histogram = profiler.getHistogram(stage);
+            rows.append(now).append(',').append(stage.name().toLowerCase())
+                    .append(',').append(histogram.getCount())
+                    .append(',').append(histogram.getPercentile(50) / 1000)
+                    .append(',').append(histogram.getPercentile(90) / 1000)
+                    .append(',').append(histogram.getPercentile(99) / 1000)
+                    .append(',').append(histogram.getMax() / 1000).append('\n');
+        }
+        profiler.clear();
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean header = !csvFile.exists() || csvFile.length() == 0;
+                try(Writer out = new BufferedWriter(new FileWriter(csvFile, true))) {
+                    if(header) {
+                        out.write(CSV_HEADER);
+                    }
+                    out.write(rows.toString());
+                } catch(IOException exception) {
+                    LOGGER.log(Level.WARNING, "Cannot write " + csvFile, exception);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+/**
+ * The part of a frame of {@link RollingTheMonkey} that is neither physics nor
+ * rendering: it applies the drained events to the pickUps and counts the
+ * collected ones, keeps the "Score: n" label of every score and turns the held
+ * keys into the input bitmask of {@link MarbleSimulation}.
+ * <p>
+ * A label is built the first time its score is shown, after that a frame
+ * does not allocate. Runs on the render thread.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class GameFrame implements CollisionEventQueue.Listener {
+
+    private final PickupRenderer pickUps;
+    private final int pickUpCount;
+    private final String[] scoreLabels; // filled in when a score is first shown
+
+    private int input;
+    private int collected;
+    private int shownScore = -1;
+
+    /**
+     * @param pickUps hides and shows the pickUps of the events
+     */
+    public GameFrame(PickupRenderer pickUps) {
+        this.pickUps = pickUps;
+        pickUpCount = pickUps.getPickUpCount();
+        scoreLabels = new String[pickUpCount + 1];
+    }
+
+    /**
+     * Applies every queued event.
+     *
+     * @param events the events of the last physics step
+     * @return the number of events applied
+     */
+    public int drain(CollisionEventQueue events) {
+        return events.drain(this);
+    }
+
+    @Override
+    public void event(int type, int index) {
+        if(type == MarbleSimulation.EVENT_PICKUP_COLLECTED) {
+            pickUps.setVisible(index, false);
+            collected++;
+        } else if(type == MarbleSimulation.EVENT_PICKUP_RESTORED) {
+            pickUps.setVisible(index, true);
+            collected--;
+        }
+    }
+
+    /**
+     * @param key one of the <code>MarbleSimulation.INPUT_</code> bits
+     * @param pressed true while the key is held down
+     */
+    public void setKey(int key, boolean pressed) {
+        if(pressed) {
+            input |= key;
+        } else {
+            input &= ~key;
+        }
+    }
+
+    /**
+     * @return the bits of the keys held down
+     */
+    public int getInput() {
+        return input;
+    }
+
+    /**
+     * @return the number of pickUps collected, counted from the events
+     */
+    public int getCollected() {
+        return collected;
+    }
+
+    public boolean isComplete() {
+        return collected >= pickUpCount;
+    }
+
+    /**
+     * @param score the score to show, the collected pickUps when playing alone
+     * @return the label of the score when it changed since the last call,
+     * null when it did not
+     */
+    public String pollScoreLabel(int score) {
+        if(score == shownScore) {
+            return null;
+        }
+        shownScore = score;
+        if(score < 0 || score >= scoreLabels.length) {
+            return "Score: " + score; // only a session server could send that
+        }
+        String label = scoreLabels[score];
+        if(label == null) {
+            label = "Score: " + score;
+            scoreLabels[score] = label;
+        }
+        return label;
+    }
+}
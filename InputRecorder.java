@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends the input of a session to a memory mapped log.
+ * <p>
+ * A record is written only when the input changes: the number of physics
+ * ticks since the previous record as a variable length integer, followed by
+ * the input bitmask. Holding a key for a minute therefore costs two or three
+ * bytes, not one record per tick. The header keeps the length of the valid
+ * data and the last tick, and both are updated after every record, so the
+ * log stays readable if the game dies. The unused rest of the last mapped
+ * chunk is cut off when the log is closed. The header also names the level
+ * file played, if any, and the {@link LevelData#checksum()} of the level, so
+ * the replay runs on the same level or refuses to run. Read the log back
+ * with {@link InputReplay}.
+ *
+ * <pre>
+ *  0 int   MAGIC
+ *  4 float physics timestep
+ *  8 long  bytes of record data
+ * 16 long  last tick
+ * 24 int   pickup count of the level
+ * 28 int   flags, FLAG_PICKUP_GRID
+ * 32 int   level checksum
+ * 36 int   byte length of the level file name, 0 for the built in level
+ * 40       level file name, UTF-8, MAX_LEVEL_NAME bytes
+ * 168      records: varint tick delta, byte input
+ * </pre>
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class InputRecorder implements Closeable {
+
+    public static final int MAGIC = 0x524D4932; // "RMI2"
+    public static final int MAX_LEVEL_NAME = 128;
+    public static final int HEADER_SIZE = 40 + MAX_LEVEL_NAME;
+    public static final int FLAG_PICKUP_GRID = 1;
+
+    /** set in the recorded input when the world was reset before the tick */
+    public static final int RESET = 0x10;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 10; // 9 byte varint for a 63 bit delta + 1 byte input
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+
+    private long length;
+    private long lastTick;
+    private int lastInput;
+
+    /**
+     * Creates a new log, replacing any existing file.
+     *
+     * @param file the file to write
+     * @param timestep the physics timestep of the recorded session
+     * @param level the level of the recorded session
+     * @param levelFile the path of the level file the level was loaded from, null for the built in level
+     * @param flags the FLAG_ values of the recorded session
+     * @throws IOException if the file cannot be created
+     */
+    public InputRecorder(File file, float timestep, LevelData level, String levelFile, int flags) throws IOException {
+        byte[] levelName = levelFile != null ? levelFile.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if(levelName.length > MAX_LEVEL_NAME) {
+            throw new IOException("Level file name longer than " + MAX_LEVEL_NAME + " bytes: " + levelFile);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putFloat(4, timestep);
+        header.putLong(8, 0);
+        header.putLong(16, 0);
+        header.putInt(24, level.getPickUpCount());
+        header.putInt(28, flags);
+        header.putInt(32, level.checksum());
+        header.putInt(36, levelName.length);
+        for(int i = 0; i < levelName.length; i++) {
+            header.put(40 + i, levelName[i]);
+        }
+        mapChunk(HEADER_SIZE);
+    }
+
+    private void mapChunk(long start) throws IOException {
+        chunkStart = start;
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE);
+    }
+
+    /**
+     * Records the input for the ticks following the given tick. Nothing is
+     * written if the input did not change.
+     *
+     * @param tick the number of physics ticks completed so far
+     * @param input the input bitmask, optionally with {@link #RESET}
+     * @throws IOException if the log cannot grow
+     */
+    public void record(long tick, int input) throws IOException {
+        if(input == lastInput && (input & RESET) == 0) {
+            return;
+        }
+        if(chunk.remaining() < MAX_RECORD_SIZE) {
+            mapChunk(chunkStart + chunk.position());
+        }
+
+        long delta = tick - lastTick;
+        while((delta & ~0x7FL) != 0) {
+            chunk.put((byte) ((delta & 0x7F) | 0x80));
+            delta >>>= 7;
+        }
+        chunk.put((byte) delta);
+        chunk.put((byte) input);
+
+        length = chunkStart + chunk.position() - HEADER_SIZE;
+        lastTick = tick;
+        lastInput = input & ~RESET;
+        header.putLong(8, length);
+        header.putLong(16, tick);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Marks the end of the session and closes the file.
+     *
+     * @param tick the number of physics ticks completed when the session ended
+     * @throws IOException if the file cannot be closed
+     */
+    public void close(long tick) throws IOException {
+        header.putLong(16, Math.max(tick, lastTick));
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        header.force();
+        chunk.force();
+        channel.truncate(HEADER_SIZE + length); // the rest of the last chunk was never written
+        channel.close();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads an input log written by {@link InputRecorder} and replays it.
+ * <p>
+ * The replay drives a headless {@link MarbleSimulation} with the same fixed
+ * timestep as the recording, so no window or input device is needed and the
+ * same session can be timed after every change. The level is the one named
+ * in the log, loaded again and compared with the recorded checksum.
+ * Running it as an application
+ * replays a log and prints the time it took together with the final score and
+ * player location, which must not change between runs.
+ * <p>
+ * Usage: <code>InputReplay file [repeats]</code>
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class InputReplay {
+
+    private static final float PICKUP_SIZE   = 0.5f;
+    private static final float PICKUP_RADIUS = 15.0f;
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+
+    private final MappedByteBuffer data;
+    private final float timestep;
+    private final long lastTick;
+    private final int pickUpCount;
+    private final int flags;
+    private final int levelChecksum;
+    private final String levelFile;
+
+    private long tick;
+    private int input;
+
+    /**
+     * Maps a log for reading.
+     *
+     * @param file the log to read
+     * @throws IOException if the file cannot be read or is not an input log
+     */
+    public InputReplay(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() < InputRecorder.HEADER_SIZE) {
+                throw new IOException("Not an input log: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, InputRecorder.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt(0) != InputRecorder.MAGIC) {
+                throw new IOException("Not an input log: " + file);
+            }
+            timestep = header.getFloat(4);
+            long length = header.getLong(8);
+            if(length < 0 || length > channel.size() - InputRecorder.HEADER_SIZE) {
+                throw new IOException("Truncated input log: " + file);
+            }
+            lastTick = header.getLong(16);
+            pickUpCount = header.getInt(24);
+            flags = header.getInt(28);
+            levelChecksum = header.getInt(32);
+            int levelNameLength = header.getInt(36);
+            if(levelNameLength < 0 || levelNameLength > InputRecorder.MAX_LEVEL_NAME) {
+                throw new IOException("Broken input log: " + file);
+            }
+            byte[] levelName = new byte[levelNameLength];
+            header.position(40);
+            header.get(levelName);
+            levelFile = levelName.length > 0 ? new String(levelName, StandardCharsets.UTF_8) : null;
+            data = channel.map(FileChannel.MapMode.READ_ONLY, InputRecorder.HEADER_SIZE, length);
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false when there are no more records
+     */
+    public boolean next() {
+        if(!data.hasRemaining()) {
+            return false;
+        }
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        tick += delta;
+        input = data.get() & 0xFF;
+        return true;
+    }
+
+    /**
+     * Starts reading the records from the beginning again.
+     */
+    public void rewind() {
+        data.rewind();
+        tick = 0;
+        input = 0;
+    }
+
+    /**
+     * @return the number of ticks completed before the input of the current record applies
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    public int getInput() {
+        return input;
+    }
+
+    public long getLastTick() {
+        return lastTick;
+    }
+
+    public float getTimestep() {
+        return timestep;
+    }
+
+    public int getPickUpCount() {
+        return pickUpCount;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getLevelChecksum() {
+        return levelChecksum;
+    }
+
+    /**
+     * @return the path of the level file that was played, null for the built in level
+     */
+    public String getLevelFile() {
+        return levelFile;
+    }
+
+    /**
+     * Loads the level that was played, from its level file or built in.
+     *
+     * @return the level
+     * @throws IOException if the level file cannot be read, or the level is
+     *         not the one recorded anymore
+     */
+    public LevelData loadLevel() throws IOException {
+        LevelData level = levelFile != null ? LevelFile.load(new File(levelFile)).getData()
+                : LevelData.createDefault(pickUpCount, PICKUP_SIZE, PICKUP_RADIUS, PLAYER_START);
+        if(level.checksum() != levelChecksum) {
+            throw new IOException((levelFile != null ? levelFile : "The built in level") + " changed since the recording");
+        }
+        return level;
+    }
+
+    /**
+     * Plays the whole log through a simulation. The simulation should be
+     * freshly created or reset.
+     *
+     * @param simulation the simulation to drive
+     */
+    public void replay(MarbleSimulation simulation) {
+        rewind();
+        boolean pending = next();
+        for(long step = 0; step < lastTick; step++) {
+            while(pending && tick == step) {
+                if((input & InputRecorder.RESET) != 0) {
+                    simulation.reset();
+                }
+                simulation.setInput(input & ~InputRecorder.RESET);
+                pending = next();
+            }
+            simulation.step();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: InputReplay file [repeats]");
+            return;
+        }
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        InputReplay replay = new InputReplay(new File(args[0]));
+        if(replay.getTimestep() != MarbleSimulation.TIMESTEP) {
+            System.err.println("Recorded with timestep " + replay.getTimestep() + ", replaying with " + MarbleSimulation.TIMESTEP);
+        }
+
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        LevelData level = replay.loadLevel();
+        boolean pickUpGrid = (replay.getFlags() & InputRecorder.FLAG_PICKUP_GRID) != 0;
+
+        for(int run = 0; run < repeats; run++) {
+            MarbleSimulation simulation = MarbleSimulation.createHeadless(level, pickUpGrid);
+            long start = System.nanoTime();
+            replay.replay(simulation);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("run %d: %d ticks in %.3f s (%.0f ticks/s), score %d, player at %s%n",
+                    run, replay.getLastTick(), seconds, replay.getLastTick() / seconds,
+                    simulation.getScore(), simulation.getPlayer().getPhysicsLocation());
+            simulation.destroy();
+        }
+    }
+}
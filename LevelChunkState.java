@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.app.Application;
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
+import com.jme3.bullet.collision.shapes.HullCollisionShape;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.bullet.util.DebugShapeFactory;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import com.jme3.scene.shape.Sphere;
+import jme3tools.optimize.GeometryBatchFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams the static level around the player in square tiles.
+ * <p>
+ * The collision boxes of the level are cut at the tile borders, spheres and
+ * hulls belong whole to the tile of their center. A tile is one batched mesh
+ * per material and one static body with a compound shape of its pieces. Tiles
+ * are built on a background thread when the player comes within the load
+ * radius and are attached to the scene and the physics space with
+ * <code>enqueue()</code>. Tiles beyond the unload radius are detached and kept
+ * in a least recently used cache, so coming back does not build them again.
+ * <p>
+ * The tiles are indexed by their grid cell in arrays covering the bounds of
+ * the level, so the per frame bookkeeping does not allocate.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class LevelChunkState extends BaseAppState {
+
+    private static final byte NONE = 0;
+    private static final byte PENDING = 1;
+    private static final byte ACTIVE = 2;
+    private static final byte CACHED = 3;
+
+    /**
+     * One built tile, may be empty.
+     */
+    private static class Tile {
+
+        final int cell;
+        final Node node;
+        final PhysicsRigidBody body;
+
+        Tile(int cell, Node node, PhysicsRigidBody body) {
+            this.cell = cell;
+            this.node = node;
+            this.body = body;
+        }
+    }
+
+    private final LevelData level;
+    private final MarbleSimulation simulation;
+    private final Material[] materials;
+    private final float tileSize;
+    private final float loadRadius;
+    private final float unloadRadius;
+    private final int cacheSize;
+
+    // the grid of tiles covering the level, cell = (z - minTileZ) * tilesX + x - minTileX
+    private final int minTileX;
+    private final int minTileZ;
+    private final int tilesX;
+    private final int tilesZ;
+    private final int[][] tilePieces; // the boxes touching every cell, then the spheres and hulls of it, null when empty
+    private final Tile[] built; // the active and the cached tiles
+    private final byte[] states;
+    private final List<Tile> active = new ArrayList<>();
+    private final List<Tile> cache = new ArrayList<>(); // the least recently used first
+
+    private final Node tiles = new Node("levelTiles");
+    private final Vector3f playerLocation = new Vector3f();
+    private PhysicsSpace space;
+    private ExecutorService builder;
+
+    /**
+     * @param level the level to stream
+     * @param simulation the simulation whose player drives the streaming and whose space receives the tiles
+     * @param materials the materials of the tile meshes, indexed by the LevelFile.MATERIAL_ values
+     * @param tileSize the edge length of a tile
+     * @param loadRadius tiles closer than this to the player are loaded
+     * @param unloadRadius tiles farther than this from the player are unloaded, must be bigger than loadRadius
+     * @param cacheSize the number of unloaded tiles kept
+     */
+    public LevelChunkState(LevelData level, MarbleSimulation simulation, Material[] materials,
+            float tileSize, float loadRadius, float unloadRadius, int cacheSize) {
+        this.level = level;
+        this.simulation = simulation;
+        this.materials = materials;
+        this.tileSize = tileSize;
+        this.loadRadius = loadRadius;
+        this.unloadRadius = Math.max(unloadRadius, loadRadius + tileSize);
+        this.cacheSize = cacheSize;
+
+        // every piece as the tile range it touches, spheres and hulls are numbered after the boxes
+        int boxCount = level.getCollisionBoxCount();
+        int pieceCount = boxCount + level.getCollisionSphereCount() + level.getCollisionHulls().length;
+        int[] ranges = new int[pieceCount * 4]; // start x, end x, start z, end z
+        float[] boxes = level.getCollisionBoxes();
+        for(int box = 0; box < boxCount; box++) {
+            int i = box * LevelData.BOX_STRIDE;
+            setRange(ranges, box, boxes[i] - boxes[i + 3], boxes[i] + boxes[i + 3],
+                    boxes[i + 2] - boxes[i + 5], boxes[i + 2] + boxes[i + 5]);
+        }
+        float[] spheres = level.getCollisionSpheres();
+        for(int sphere = 0; sphere < level.getCollisionSphereCount(); sphere++) {
+            int i = sphere * LevelData.SPHERE_STRIDE;
+            setRange(ranges, boxCount + sphere, spheres[i], spheres[i], spheres[i + 2], spheres[i + 2]);
+        }
+        float[][] hulls = level.getCollisionHulls();
+        for(int hull = 0; hull < hulls.length; hull++) {
+            float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+            float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+            for(int i = 0; i < hulls[hull].length; i += 3) {
+                minX = Math.min(minX, hulls[hull][i]);
+                maxX = Math.max(maxX, hulls[hull][i]);
+                minZ = Math.min(minZ, hulls[hull][i + 2]);
+                maxZ = Math.max(maxZ, hulls[hull][i + 2]);
+            }
+            float centerX = (minX + maxX) / 2;
+            float centerZ = (minZ + maxZ) / 2;
+            setRange(ranges, pieceCount - hulls.length + hull, centerX, centerX, centerZ, centerZ);
+        }
+
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+        for(int i = 0; i < ranges.length; i += 4) {
+            minX = Math.min(minX, ranges[i]);
+            maxX = Math.max(maxX, ranges[i + 1]);
+            minZ = Math.min(minZ, ranges[i + 2]);
+            maxZ = Math.max(maxZ, ranges[i + 3]);
+        }
+        if(pieceCount == 0) {
+            minX = maxX = minZ = maxZ = 0;
+        }
+        minTileX = minX;
+        minTileZ = minZ;
+        tilesX = maxX - minX + 1;
+        tilesZ = maxZ - minZ + 1;
+
+        // count the pieces of every cell, then fill them in
+        int[] counts = new int[tilesX * tilesZ];
+        for(int piece = 0; piece < pieceCount; piece++) {
+            int i = piece * 4;
+            for(int z = ranges[i + 2]; z <= ranges[i + 3]; z++) {
+                for(int x = ranges[i]; x <= ranges[i + 1]; x++) {
+                    counts[cell(x, z)]++;
+                }
+            }
+        }
+        tilePieces = new int[counts.length][];
+        for(int cell = 0; cell < counts.length; cell++) {
+            if(counts[cell] > 0) {
+                tilePieces[cell] = new int[counts[cell]];
+                counts[cell] = 0;
+            }
+        }
+        for(int piece = 0; piece < pieceCount; piece++) {
+            int i = piece * 4;
+            for(int z = ranges[i + 2]; z <= ranges[i + 3]; z++) {
+                for(int x = ranges[i]; x <= ranges[i + 1]; x++) {
+                    int cell = cell(x, z);
+                    tilePieces[cell][counts[cell]++] = piece;
+                }
+            }
+        }
+        built = new Tile[counts.length];
+        states = new byte[counts.length];
+    }
+
+    private void setRange(int[] ranges, int piece, float minX, float maxX, float minZ, float maxZ) {
+        ranges[piece * 4] = tileOf(minX);
+        ranges[piece * 4 + 1] = tileOf(maxX);
+        ranges[piece * 4 + 2] = tileOf(minZ);
+        ranges[piece * 4 + 3] = tileOf(maxZ);
+    }
+
+    private int tileOf(float coordinate) {
+        return (int) FastMath.floor(coordinate / tileSize);
+    }
+
+    private int cell(int x, int z) {
+        return (z - minTileZ) * tilesX + x - minTileX;
+    }
+
+    private int cellX(int cell) {
+        return cell % tilesX + minTileX;
+    }
+
+    private int cellZ(int cell) {
+        return cell / tilesX + minTileZ;
+    }
+
+    public int getActiveTileCount() {
+        return active.size();
+    }
+
+    public int getCachedTileCount() {
+        return cache.size();
+    }
+
+    @Override
+    protected void initialize(Application app) {
+        space = simulation.getPhysicsSpace();
+        builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LevelChunkState builder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // the tiles around the start are built right away so the ball does not fall through
+        simulation.getPlayer().getPhysicsLocation(playerLocation);
+        for(int cell = 0; cell < tilePieces.length; cell++) {
+            if(tilePieces[cell] != null && distanceTo(cell, playerLocation) <= loadRadius) {
+                attach(build(cell));
+            }
+        }
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        builder.shutdownNow();
+        for(int i = 0; i < active.size(); i++) {
+            Tile tile = active.get(i);
+            if(tile.body != null) {
+                space.remove(tile.body);
+            }
+        }
+        active.clear();
+        cache.clear();
+        Arrays.fill(built, null);
+        Arrays.fill(states, NONE); // builds still running are dropped when they come back
+        tiles.detachAllChildren();
+    }
+
+    @Override
+    protected void onEnable() {
+        ((SimpleApplication) getApplication()).getRootNode().attachChild(tiles);
+    }
+
+    @Override
+    protected void onDisable() {
+        tiles.removeFromParent();
+    }
+
+    @Override
+    public void update(float tpf) {
+        // update runs while the physics is not stepping
+        simulation.getPlayer().getPhysicsLocation(playerLocation);
+
+        for(int i = active.size() - 1; i >= 0; i--) {
+            Tile tile = active.get(i);
+            if(distanceTo(tile.cell, playerLocation) > unloadRadius) {
+                removeActive(i);
+                detach(tile);
+                addToCache(tile);
+            }
+        }
+
+        int reach = (int) FastMath.ceil(loadRadius / tileSize);
+        int centerX = tileOf(playerLocation.x);
+        int centerZ = tileOf(playerLocation.z);
+        int startX = Math.max(minTileX, centerX - reach);
+        int endX = Math.min(minTileX + tilesX - 1, centerX + reach);
+        int startZ = Math.max(minTileZ, centerZ - reach);
+        int endZ = Math.min(minTileZ + tilesZ - 1, centerZ + reach);
+        for(int z = startZ; z <= endZ; z++) {
+            for(int x = startX; x <= endX; x++) {
+                int cell = cell(x, z);
+                if(tilePieces[cell] == null || states[cell] == ACTIVE || states[cell] == PENDING
+                        || distanceTo(cell, playerLocation) > loadRadius) {
+                    continue;
+                }
+                if(states[cell] == CACHED) {
+                    cache.remove(built[cell]);
+                    attach(built[cell]);
+                } else if(x == centerX && z == centerZ) {
+                    attach(build(cell)); // the ball is on it, it cannot wait for the builder
+                } else {
+                    schedule(cell);
+                }
+            }
+        }
+    }
+
+    private float distanceTo(int cell, Vector3f location) {
+        // distance in the x/z plane from the location to the nearest point of the tile
+        float minX = cellX(cell) * tileSize;
+        float minZ = cellZ(cell) * tileSize;
+        float dx = Math.max(0, Math.max(minX - location.x, location.x - (minX + tileSize)));
+        float dz = Math.max(0, Math.max(minZ - location.z, location.z - (minZ + tileSize)));
+        return FastMath.sqrt(dx * dx + dz * dz);
+    }
+
+    private void schedule(final int cell) {
+        states[cell] = PENDING;
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Tile tile = build(cell);
+                getApplication().enqueue(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if(states[cell] == PENDING) {
+                            if(isInitialized()) {
+                                attach(tile);
+                            } else {
+                                states[cell] = NONE;
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    private void removeActive(int index) {
+        // the order of the active tiles does not matter, the last one fills the gap
+        int last = active.size() - 1;
+        active.set(index, active.get(last));
+        active.remove(last);
+    }
+
+    private void addToCache(Tile tile) {
+        cache.add(tile);
+        states[tile.cell] = CACHED;
+        if(cache.size() > cacheSize) {
+            Tile eldest = cache.remove(0);
+            built[eldest.cell] = null;
+            states[eldest.cell] = NONE;
+        }
+    }
+
+    private void attach(Tile tile) {
+        built[tile.cell] = tile;
+        states[tile.cell] = ACTIVE;
+        active.add(tile);
+        if(tile.node != null) {
+            tiles.attachChild(tile.node);
+            space.add(tile.body);
+        }
+    }
+
+    private void detach(Tile tile) {
+        if(tile.node != null) {
+            tile.node.removeFromParent();
+            space.remove(tile.body);
+        }
+    }
+
+    /**
+     * Cuts the level boxes at the tile borders and builds the meshes and the
+     * body of the tile with its spheres and hulls. The pieces are batched into
+     * one mesh per material. Runs on the builder thread.
+     */
+    private Tile build(int cell) {
+        float minX = cellX(cell) * tileSize;
+        float minZ = cellZ(cell) * tileSize;
+        float maxX = minX + tileSize;
+        float maxZ = minZ + tileSize;
+
+        float[] boxes = level.getCollisionBoxes();
+        float[] spheres = level.getCollisionSpheres();
+        int[] pieceMaterials = level.getPieceMaterials();
+        int boxCount = level.getCollisionBoxCount();
+        int sphereEnd = boxCount + level.getCollisionSphereCount();
+        List<List<Geometry>> parts = new ArrayList<>(materials.length);
+        for(int material = 0; material < materials.length; material++) {
+            parts.add(new ArrayList<Geometry>());
+        }
+        boolean empty = true;
+        CompoundCollisionShape shape = new CompoundCollisionShape();
+        for(int piece : tilePieces[cell]) {
+            List<Geometry> materialParts = parts.get(pieceMaterials[piece]);
+            if(piece >= sphereEnd) {
+                HullCollisionShape hull = new HullCollisionShape(level.getCollisionHulls()[piece - sphereEnd]);
+                materialParts.add(new Geometry("hull", DebugShapeFactory.getDebugMesh(hull))); // the points are in world space
+                shape.addChildShape(hull, new Vector3f());
+                empty = false;
+                continue;
+            }
+            if(piece >= boxCount) {
+                int i = (piece - boxCount) * LevelData.SPHERE_STRIDE;
+                Vector3f center = new Vector3f(spheres[i], spheres[i + 1], spheres[i + 2]);
+                Geometry part = new Geometry("sphere", new Sphere(16, 16, spheres[i + 3]));
+                part.setLocalTranslation(center);
+                materialParts.add(part);
+                shape.addChildShape(new SphereCollisionShape(spheres[i + 3]), center);
+                empty = false;
+                continue;
+            }
+            int i = piece * LevelData.BOX_STRIDE;
+            float startX = Math.max(minX, boxes[i] - boxes[i + 3]);
+            float endX = Math.min(maxX, boxes[i] + boxes[i + 3]);
+            float startZ = Math.max(minZ, boxes[i + 2] - boxes[i + 5]);
+            float endZ = Math.min(maxZ, boxes[i + 2] + boxes[i + 5]);
+            if(endX - startX <= FastMath.ZERO_TOLERANCE || endZ - startZ <= FastMath.ZERO_TOLERANCE) {
+                continue;
+            }
+            Vector3f halfExtents = new Vector3f((endX - startX) / 2, boxes[i + 4], (endZ - startZ) / 2);
+            Vector3f center = new Vector3f((startX + endX) / 2, boxes[i + 1], (startZ + endZ) / 2);
+
+            Geometry part = new Geometry("box", new Box(halfExtents.x, halfExtents.y, halfExtents.z));
+            part.setLocalTranslation(center);
+            materialParts.add(part);
+            shape.addChildShape(new BoxCollisionShape(halfExtents), center);
+            empty = false;
+        }
+        if(empty) {
+            return new Tile(cell, null, null);
+        }
+
+        Node node = new Node("tile" + cellX(cell) + "," + cellZ(cell));
+        node.setShadowMode(ShadowMode.CastAndReceive);
+        for(int material = 0; material < materials.length; material++) {
+            if(parts.get(material).isEmpty()) {
+                continue;
+            }
+            Mesh mesh = new Mesh();
+            GeometryBatchFactory.mergeGeometries(parts.get(material), mesh);
+            Geometry geometry = new Geometry(node.getName() + "#" + material, mesh);
+            geometry.setMaterial(materials[material]);
+            node.attachChild(geometry);
+        }
+
+        PhysicsRigidBody body = new PhysicsRigidBody(shape, 0);
+        body.setCollisionGroup(MarbleSimulation.LEVEL_GROUP);
+        return new Tile(cell, node, body);
+    }
+}
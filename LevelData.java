@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
+import com.jme3.bullet.collision.shapes.HullCollisionShape;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Renderer independent description of a level.
+ * <p>
+ * Collision boxes, spheres, convex hulls and pickup positions are kept in
+ * packed float arrays so they can be shared between the game, the headless
+ * simulation and the level tools without building any scene graph. The
+ * collision is derived from the render meshes by {@link CollisionDeriver}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class LevelData {
+
+    public static final int BOX_STRIDE = 6; // center x, y, z, half extent x, y, z
+    public static final int SPHERE_STRIDE = 4; // center x, y, z, radius
+
+    private final float[] collisionBoxes;
+    private final float[] collisionSpheres;
+    private final float[][] collisionHulls;
+    private final int[] pieceMaterials;
+    private final float[] pickUps;
+    private final float pickUpSize;
+    private final Vector3f playerStart;
+
+    /**
+     * @param collisionBoxes static boxes packed as center x, y, z, half extent x, y, z
+     * @param pickUps pickup centers packed as x, y, z triples
+     * @param pickUpSize the half extent of a pickup
+     * @param playerStart where the player ball starts
+     */
+    public LevelData(float[] collisionBoxes, float[] pickUps, float pickUpSize, Vector3f playerStart) {
+        this(collisionBoxes, new float[0], new float[0][], pickUps, pickUpSize, playerStart);
+    }
+
+    /**
+     * @param collisionBoxes static boxes packed as center x, y, z, half extent x, y, z
+     * @param collisionSpheres static spheres packed as center x, y, z, radius
+     * @param collisionHulls static convex hulls, each packed as x, y, z of its points in world space
+     * @param pickUps pickup centers packed as x, y, z triples
+     * @param pickUpSize the half extent of a pickup
+     * @param playerStart where the player ball starts
+     */
+    public LevelData(float[] collisionBoxes, float[] collisionSpheres, float[][] collisionHulls,
+            float[] pickUps, float pickUpSize, Vector3f playerStart) {
+        this(collisionBoxes, collisionSpheres, collisionHulls,
+                new int[collisionBoxes.length / BOX_STRIDE + collisionSpheres.length / SPHERE_STRIDE + collisionHulls.length],
+                pickUps, pickUpSize, playerStart);
+    }
+
+    /**
+     * @param collisionBoxes static boxes packed as center x, y, z, half extent x, y, z
+     * @param collisionSpheres static spheres packed as center x, y, z, radius
+     * @param collisionHulls static convex hulls, each packed as x, y, z of its points in world space
+     * @param pieceMaterials the LevelFile.MATERIAL_ value of every box, then every sphere, then every hull
+     * @param pickUps pickup centers packed as x, y, z triples
+     * @param pickUpSize the half extent of a pickup
+     * @param playerStart where the player ball starts
+     */
+    public LevelData(float[] collisionBoxes, float[] collisionSpheres, float[][] collisionHulls, int[] pieceMaterials,
+            float[] pickUps, float pickUpSize, Vector3f playerStart) {
+        this.collisionBoxes = collisionBoxes;
+        this.collisionSpheres = collisionSpheres;
+        this.collisionHulls = collisionHulls;
+        this.pieceMaterials = pieceMaterials;
+        this.pickUps = pickUps;
+        this.pickUpSize = pickUpSize;
+        this.playerStart = playerStart;
+    }
+
+    /**
+     * Creates the original level: a floor, four walls and a ring of pickups.
+     * The collision is derived from the meshes of {@link LevelFile#createDefault}.
+     *
+     * @param pickUpCount the number of pickups in the ring
+     * @param pickUpSize the half extent of a pickup
+     * @param pickUpRadius the radius of the ring
+     * @param playerStart where the player ball starts
+     * @return a new level
+     */
+    public static LevelData createDefault(int pickUpCount, float pickUpSize, float pickUpRadius, Vector3f playerStart) {
+        return LevelFile.createDefault(pickUpCount, pickUpSize, pickUpRadius, playerStart).getData();
+    }
+
+    /**
+     * Places pickups evenly on a ring around the origin.
+     *
+     * @param pickUpCount the number of pickups in the ring
+     * @param pickUpSize the half extent of a pickup
+     * @param pickUpRadius the radius of the ring
+     * @return the pickup centers packed as x, y, z triples
+     */
+    public static float[] createRing(int pickUpCount, float pickUpSize, float pickUpRadius) {
+        Quaternion rotation = new Quaternion();
+        Vector3f translation = new Vector3f(0.0f, pickUpSize * 1.5f, -pickUpRadius);
+        Vector3f position = new Vector3f();
+        float[] pickUps = new float[pickUpCount * 3];
+        float ammount = FastMath.TWO_PI / pickUpCount;
+        for(int index = 0; index < pickUpCount; index++) {
+            rotation.fromAngles(0.0f, index * ammount, 0.0f);
+            rotation.mult(translation, position);
+            pickUps[index * 3] = position.x;
+            pickUps[index * 3 + 1] = position.y;
+            pickUps[index * 3 + 2] = position.z;
+        }
+        return pickUps;
+    }
+
+    /**
+     * Builds one compound shape out of all the collision boxes, spheres and hulls.
+     *
+     * @return a new collision shape
+     */
+    public CompoundCollisionShape createCollisionShape() {
+        CompoundCollisionShape shape = new CompoundCollisionShape();
+        for(int box = 0; box < getCollisionBoxCount(); box++) {
+            int i = box * BOX_STRIDE;
+            shape.addChildShape(new BoxCollisionShape(new Vector3f(collisionBoxes[i + 3], collisionBoxes[i + 4], collisionBoxes[i + 5])),
+                    new Vector3f(collisionBoxes[i], collisionBoxes[i + 1], collisionBoxes[i + 2]));
+        }
+        for(int sphere = 0; sphere < getCollisionSphereCount(); sphere++) {
+            int i = sphere * SPHERE_STRIDE;
+            shape.addChildShape(new SphereCollisionShape(collisionSpheres[i + 3]),
+                    new Vector3f(collisionSpheres[i], collisionSpheres[i + 1], collisionSpheres[i + 2]));
+        }
+        for(float[] hull : collisionHulls) {
+            shape.addChildShape(new HullCollisionShape(hull), new Vector3f()); // the points are in world space
+        }
+        return shape;
+    }
+
+    /**
+     * Computes a checksum of everything the simulation reads from the level:
+     * the collision, the pickups, the pickup size and the player start. Two
+     * levels with the same checksum play the same.
+     *
+     * @return the CRC32 of the level
+     */
+    public int checksum() {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = ByteBuffer.allocate(4096);
+        FloatBuffer floats = bytes.asFloatBuffer();
+        update(crc, bytes, floats, collisionBoxes);
+        update(crc, bytes, floats, collisionSpheres);
+        for(float[] hull : collisionHulls) {
+            update(crc, bytes, floats, hull);
+        }
+        update(crc, bytes, floats, pickUps);
+        update(crc, bytes, floats, new float[] { pickUpSize, playerStart.x, playerStart.y, playerStart.z });
+        return (int) crc.getValue();
+    }
+
+    private static void update(CRC32 crc, ByteBuffer bytes, FloatBuffer floats, float[] values) {
+        for(int offset = 0; offset < values.length; offset += floats.capacity()) {
+            int count = Math.min(floats.capacity(), values.length - offset);
+            floats.clear();
+            floats.put(values, offset, count);
+            crc.update(bytes.array(), 0, count * 4);
+        }
+    }
+
+    public float[] getCollisionBoxes() {
+        return collisionBoxes;
+    }
+
+    public int getCollisionBoxCount() {
+        return collisionBoxes.length / BOX_STRIDE;
+    }
+
+    public float[] getCollisionSpheres() {
+        return collisionSpheres;
+    }
+
+    public int getCollisionSphereCount() {
+        return collisionSpheres.length / SPHERE_STRIDE;
+    }
+
+    public float[][] getCollisionHulls() {
+        return collisionHulls;
+    }
+
+    /**
+     * The materials of the render meshes the collision was derived from, for
+     * tools that build meshes back from the collision. They do not change
+     * the simulation and are not part of the {@link #checksum()}.
+     *
+     * @return the LevelFile.MATERIAL_ value of every box, then every sphere, then every hull
+     */
+    public int[] getPieceMaterials() {
+        return pieceMaterials;
+    }
+
+    public float[] getPickUps() {
+        return pickUps;
+    }
+
+    public int getPickUpCount() {
+        return pickUps.length / 3;
+    }
+
+    public float getPickUpSize() {
+        return pickUpSize;
+    }
+
+    public Vector3f getPlayerStart() {
+        return playerStart;
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.scene.shape.Box;
+import com.jme3.util.BufferUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A level stored in a compact binary file that is memory mapped when loaded.
+ * <p>
+ * The file holds the {@link LevelData} and the render meshes of the level
+ * with their levels of detail.
+ * Every vertex buffer is stored little endian and aligned to four bytes, so on
+ * a little endian machine the meshes are built from views of the mapped file
+ * and nothing is copied: the operating system pages the data in when the
+ * renderer uploads it.
+ *
+ * <pre>
+ *  0 int   MAGIC
+ *  4 int   VERSION
+ *  8 int   collision box count
+ * 12 int   collision sphere count
+ * 16 int   collision hull count
+ * 20 int   pickup count
+ * 24 int   part count
+ * 28 float pickup size
+ * 32 float player start x, y, z
+ * 44       collision boxes, LevelData.BOX_STRIDE floats each
+ *          collision spheres, LevelData.SPHERE_STRIDE floats each
+ *          collision hulls: int point count, 3 floats per point
+ *          pickups, 3 floats each
+ *          piece materials, int per box, sphere and hull
+ *          parts: int name length, name padded to 4 bytes, int material,
+ *          int shadow mode, float translation x, y, z, int mesh mode,
+ *          int buffer count, buffers, int level of detail count, index
+ *          buffers of the levels
+ *          pickup mesh: int buffer count, buffers
+ *          buffer: int type, int format, int components, int byte length,
+ *          data padded to 4 bytes
+ * </pre>
+ *
+ * The pickup mesh is the one {@link PickupRenderer} draws, so the pickups
+ * are mapped like the level meshes instead of being built at startup.
+ * {@link #load(File)} checks every count, ordinal, material, length and
+ * index against the file and fails with an IOException naming the file.
+ *
+ * Run the main method to convert the original level to a file. The collision
+ * of the level is derived from its meshes by {@link CollisionDeriver}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class LevelFile {
+
+    public static final int MAGIC = 0x524D4C31; // "RML1"
+    public static final int VERSION = 4;
+    public static final int HEADER_SIZE = 44;
+
+    public static final int MATERIAL_FLOOR = 0;
+    public static final int MATERIAL_WALL  = 1;
+
+    private static final float PICKUP_SIZE   = 0.5f;
+    private static final float PICKUP_RADIUS = 15.0f;
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+    private static final String COLLISION_CACHE = "collision-cache";
+
+    /**
+     * One render mesh of the level.
+     */
+    public static class Part {
+
+        private final String name;
+        private final int material;
+        private final ShadowMode shadowMode;
+        private final Vector3f translation;
+        private final Mesh mesh;
+
+        /**
+         * @param name the name of the geometry
+         * @param material one of the MATERIAL_ values
+         * @param shadowMode the shadow mode of the geometry
+         * @param translation the local translation of the geometry
+         * @param mesh the mesh of the geometry
+         */
+        public Part(String name, int material, ShadowMode shadowMode, Vector3f translation, Mesh mesh) {
+            this.name = name;
+            this.material = material;
+            this.shadowMode = shadowMode;
+            this.translation = translation;
+            this.mesh = mesh;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMaterial() {
+            return material;
+        }
+
+        public ShadowMode getShadowMode() {
+            return shadowMode;
+        }
+
+        public Vector3f getTranslation() {
+            return translation;
+        }
+
+        public Mesh getMesh() {
+            return mesh;
+        }
+    }
+
+    private final LevelData data;
+    private final List<Part> parts;
+    private final Mesh pickUpMesh;
+
+    /**
+     * @param data the collision and pickups of the level
+     * @param parts the render meshes of the level
+     */
+    public LevelFile(LevelData data, List<Part> parts) {
+        this(data, parts, PickupRenderer.createMesh(data.getPickUps(), data.getPickUpSize()));
+    }
+
+    /**
+     * @param data the collision and pickups of the level
+     * @param parts the render meshes of the level
+     * @param pickUpMesh the pickups merged by {@link PickupRenderer#createMesh(float[], float)}
+     */
+    public LevelFile(LevelData data, List<Part> parts, Mesh pickUpMesh) {
+        this.data = data;
+        this.parts = Collections.unmodifiableList(parts);
+        this.pickUpMesh = pickUpMesh;
+    }
+
+    /**
+     * Creates the original level: a green floor, four red walls and a ring of
+     * pickups. The collision is derived from the meshes without a cache.
+     *
+     * @param pickUpCount the number of pickups in the ring
+     * @param pickUpSize the half extent of a pickup
+     * @param pickUpRadius the radius of the ring
+     * @param playerStart where the player ball starts
+     * @return a new level
+     */
+    public static LevelFile createDefault(int pickUpCount, float pickUpSize, float pickUpRadius, Vector3f playerStart) {
+        return createDefault(pickUpCount, pickUpSize, pickUpRadius, playerStart, new CollisionDeriver(null));
+    }
+
+    /**
+     * Creates the original level: a green floor, four red walls and a ring of
+     * pickups.
+     *
+     * @param pickUpCount the number of pickups in the ring
+     * @param pickUpSize the half extent of a pickup
+     * @param pickUpRadius the radius of the ring
+     * @param playerStart where the player ball starts
+     * @param deriver derives the collision from the meshes
+     * @return a new level
+     */
+    public static LevelFile createDefault(int pickUpCount, float pickUpSize, float pickUpRadius, Vector3f playerStart,
+            CollisionDeriver deriver) {
+        List<Part> parts = new ArrayList<>();
+        parts.add(new Part("floor", MATERIAL_FLOOR, ShadowMode.Receive, new Vector3f(0.0f, -0.5f, 0.0f), new Box(22.0f, 0.5f, 22.0f)));
+        parts.add(new Part("wallNorth", MATERIAL_WALL, ShadowMode.Inherit, new Vector3f(0.0f, 2.0f, 21.5f), new Box(22.0f, 2.0f, 0.5f)));
+        parts.add(new Part("wallSouth", MATERIAL_WALL, ShadowMode.Inherit, new Vector3f(0.0f, 2.0f, -21.5f), new Box(22.0f, 2.0f, 0.5f)));
+        parts.add(new Part("wallEast", MATERIAL_WALL, ShadowMode.Inherit, new Vector3f(-21.5f, 2.0f, 0.0f), new Box(0.5f, 2.0f, 21.0f)));
+        parts.add(new Part("wallWest", MATERIAL_WALL, ShadowMode.Inherit, new Vector3f(21.5f, 2.0f, 0.0f), new Box(0.5f, 2.0f, 21.0f)));
+        for(Part part : parts) {
+            LodBuilder.bake(part.getMesh());
+        }
+        LevelData data = deriver.deriveLevel(parts, LevelData.createRing(pickUpCount, pickUpSize, pickUpRadius),
+                pickUpSize, playerStart.clone());
+        return new LevelFile(data, parts);
+    }
+
+    public LevelData getData() {
+        return data;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    /**
+     * @return the merged pickup cubes for {@link PickupRenderer}, views of the file when it was loaded
+     */
+    public Mesh getPickUpMesh() {
+        return pickUpMesh;
+    }
+
+    /**
+     * Memory maps a level file. The meshes keep the mapping alive.
+     *
+     * @param file the file to read
+     * @return the level
+     * @throws IOException if the file cannot be read, is not a level file of
+     *         this version or is broken
+     */
+    public static LevelFile load(File file) throws IOException {
+        MappedByteBuffer mapped;
+        // VertexBuffer refuses read only buffers, a private mapping is writable but never written back
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a level file");
+        }
+        if(buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has level file version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        try {
+            return read(buffer);
+        } catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException exception) {
+            throw new IOException(file + " is truncated or broken", exception);
+        } catch(IOException exception) {
+            throw new IOException(file + " is broken: " + exception.getMessage(), exception);
+        }
+    }
+
+    private static LevelFile read(ByteBuffer buffer) throws IOException {
+        int boxCount = readCount(buffer, 8, "collision box");
+        int sphereCount = readCount(buffer, 12, "collision sphere");
+        int hullCount = readCount(buffer, 16, "collision hull");
+        int pickUpCount = readCount(buffer, 20, "pickup");
+        int partCount = readCount(buffer, 24, "part");
+        float pickUpSize = buffer.getFloat(28);
+        Vector3f playerStart = new Vector3f(buffer.getFloat(32), buffer.getFloat(36), buffer.getFloat(40));
+
+        // the physics and the pickup grid work on arrays, only these are copied
+        buffer.position(HEADER_SIZE);
+        float[] boxes = readFloats(buffer, boxCount * LevelData.BOX_STRIDE);
+        float[] spheres = readFloats(buffer, sphereCount * LevelData.SPHERE_STRIDE);
+        float[][] hulls = new float[hullCount][];
+        for(int hull = 0; hull < hullCount; hull++) {
+            hulls[hull] = readFloats(buffer, readCount(buffer, "hull point") * 3);
+        }
+        float[] pickUps = readFloats(buffer, pickUpCount * 3);
+        int[] materials = new int[boxCount + sphereCount + hullCount];
+        buffer.asIntBuffer().get(materials);
+        buffer.position(buffer.position() + materials.length * 4);
+        for(int material : materials) {
+            checkMaterial(material);
+        }
+
+        List<Part> parts = new ArrayList<>(partCount);
+        for(int part = 0; part < partCount; part++) {
+            byte[] name = new byte[readCount(buffer, "name byte")];
+            buffer.get(name);
+            skipPadding(buffer);
+            int material = checkMaterial(buffer.getInt());
+            ShadowMode shadowMode = readEnum(buffer, ShadowMode.values(), "shadow mode");
+            Vector3f translation = new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+
+            Mesh mesh = new Mesh();
+            mesh.setMode(readEnum(buffer, Mesh.Mode.values(), "mesh mode"));
+            readBuffers(buffer, mesh);
+            int lodCount = readCount(buffer, "level of detail");
+            if(lodCount > 0) {
+                VertexBuffer[] lods = new VertexBuffer[lodCount];
+                for(int lod = 0; lod < lodCount; lod++) {
+                    lods[lod] = readVertexBuffer(buffer);
+                }
+                mesh.setLodLevels(lods);
+            }
+            mesh.updateCounts();
+            checkIndices(mesh.getBuffer(VertexBuffer.Type.Index), mesh.getVertexCount());
+            for(int lod = 0; lod < lodCount; lod++) {
+                checkIndices(mesh.getLodLevel(lod), mesh.getVertexCount());
+            }
+            mesh.updateBound();
+            mesh.setStatic();
+            parts.add(new Part(new String(name, StandardCharsets.UTF_8), material, shadowMode, translation, mesh));
+        }
+
+        Mesh pickUpMesh = new Mesh();
+        readBuffers(buffer, pickUpMesh);
+        pickUpMesh.updateCounts(); // the bound comes from the pickup centers, see PickupRenderer
+        // PickupRenderer gives every pickup the same share of the vertices
+        int pickUpVertices = Math.max(0, pickUpMesh.getVertexCount());
+        if(pickUpCount == 0 ? pickUpVertices != 0 : pickUpVertices == 0 || pickUpVertices % pickUpCount != 0) {
+            throw new IOException(pickUpVertices + " pickup vertices for " + pickUpCount + " pickups");
+        }
+        checkIndices(pickUpMesh.getBuffer(VertexBuffer.Type.Index), pickUpVertices);
+
+        return new LevelFile(new LevelData(boxes, spheres, hulls, materials, pickUps, pickUpSize, playerStart), parts, pickUpMesh);
+    }
+
+    private static int readCount(ByteBuffer buffer, int index, String what) throws IOException {
+        return checkCount(buffer.getInt(index), buffer, what);
+    }
+
+    private static int readCount(ByteBuffer buffer, String what) throws IOException {
+        return checkCount(buffer.getInt(), buffer, what);
+    }
+
+    private static int checkCount(int count, ByteBuffer buffer, String what) throws IOException {
+        // every counted item takes at least a byte, a larger count cannot be right
+        if(count < 0 || count > buffer.limit()) {
+            throw new IOException(what + " count " + count);
+        }
+        return count;
+    }
+
+    private static int checkMaterial(int material) throws IOException {
+        // the game and LevelChunkState index their material arrays with it
+        if(material < MATERIAL_FLOOR || material > MATERIAL_WALL) {
+            throw new IOException("material " + material);
+        }
+        return material;
+    }
+
+    /**
+     * Refuses indices the renderer would read past the vertices with.
+     */
+    private static void checkIndices(VertexBuffer indices, int vertexCount) throws IOException {
+        if(indices == null) {
+            return;
+        }
+        if(indices.getFormat() == VertexBuffer.Format.Float) {
+            throw new IOException("float indices in " + indices.getBufferType());
+        }
+        IndexBuffer buffer = IndexBuffer.wrapIndexBuffer(indices.getData());
+        for(int i = 0; i < buffer.size(); i++) {
+            int index = buffer.get(i);
+            if(index < 0 || index >= vertexCount) {
+                throw new IOException("index " + index + " of " + vertexCount + " vertices");
+            }
+        }
+    }
+
+    private static <T> T readEnum(ByteBuffer buffer, T[] values, String what) throws IOException {
+        int ordinal = buffer.getInt();
+        if(ordinal < 0 || ordinal >= values.length) {
+            throw new IOException(what + " " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static void readBuffers(ByteBuffer buffer, Mesh mesh) throws IOException {
+        int bufferCount = readCount(buffer, "vertex buffer");
+        for(int index = 0; index < bufferCount; index++) {
+            mesh.setBuffer(readVertexBuffer(buffer));
+        }
+    }
+
+    private static float[] readFloats(ByteBuffer buffer, int count) {
+        float[] values = new float[count];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static VertexBuffer readVertexBuffer(ByteBuffer buffer) throws IOException {
+        VertexBuffer.Type type = readEnum(buffer, VertexBuffer.Type.values(), "vertex buffer type");
+        VertexBuffer.Format format = readEnum(buffer, VertexBuffer.Format.values(), "vertex format");
+        if(!isSupported(format)) {
+            throw new IOException("unsupported vertex format " + format + " in " + type);
+        }
+        int components = buffer.getInt();
+        if(components < 1 || components > 16) {
+            throw new IOException(components + " components in " + type);
+        }
+        int length = buffer.getInt();
+        if(length < 0 || length > buffer.remaining() || length % format.getComponentSize() != 0) {
+            throw new IOException(type + " buffer of " + length + " bytes does not fit the file");
+        }
+
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + length);
+        skipPadding(buffer);
+
+        VertexBuffer vertexBuffer = new VertexBuffer(type);
+        vertexBuffer.setupData(VertexBuffer.Usage.Static, components, format, view(bytes, format));
+        return vertexBuffer;
+    }
+
+    /**
+     * @param format a vertex format
+     * @return true if a level file can store buffers of the format
+     */
+    public static boolean isSupported(VertexBuffer.Format format) {
+        switch(format) {
+            case Float:
+            case Int:
+            case UnsignedInt:
+            case Short:
+            case UnsignedShort:
+            case Byte:
+            case UnsignedByte:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static Buffer view(ByteBuffer bytes, VertexBuffer.Format format) {
+        if(ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            // the renderer hands the memory to the driver as it is, so a big endian machine needs a copy
+            ByteBuffer copy = BufferUtils.createByteBuffer(bytes.remaining());
+            while(bytes.hasRemaining()) {
+                switch(format.getComponentSize()) {
+                    case 4:
+                        copy.putInt(bytes.getInt());
+                        break;
+                    case 2:
+                        copy.putShort(bytes.getShort());
+                        break;
+                    default:
+                        copy.put(bytes.get());
+                }
+            }
+            copy.flip();
+            bytes = copy;
+        }
+        switch(format.getComponentSize()) { // the format was checked by isSupported
+            case 4:
+                return format == VertexBuffer.Format.Float ? bytes.asFloatBuffer() : bytes.asIntBuffer();
+            case 2:
+                return bytes.asShortBuffer();
+            default:
+                return bytes;
+        }
+    }
+
+    private static void skipPadding(ByteBuffer buffer) {
+        buffer.position((buffer.position() + 3) & ~3);
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Writes a level file, replacing any existing file.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written or a mesh has a
+     *         vertex format the file cannot store
+     */
+    public void save(File file) throws IOException {
+        int size = HEADER_SIZE + (data.getCollisionBoxes().length + data.getCollisionSpheres().length + data.getPickUps().length
+                + data.getPieceMaterials().length) * 4;
+        for(float[] hull : data.getCollisionHulls()) {
+            size += 4 + hull.length * 4;
+        }
+        for(Part part : parts) {
+            size += 4 + padded(part.getName().getBytes(StandardCharsets.UTF_8).length) + 4 + 4 + 12 + 4 + 4;
+            size += bufferSize(part.getMesh().getBufferList());
+            for(int lod = 0; lod < part.getMesh().getNumLodLevels(); lod++) {
+                size += bufferSize(part.getMesh().getLodLevel(lod));
+            }
+        }
+        List<VertexBuffer> pickUpBuffers = new ArrayList<>();
+        for(VertexBuffer vertexBuffer : pickUpMesh.getBufferList()) {
+            if(vertexBuffer.getBufferType() != VertexBuffer.Type.TexCoord3) { // the visibility flags belong to the renderer
+                pickUpBuffers.add(vertexBuffer);
+            }
+        }
+        size += bufferSize(pickUpBuffers);
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(data.getCollisionBoxCount());
+            buffer.putInt(data.getCollisionSphereCount());
+            buffer.putInt(data.getCollisionHulls().length);
+            buffer.putInt(data.getPickUpCount());
+            buffer.putInt(parts.size());
+            buffer.putFloat(data.getPickUpSize());
+            buffer.putFloat(data.getPlayerStart().x);
+            buffer.putFloat(data.getPlayerStart().y);
+            buffer.putFloat(data.getPlayerStart().z);
+            writeFloats(buffer, data.getCollisionBoxes());
+            writeFloats(buffer, data.getCollisionSpheres());
+            for(float[] hull : data.getCollisionHulls()) {
+                buffer.putInt(hull.length / 3);
+                writeFloats(buffer, hull);
+            }
+            writeFloats(buffer, data.getPickUps());
+            buffer.asIntBuffer().put(data.getPieceMaterials());
+            buffer.position(buffer.position() + data.getPieceMaterials().length * 4);
+
+            for(Part part : parts) {
+                byte[] name = part.getName().getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(name.length);
+                buffer.put(name);
+                skipPadding(buffer);
+                buffer.putInt(part.getMaterial());
+                buffer.putInt(part.getShadowMode().ordinal());
+                buffer.putFloat(part.getTranslation().x);
+                buffer.putFloat(part.getTranslation().y);
+                buffer.putFloat(part.getTranslation().z);
+                buffer.putInt(part.getMesh().getMode().ordinal());
+                writeVertexBuffers(buffer, part.getMesh().getBufferList());
+                buffer.putInt(part.getMesh().getNumLodLevels());
+                for(int lod = 0; lod < part.getMesh().getNumLodLevels(); lod++) {
+                    writeVertexBuffer(buffer, part.getMesh().getLodLevel(lod));
+                }
+            }
+            writeVertexBuffers(buffer, pickUpBuffers);
+            buffer.force();
+        }
+    }
+
+    private static void writeFloats(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+
+    private static int bufferSize(List<VertexBuffer> vertexBuffers) throws IOException {
+        int size = 4;
+        for(VertexBuffer vertexBuffer : vertexBuffers) {
+            size += bufferSize(vertexBuffer);
+        }
+        return size;
+    }
+
+    private static int bufferSize(VertexBuffer vertexBuffer) throws IOException {
+        if(!isSupported(vertexBuffer.getFormat())) {
+            throw new IOException("Cannot store the vertex format " + vertexBuffer.getFormat() + " of " + vertexBuffer.getBufferType());
+        }
+        return 16 + padded(byteLength(vertexBuffer));
+    }
+
+    private static void writeVertexBuffers(ByteBuffer buffer, List<VertexBuffer> vertexBuffers) {
+        buffer.putInt(vertexBuffers.size());
+        for(VertexBuffer vertexBuffer : vertexBuffers) {
+            writeVertexBuffer(buffer, vertexBuffer);
+        }
+    }
+
+    private static void writeVertexBuffer(ByteBuffer buffer, VertexBuffer vertexBuffer) {
+        buffer.putInt(vertexBuffer.getBufferType().ordinal());
+        buffer.putInt(vertexBuffer.getFormat().ordinal());
+        buffer.putInt(vertexBuffer.getNumComponents());
+        buffer.putInt(byteLength(vertexBuffer));
+        put(buffer, vertexBuffer.getData());
+        skipPadding(buffer);
+    }
+
+    private static int byteLength(VertexBuffer vertexBuffer) {
+        return vertexBuffer.getData().limit() * vertexBuffer.getFormat().getComponentSize();
+    }
+
+    private static void put(ByteBuffer buffer, Buffer data) {
+        if(data instanceof FloatBuffer) {
+            FloatBuffer floats = ((FloatBuffer) data).duplicate();
+            floats.rewind();
+            while(floats.hasRemaining()) {
+                buffer.putFloat(floats.get());
+            }
+        } else if(data instanceof IntBuffer) {
+            IntBuffer ints = ((IntBuffer) data).duplicate();
+            ints.rewind();
+            while(ints.hasRemaining()) {
+                buffer.putInt(ints.get());
+            }
+        } else if(data instanceof ShortBuffer) {
+            ShortBuffer shorts = ((ShortBuffer) data).duplicate();
+            shorts.rewind();
+            while(shorts.hasRemaining()) {
+                buffer.putShort(shorts.get());
+            }
+        } else {
+            ByteBuffer bytes = ((ByteBuffer) data).duplicate();
+            bytes.rewind();
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Converts the original level to a level file.
+     *
+     * @param args [file [pickUpCount]]
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "RollingTheMonkey.level");
+        int pickUpCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        createDefault(pickUpCount, PICKUP_SIZE, PICKUP_RADIUS, PLAYER_START, new CollisionDeriver(new File(COLLISION_CACHE))).save(file);
+
+        long start = System.nanoTime();
+        LevelFile level = load(file);
+        long loaded = System.nanoTime() - start;
+        System.out.println("Wrote " + file + ": " + file.length() + " bytes, " + level.getData().getPickUpCount()
+                + " pickups, " + level.getParts().size() + " meshes, mapped in " + (loaded / 1000) + " us");
+    }
+}
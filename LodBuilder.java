@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.control.LodControl;
+import jme3tools.optimize.LodGenerator;
+
+/**
+ * Bakes levels of detail into meshes and switches them by screen size.
+ * <p>
+ * The levels are index buffers over the vertices of the full mesh, made by
+ * {@link LodGenerator} collapsing edges. A {@link LodControl} picks the level
+ * whose triangles cover about {@link #TRIS_PER_PIXEL} pixels on screen, so a
+ * mesh far away or seen small is drawn with fewer triangles.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public final class LodBuilder {
+
+    /** the share of triangles removed by every level after the full mesh */
+    public static final float[] REDUCTIONS = { 0.5f, 0.75f, 0.9f };
+
+    /** meshes with fewer triangles, like a box, are not worth reducing */
+    public static final int MIN_TRIANGLES = 64;
+
+    public static final float TRIS_PER_PIXEL = 0.5f;
+
+    private LodBuilder() {
+    }
+
+    /**
+     * Bakes the levels of detail into a mesh that has none yet.
+     *
+     * @param mesh the mesh, changed in place
+     * @return mesh
+     */
+    public static Mesh bake(Mesh mesh) {
+        if(mesh.getMode() == Mesh.Mode.Triangles && mesh.getNumLodLevels() == 0 && mesh.getTriangleCount() >= MIN_TRIANGLES) {
+            new LodGenerator(mesh).bakeLods(LodGenerator.TriangleReductionMethod.PROPORTIONAL, REDUCTIONS);
+        }
+        return mesh;
+    }
+
+    /**
+     * Lets a geometry switch the levels of its mesh by screen size. Nothing
+     * happens for a mesh without levels.
+     *
+     * @param geometry the geometry
+     * @return geometry
+     */
+    public static Geometry attach(Geometry geometry) {
+        if(geometry.getMesh().getNumLodLevels() > 0 && geometry.getControl(LodControl.class) == null) {
+            LodControl control = new LodControl();
+            control.setTrisPerPixel(TRIS_PER_PIXEL);
+            geometry.addControl(control);
+        }
+        return geometry;
+    }
+}
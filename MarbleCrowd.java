@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+
+/**
+ * Hundreds of computer controlled marbles sharing the physics space with the
+ * player.
+ * <p>
+ * The marbles use the force, mass and restitution of the player ball. They
+ * are steered in one batched pass per tick over primitive arrays: gather the
+ * locations, pick the nearest pickup that is not collected yet, compute the
+ * forces, apply them. The nearest pickup is found with a ring search over a
+ * {@link PickupGrid}, the one of the simulation when it has one. Targets are
+ * refreshed a few marbles per tick, or right away when the target is
+ * collected, at most {@code MAX_SEARCHES} per tick. A marble that reaches
+ * its target cannot collect it, so it leaves for the nearest other pickup and
+ * does not come back until it reached another one. Marbles without a target
+ * get no force and are left to Bullet deactivation, so they cost nothing once
+ * they stop.
+ * <p>
+ * The marbles push each other and the player around but cannot collect
+ * pickups. Draw them with a {@link CrowdRenderer}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class MarbleCrowd implements PhysicsTickListener, PickupGrid.Filter {
+
+    public static final int CROWD_GROUP = PhysicsCollisionObject.COLLISION_GROUP_04;
+
+    private static final int   RETARGET_TICKS = 30;    // every marble looks for a closer pickup this often
+    private static final float ARRIVE_RADIUS  = 1.0f;  // closer than this the marble has reached its target
+    private static final int   MAX_SEARCHES   = 64;    // target searches per tick, the others wait for the next tick
+    private static final float SLEEP_LINEAR   = 0.8f;
+    private static final float SLEEP_ANGULAR  = 1.0f;
+
+    private final MarbleSimulation simulation;
+    private final PhysicsSpace space;
+    private final PhysicsRigidBody[] bodies;
+    private final int count;
+
+    // per marble, indexed by marble
+    private final float[] spawns;
+    private final float[] locationX;
+    private final float[] locationZ;
+    private final float[] forceX;
+    private final float[] forceZ;
+    private final int[] targets;
+    private final int[] reached; // the last pickup the marble reached, left out of its searches
+
+    private int excluded = -1; // the pickup the current search leaves out
+
+    private final float[] pickUps;
+    private final PickupGrid pickUpGrid;
+    private long tick;
+
+    private final Vector3f location = new Vector3f();
+    private final Vector3f force = new Vector3f();
+
+    /**
+     * Spawns the marbles in rows over the level and adds them to the physics
+     * space of the simulation. Call it while the physics space is not stepping.
+     *
+     * @param simulation the simulation whose pickups are chased
+     * @param count the number of marbles
+     */
+    public MarbleCrowd(MarbleSimulation simulation, int count) {
+        this.simulation = simulation;
+        this.space = simulation.getPhysicsSpace();
+        this.count = count;
+        bodies = new PhysicsRigidBody[count];
+        spawns = new float[count * 3];
+        locationX = new float[count];
+        locationZ = new float[count];
+        forceX = new float[count];
+        forceZ = new float[count];
+        targets = new int[count];
+        reached = new int[count];
+
+        LevelData level = simulation.getLevel();
+        pickUps = level.getPickUps();
+        pickUpGrid = simulation.getPickUpGrid() != null ? simulation.getPickUpGrid()
+                : new PickupGrid(pickUps, level.getPickUpSize(), MarbleSimulation.PICKUP_CELL_SIZE);
+        layOut(level);
+
+        CollisionShape shape = MarbleSimulation.createPlayerShape(); // one shape for all
+        for(int marble = 0; marble < count; marble++) {
+            PhysicsRigidBody body = new PhysicsRigidBody(shape, MarbleSimulation.PLAYER_MASS);
+            body.setRestitution(MarbleSimulation.PLAYER_REST);
+            body.setCollisionGroup(CROWD_GROUP);
+            body.setCollideWithGroups(MarbleSimulation.LEVEL_GROUP | MarbleSimulation.PLAYER_GROUP | CROWD_GROUP);
+            body.setSleepingThresholds(SLEEP_LINEAR, SLEEP_ANGULAR);
+            body.setPhysicsLocation(new Vector3f(spawns[marble * 3], spawns[marble * 3 + 1], spawns[marble * 3 + 2]));
+            bodies[marble] = body;
+            targets[marble] = -1;
+            reached[marble] = -1;
+            space.add(body);
+        }
+        space.addTickListener(this);
+    }
+
+    private void layOut(LevelData level) {
+        // rows inside the bounds of the level boxes, layers on top of each other when the floor is full
+        float[] boxes = level.getCollisionBoxes();
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for(int i = 0; i < boxes.length; i += LevelData.BOX_STRIDE) {
+            minX = Math.min(minX, boxes[i] - boxes[i + 3]);
+            maxX = Math.max(maxX, boxes[i] + boxes[i + 3]);
+            minZ = Math.min(minZ, boxes[i + 2] - boxes[i + 5]);
+            maxZ = Math.max(maxZ, boxes[i + 2] + boxes[i + 5]);
+        }
+        float spacing = 4 * MarbleSimulation.PLAYER_RADIUS + 0.5f;
+        float margin = spacing;
+        int columns = Math.max(1, (int) ((maxX - minX - 2 * margin) / spacing) + 1);
+        int rows = Math.max(1, (int) ((maxZ - minZ - 2 * margin) / spacing) + 1);
+        Vector3f start = level.getPlayerStart();
+
+        int marble = 0;
+        for(int layer = 0; marble < count; layer++) {
+            for(int cell = 0; cell < columns * rows && marble < count; cell++) {
+                float x = minX + margin + (cell % columns) * spacing;
+                float z = minZ + margin + (cell / columns) * spacing;
+                if(FastMath.abs(x - start.x) < spacing && FastMath.abs(z - start.z) < spacing) {
+                    continue; // keep the start of the player free
+                }
+                spawns[marble * 3] = x;
+                spawns[marble * 3 + 1] = start.y + layer * spacing;
+                spawns[marble * 3 + 2] = z;
+                marble++;
+            }
+        }
+    }
+
+    /**
+     * Puts every marble back where it spawned. Call it while the physics space
+     * is not stepping.
+     */
+    public void reset() {
+        for(int marble = 0; marble < count; marble++) {
+            PhysicsRigidBody body = bodies[marble];
+            body.setPhysicsLocation(location.set(spawns[marble * 3], spawns[marble * 3 + 1], spawns[marble * 3 + 2]));
+            body.setLinearVelocity(Vector3f.ZERO);
+            body.setAngularVelocity(Vector3f.ZERO);
+            body.clearForces();
+            body.activate();
+            targets[marble] = -1;
+            reached[marble] = -1;
+        }
+    }
+
+    /**
+     * Removes the marbles from the physics space.
+     */
+    public void destroy() {
+        space.removeTickListener(this);
+        for(PhysicsRigidBody body : bodies) {
+            space.remove(body);
+        }
+    }
+
+    @Override
+    public void prePhysicsTick(PhysicsSpace space, float tpf) {
+        tick++;
+
+        // gather, sleeping marbles have not moved
+        for(int marble = 0; marble < count; marble++) {
+            if(bodies[marble].isActive()) {
+                bodies[marble].getPhysicsLocation(location);
+                locationX[marble] = location.x;
+                locationZ[marble] = location.z;
+            }
+        }
+
+        // steer
+        int retarget = (int) (tick % RETARGET_TICKS);
+        int searches = 0;
+        int first = count > 0 ? (int) (tick % count) : 0; // the marbles waiting for a search take turns
+        for(int turn = 0; turn < count; turn++) {
+            int marble = first + turn < count ? first + turn : first + turn - count;
+            int target = targets[marble];
+            if(target >= 0 && simulation.isCollected(target)) {
+                target = targets[marble] = -1;
+            }
+            if(target >= 0 && distanceTo(marble, target) <= ARRIVE_RADIUS) {
+                reached[marble] = target; // move on, staying would only block the pickup
+                target = targets[marble] = -1;
+            }
+            if((target < 0 || marble % RETARGET_TICKS == retarget) && searches < MAX_SEARCHES) {
+                excluded = reached[marble];
+                target = targets[marble] = pickUpGrid.findNearest(locationX[marble], locationZ[marble], this);
+                excluded = -1;
+                searches++;
+            }
+            forceX[marble] = 0;
+            forceZ[marble] = 0;
+            if(target < 0) {
+                continue;
+            }
+            float distance = distanceTo(marble, target);
+            if(distance > ARRIVE_RADIUS) {
+                float scale = MarbleSimulation.PLAYER_FORCE / distance;
+                forceX[marble] = (pickUps[target * 3] - locationX[marble]) * scale;
+                forceZ[marble] = (pickUps[target * 3 + 2] - locationZ[marble]) * scale;
+            }
+        }
+
+        // scatter, a marble with a force is woken up
+        for(int marble = 0; marble < count; marble++) {
+            if(forceX[marble] != 0 || forceZ[marble] != 0) {
+                PhysicsRigidBody body = bodies[marble];
+                if(!body.isActive()) {
+                    body.activate();
+                }
+                MarbleSimulation.applyTickForce(body, force.set(forceX[marble], 0, forceZ[marble]), tpf);
+            }
+        }
+    }
+
+    private float distanceTo(int marble, int pickUp) {
+        float dx = pickUps[pickUp * 3] - locationX[marble];
+        float dz = pickUps[pickUp * 3 + 2] - locationZ[marble];
+        return FastMath.sqrt(dx * dx + dz * dz);
+    }
+
+    @Override
+    public boolean accept(int index) {
+        return index != excluded && !simulation.isCollected(index); // a collected pickup is not worth chasing
+    }
+
+    @Override
+    public void physicsTick(PhysicsSpace space, float tpf) {
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public PhysicsRigidBody getBody(int marble) {
+        return bodies[marble];
+    }
+
+    /**
+     * @return the number of marbles Bullet has not put to sleep
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for(PhysicsRigidBody body : bodies) {
+            if(body.isActive()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Steps a headless simulation with a crowd and prints the time of a step.
+     *
+     * @param args [marbles [steps [pickUps]]]
+     */
+    public static void main(String[] args) {
+        int marbles = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 60 * 60;
+        int pickUpCount = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        LevelData level = LevelData.createDefault(pickUpCount, 0.5f, 15.0f,
+                new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f));
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(level, true);
+        MarbleCrowd crowd = new MarbleCrowd(simulation, marbles);
+
+        long worst = 0;
+        long start = System.nanoTime();
+        for(int step = 0; step < steps; step++) {
+            long stepStart = System.nanoTime();
+            simulation.step();
+            worst = Math.max(worst, System.nanoTime() - stepStart);
+        }
+        long total = System.nanoTime() - start;
+
+        System.out.println(marbles + " marbles, " + steps + " steps: mean " + (total / steps / 1000) + " us, max "
+                + (worst / 1000) + " us, real time factor " + (steps * MarbleSimulation.TIMESTEP * 1e9f / total)
+                + ", active at the end " + crowd.getActiveCount());
+        crowd.destroy();
+        simulation.destroy();
+    }
+}
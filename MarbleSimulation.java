@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.bullet.objects.PhysicsGhostObject;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.shape.Sphere;
+
+/**
+ * The rules of RollingTheMonkey without any rendering.
+ * <p>
+ * The simulation owns the level body, the player ball and the pickups inside a
+ * {@link PhysicsSpace}. It applies the player force from an input bitmask,
+ * collects pickups and keeps the score. It can live in the space of a
+ * <code>BulletAppState</code> or in a private space stepped with a fixed
+ * timestep by {@link #step()}. Everything visible is reported through an
+ * optional {@link CollisionEventQueue}. The whole state can be captured into a
+ * {@link WorldSnapshot} and restored in time proportional to the pickups that
+ * changed since.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class MarbleSimulation implements PhysicsTickListener, CollisionDispatcher.Handler, PickupGrid.Visitor {
+
+    public static final float PLAYER_DENSITY   = 1200;  // OLK(Java LOL) = 1200, STEEL = 8000, RUBBER = 1000
+    public static final float PLAYER_REST      = 0.1f;  // OLK = 0.1f, STEEL = 0.0f, RUBBER = 1.0f I made these up.
+
+    public static final float PLAYER_RADIUS    = 2.0f;
+    public static final float PLAYER_ACCEL     = 5.0f;
+
+    public static final float PLAYER_VOLUME    = (FastMath.pow(PLAYER_RADIUS, 3) * FastMath.PI) / 3;   // V = 4/3 * PI * R pow 3
+    public static final float PLAYER_MASS      = PLAYER_DENSITY * PLAYER_VOLUME;
+    public static final float PLAYER_FORCE     = 80000 * PLAYER_ACCEL;  // F = M(4m diameter steel ball) * A
+
+    public static final float PICKUP_CELL_SIZE = 4.0f;  // about the size of the player
+
+    /** the camera looks at the ball from here, the input directions are relative to that view */
+    public static final Vector3f VIEW_LOCATION = new Vector3f(0.0f, 12.0f, 21.0f);
+
+    public static final float TIMESTEP         = 1.0f / 60.0f;
+
+    public static final int INPUT_FORWARD      = 1;
+    public static final int INPUT_BACKWARD     = 2;
+    public static final int INPUT_LEFT         = 4;
+    public static final int INPUT_RIGHT        = 8;
+
+    public static final int EVENT_PICKUP_COLLECTED = 1;
+    public static final int EVENT_PICKUP_RESTORED  = 2;
+
+    public static final int LEVEL_GROUP        = PhysicsCollisionObject.COLLISION_GROUP_01;
+    public static final int PLAYER_GROUP       = PhysicsCollisionObject.COLLISION_GROUP_02;
+    public static final int PICKUP_GROUP       = PhysicsCollisionObject.COLLISION_GROUP_03;
+
+    private final PhysicsSpace space;
+    private final boolean ownsSpace;
+    private final LevelData level;
+    private final CollisionEventQueue events;
+
+    private final CollisionDispatcher dispatcher = new CollisionDispatcher();
+    private final PhysicsRigidBody levelBody;
+    private boolean levelBodyEnabled = true;
+    private final PhysicsRigidBody player;
+    private final PickupGrid pickUpGrid;
+    private final PhysicsGhostObject[] pickUpGhosts;
+
+    private final int pickUpCount;
+    private final int levelChecksum; // written into every snapshot, checked by restore
+    private final long[] collected; // one bit per pickup
+    private int score;
+
+    private final int[] dirty; // pickups changed since baseline was captured or restored
+    private final long[] dirtyMarks;
+    private int dirtyCount;
+    private WorldSnapshot baseline;
+    private final WorldSnapshot start;
+    private volatile int input;
+    private FrameProfiler profiler;
+    private long tick;
+
+    private final Vector3f playerLocation = new Vector3f();
+    private final Quaternion playerRotation = new Quaternion();
+    private final Vector3f playerForce = new Vector3f();
+    private final Vector3f viewLeft = new Vector3f();
+
+    /**
+     * Creates the simulation inside an existing physics space.
+     *
+     * @param space the physics space to live in
+     * @param level the level to simulate
+     * @param pickUpGrid true to collect with a {@link PickupGrid}, false to use one ghost per pickup
+     * @param events receives the collected pickups, may be null
+     */
+    public MarbleSimulation(PhysicsSpace space, LevelData level, boolean pickUpGrid, CollisionEventQueue events) {
+        this(space, false, level, pickUpGrid, events);
+    }
+
+    private MarbleSimulation(PhysicsSpace space, boolean ownsSpace, LevelData level, boolean pickUpGrid, CollisionEventQueue events) {
+        this.space = space;
+        this.ownsSpace = ownsSpace;
+        this.level = level;
+        this.events = events;
+
+        levelBody = new PhysicsRigidBody(level.createCollisionShape(), 0);
+        levelBody.setCollisionGroup(LEVEL_GROUP);
+
+        player = new PhysicsRigidBody(createPlayerShape(), PLAYER_MASS);
+        player.setRestitution(PLAYER_REST);
+        player.setCollisionGroup(PLAYER_GROUP);
+        player.setCollideWithGroups(LEVEL_GROUP | PICKUP_GROUP); // the player rolls on the level and touches the pickups
+        player.setPhysicsLocation(level.getPlayerStart());
+
+        pickUpCount = level.getPickUpCount();
+        levelChecksum = level.checksum();
+        collected = new long[(pickUpCount + 63) >>> 6];
+        dirty = new int[pickUpCount];
+        dirtyMarks = new long[collected.length];
+        if(pickUpGrid) {
+            this.pickUpGrid = new PickupGrid(level.getPickUps(), level.getPickUpSize(), PICKUP_CELL_SIZE);
+            pickUpGhosts = new PhysicsGhostObject[0];
+        } else {
+            this.pickUpGrid = null;
+            pickUpGhosts = new PhysicsGhostObject[pickUpCount];
+            SphereCollisionShape pickUpShape = new SphereCollisionShape(level.getPickUpSize());
+            float[] positions = level.getPickUps();
+            for(int index = 0; index < pickUpCount; index++) {
+                PhysicsGhostObject ghost = new PhysicsGhostObject(pickUpShape);
+                ghost.setPhysicsLocation(new Vector3f(positions[index * 3], positions[index * 3 + 1], positions[index * 3 + 2]));
+                ghost.setCollisionGroup(PICKUP_GROUP);
+                ghost.setCollideWithGroups(PLAYER_GROUP); // ghosts never report contacts with the level or with each other
+                dispatcher.setTag(ghost, index);
+                pickUpGhosts[index] = ghost;
+            }
+        }
+        dispatcher.addHandler(PLAYER_GROUP, PICKUP_GROUP, this);
+
+        space.add(levelBody);
+        space.add(player);
+        for(PhysicsGhostObject ghost : pickUpGhosts) {
+            space.add(ghost);
+        }
+        space.addCollisionListener(dispatcher);
+        space.addTickListener(this);
+
+        start = capture(new WorldSnapshot(pickUpCount));
+    }
+
+    /**
+     * @return the render mesh of a player ball, the collision of every ball is derived from it
+     */
+    public static Mesh createPlayerMesh() {
+        return new Sphere(32, 32, 2 * PLAYER_RADIUS);
+    }
+
+    /**
+     * Derives the collision of a player ball from {@link #createPlayerMesh()},
+     * so the ball that is drawn and the ball that rolls stay the same.
+     *
+     * @return a new collision shape, it can be shared by every ball
+     */
+    public static CollisionShape createPlayerShape() {
+        return new CollisionDeriver(null).derive(createPlayerMesh(), Vector3f.ZERO).createCollisionShape();
+    }
+
+    /**
+     * Creates a simulation with its own physics space, stepped by {@link #step()}.
+     * The simulation must be created and stepped on the same thread.
+     *
+     * @param level the level to simulate
+     * @param pickUpGrid true to collect with a {@link PickupGrid}, false to use one ghost per pickup
+     * @return a new simulation
+     */
+    public static MarbleSimulation createHeadless(LevelData level, boolean pickUpGrid) {
+        PhysicsSpace space = new PhysicsSpace(new Vector3f(-10000f, -10000f, -10000f),
+                new Vector3f(10000f, 10000f, 10000f), PhysicsSpace.BroadphaseType.DBVT);
+        space.setAccuracy(TIMESTEP);
+        return new MarbleSimulation(space, true, level, pickUpGrid, null);
+    }
+
+    /**
+     * Advances a headless simulation by exactly one fixed timestep.
+     */
+    public void step() {
+        space.update(TIMESTEP, 1);
+        space.distributeEvents();
+    }
+
+    /**
+     * Removes everything this simulation added to the physics space and
+     * destroys the space if the simulation created it.
+     */
+    public void destroy() {
+        space.removeTickListener(this);
+        space.removeCollisionListener(dispatcher);
+        for(int index = 0; index < pickUpGhosts.length; index++) {
+            if(!isCollected(index)) { // collected ghosts are already out of the space
+                space.remove(pickUpGhosts[index]);
+            }
+        }
+        space.remove(player);
+        if(levelBodyEnabled) {
+            space.remove(levelBody);
+        }
+        if(ownsSpace) {
+            space.destroy();
+        }
+    }
+
+    /**
+     * Adds or removes the single static body of the whole level. It is
+     * removed when something else, like a {@link LevelChunkState}, provides the
+     * level collision. Call it while the physics space is not stepping.
+     *
+     * @param enabled true to collide with the level body
+     */
+    public void setLevelBodyEnabled(boolean enabled) {
+        if(enabled == levelBodyEnabled) {
+            return;
+        }
+        levelBodyEnabled = enabled;
+        if(enabled) {
+            space.add(levelBody);
+        } else {
+            space.remove(levelBody);
+        }
+    }
+
+    public boolean isLevelBodyEnabled() {
+        return levelBodyEnabled;
+    }
+
+    /**
+     * Times pickup collection and collision dispatch.
+     *
+     * @param profiler receives the times as {@link FrameProfiler.Stage#COLLISION}, may be null
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+        dispatcher.setProfiler(profiler);
+    }
+
+    /**
+     * Sets the keys held down, a combination of the INPUT_ flags.
+     *
+     * @param input the input bitmask
+     */
+    public void setInput(int input) {
+        this.input = input;
+    }
+
+    public int getInput() {
+        return input;
+    }
+
+    @Override
+    public void prePhysicsTick(PhysicsSpace space, float tpf) {
+        tick++;
+        computeForce(input, player.getPhysicsLocation(playerLocation), playerForce);
+        if(!Vector3f.ZERO.equals(playerForce)) {
+            applyTickForce(player, playerForce, tpf);
+        }
+    }
+
+    /**
+     * Pushes a body with a force for one physics tick. Call it from
+     * <code>prePhysicsTick</code>.
+     * <p>
+     * Bullet clears the forces once per update, after all the substeps of a
+     * slow frame, so a force applied on every tick would add up and push
+     * harder the lower the frame rate. The force is applied as the impulse
+     * it gives over one tick instead, which does not outlive the tick.
+     *
+     * @param body the body to push
+     * @param force the force, scaled to the impulse in place
+     * @param tpf the length of the tick
+     */
+    public static void applyTickForce(PhysicsRigidBody body, Vector3f force, float tpf) {
+        body.applyImpulse(force.multLocal(tpf), Vector3f.ZERO);
+    }
+
+    /**
+     * Turns an input bitmask into the force on the player. The directions are
+     * relative to a camera at {@link #VIEW_LOCATION} looking at the player.
+     *
+     * @param input the input bitmask
+     * @param location the location of the player
+     * @param store receives the force
+     * @return store
+     */
+    public Vector3f computeForce(int input, Vector3f location, Vector3f store) {
+        store.zero();
+        if(input == 0) {
+            return store;
+        }
+        Vector3f direction = location.subtract(VIEW_LOCATION, store).normalizeLocal();
+        Vector3f.UNIT_Y.cross(direction, viewLeft).normalizeLocal();
+
+        float forward = ((input & INPUT_FORWARD) != 0 ? 1 : 0) - ((input & INPUT_BACKWARD) != 0 ? 1 : 0);
+        float left = ((input & INPUT_LEFT) != 0 ? 1 : 0) - ((input & INPUT_RIGHT) != 0 ? 1 : 0);
+        direction.multLocal(forward).addLocal(viewLeft.multLocal(left));
+
+        if(!Vector3f.ZERO.equals(direction)) {
+            direction.setY(0);                   // stop ball from pushing down or flying up
+            direction.normalizeLocal();          // normalize force
+            direction.multLocal(PLAYER_FORCE);   // scale vector to force
+        }
+        return direction;
+    }
+
+    @Override
+    public void physicsTick(PhysicsSpace space, float tpf) {
+        if(pickUpGrid != null) { // only the grid cells the player sphere overlaps are tested
+            long start = profiler != null ? System.nanoTime() : 0;
+            pickUpGrid.query(player.getPhysicsLocation(playerLocation), 2 * PLAYER_RADIUS, this);
+            if(profiler != null) {
+                profiler.add(FrameProfiler.Stage.COLLISION, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Collects the pickups touched by a ball other than the player, like the
+     * guests of a {@link SessionServer}. Needs the pickup grid. Call it from a
+     * tick listener added after this simulation.
+     *
+     * @param location the center of the ball
+     * @return the number of pickups collected
+     */
+    public int collectAround(Vector3f location) {
+        if(pickUpGrid == null) {
+            throw new IllegalStateException("Only a simulation with a pickup grid collects for other balls");
+        }
+        int before = score;
+        pickUpGrid.query(location, 2 * PLAYER_RADIUS, this);
+        return score - before;
+    }
+
+    @Override
+    public void visit(int index) {
+        collectPickUp(index);
+    }
+
+    @Override
+    public void collide(PhysicsCollisionObject self, int selfTag, PhysicsCollisionObject other, int otherTag) {
+        // self is always the player and other is always a pickup ghost
+        if(otherTag != CollisionDispatcher.NO_TAG && collectPickUp(otherTag)) {
+            space.remove(pickUpGhosts[otherTag]);
+        }
+    }
+
+    private boolean collectPickUp(int index) {
+        // a full queue leaves the pickup in place so it is collected on the next tick
+        if(isCollected(index) || (events != null && !events.offer(EVENT_PICKUP_COLLECTED, index))) {
+            return false;
+        }
+        collected[index >>> 6] |= 1L << index;
+        score++;
+        markDirty(index);
+        return true;
+    }
+
+    private void markDirty(int index) {
+        long mark = 1L << index;
+        if((dirtyMarks[index >>> 6] & mark) == 0) {
+            dirtyMarks[index >>> 6] |= mark;
+            dirty[dirtyCount++] = index;
+        }
+    }
+
+    /**
+     * Puts the player back to the start and brings back every pickup.
+     * Must not be called while the physics space is stepping.
+     */
+    public void reset() {
+        restore(start);
+    }
+
+    /**
+     * Copies the current state into a snapshot. The snapshot becomes the
+     * baseline, so restoring it later only visits the pickups changed since.
+     * Must not be called while the physics space is stepping.
+     *
+     * @param store the snapshot to write, must belong to the same level
+     * @return store
+     */
+    public WorldSnapshot capture(WorldSnapshot store) {
+        float[] state = store.player;
+        player.getPhysicsLocation(playerLocation);
+        state[0] = playerLocation.x;
+        state[1] = playerLocation.y;
+        state[2] = playerLocation.z;
+        player.getPhysicsRotation(playerRotation);
+        state[3] = playerRotation.getX();
+        state[4] = playerRotation.getY();
+        state[5] = playerRotation.getZ();
+        state[6] = playerRotation.getW();
+        player.getLinearVelocity(playerLocation);
+        state[7] = playerLocation.x;
+        state[8] = playerLocation.y;
+        state[9] = playerLocation.z;
+        player.getAngularVelocity(playerLocation);
+        state[10] = playerLocation.x;
+        state[11] = playerLocation.y;
+        state[12] = playerLocation.z;
+
+        System.arraycopy(collected, 0, store.collected, 0, collected.length);
+        store.score = score;
+        store.tick = tick;
+        store.levelChecksum = levelChecksum;
+
+        clearDirty();
+        baseline = store;
+        return store;
+    }
+
+    /**
+     * Returns to the state of a snapshot. Restoring the baseline, the last
+     * snapshot captured or restored, only visits the pickups collected since.
+     * Any other snapshot is compared 64 pickups at a time. Every pickup that
+     * changes is reported to the event queue. Must not be called while the
+     * physics space is stepping.
+     *
+     * @param snapshot the snapshot to restore, must belong to the same level
+     */
+    public void restore(WorldSnapshot snapshot) {
+        if(snapshot.getPickUpCount() != pickUpCount) {
+            throw new IllegalArgumentException("Snapshot of a level with " + snapshot.getPickUpCount() + " pickups");
+        }
+        if(snapshot.getLevelChecksum() != levelChecksum) {
+            throw new IllegalArgumentException("Snapshot of another level");
+        }
+        if(snapshot == baseline) {
+            for(int i = 0; i < dirtyCount; i++) {
+                setCollected(dirty[i], snapshot.isCollected(dirty[i]));
+            }
+        } else {
+            for(int word = 0; word < collected.length; word++) {
+                long changed = collected[word] ^ snapshot.collected[word];
+                while(changed != 0) {
+                    int index = (word << 6) + Long.numberOfTrailingZeros(changed);
+                    setCollected(index, snapshot.isCollected(index));
+                    changed &= changed - 1;
+                }
+            }
+        }
+        clearDirty();
+        baseline = snapshot;
+        score = snapshot.score;
+
+        float[] state = snapshot.player;
+        player.setPhysicsLocation(playerLocation.set(state[0], state[1], state[2]));
+        player.setPhysicsRotation(playerRotation.set(state[3], state[4], state[5], state[6]));
+        player.setLinearVelocity(playerLocation.set(state[7], state[8], state[9]));
+        player.setAngularVelocity(playerLocation.set(state[10], state[11], state[12]));
+        player.clearForces();
+        player.activate();
+    }
+
+    private void setCollected(int index, boolean value) {
+        if(isCollected(index) == value) {
+            return;
+        }
+        collected[index >>> 6] ^= 1L << index;
+        if(pickUpGhosts.length > 0) { // collected ghosts are kept out of the space
+            if(value) {
+                space.remove(pickUpGhosts[index]);
+            } else {
+                space.add(pickUpGhosts[index]);
+            }
+        }
+        if(events != null) {
+            events.offer(value ? EVENT_PICKUP_COLLECTED : EVENT_PICKUP_RESTORED, index);
+        }
+    }
+
+    private void clearDirty() {
+        for(int i = 0; i < dirtyCount; i++) {
+            dirtyMarks[dirty[i] >>> 6] = 0;
+        }
+        dirtyCount = 0;
+    }
+
+    public boolean isCollected(int index) {
+        return (collected[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Copies the collected bits, one bit per pickup, 64 pickups per word.
+     *
+     * @param store receives the bits, at least (pickup count + 63) / 64 long
+     * @return store
+     */
+    public long[] getCollected(long[] store) {
+        System.arraycopy(collected, 0, store, 0, collected.length);
+        return store;
+    }
+
+    public boolean isComplete() {
+        return score >= pickUpCount;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public LevelData getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the {@link LevelData#checksum()} of the level, computed once
+     */
+    public int getLevelChecksum() {
+        return levelChecksum;
+    }
+
+    public PhysicsSpace getPhysicsSpace() {
+        return space;
+    }
+
+    /**
+     * @return the grid the pickups are collected with, null when every pickup has its own ghost
+     */
+    public PickupGrid getPickUpGrid() {
+        return pickUpGrid;
+    }
+
+    public PhysicsRigidBody getPlayer() {
+        return player;
+    }
+}
@@ -0,0 +1,10 @@
+#import "Common/ShaderLib/GLSLCompat.glsllib"
+
+uniform vec4 m_Diffuse;
+uniform vec4 m_Ambient;
+
+varying float lambert;
+
+void main() {
+    gl_FragColor = m_Ambient + m_Diffuse * lambert;
+}
@@ -0,0 +1,31 @@
+#import "Common/ShaderLib/GLSLCompat.glsllib"
+
+uniform mat4 g_ViewProjectionMatrix;
+uniform float g_Time;
+uniform float m_SpinSpeed;
+uniform vec3 m_LightDirection;
+
+attribute vec3 inPosition;  // cube corner relative to the pickup center
+attribute vec3 inNormal;
+attribute vec4 inTexCoord2; // xyz = pickup center, w = spin phase
+attribute float inTexCoord3; // 1.0 = visible, 0.0 = collected
+attribute vec3 inTexCoord4; // the spin axis, the body diagonal of the cube
+
+varying float lambert;
+
+// rotates v around a unit axis
+vec3 spin(vec3 v, vec3 axis, float angle) {
+    float c = cos(angle);
+    float s = sin(angle);
+    return v * c + cross(axis, v) * s + axis * dot(axis, v) * (1.0 - c);
+}
+
+void main() {
+    // rotate(s, s, s) every frame turns the cube by about sqrt(3) * s around its own (1, 1, 1) diagonal
+    float angle = g_Time * m_SpinSpeed * 1.7320508 + inTexCoord2.w;
+    vec3 offset = spin(inPosition, inTexCoord4, angle) * inTexCoord3;
+    vec3 normal = spin(inNormal, inTexCoord4, angle);
+
+    lambert = max(dot(normal, -m_LightDirection), 0.0);
+    gl_Position = g_ViewProjectionMatrix * vec4(inTexCoord2.xyz + offset, 1.0);
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/**
+ * Uniform grid over a packed array of pickup positions.
+ * <p>
+ * The grid covers the x/z bounds of the pickups. Pickup indices are sorted by
+ * cell into one flat array, so a query only reads the cells the query sphere
+ * overlaps and never allocates. Collection cost then depends on the pickups
+ * near the player instead of on every pickup in the level.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class PickupGrid {
+
+    /**
+     * Receives the pickups found by {@link PickupGrid#query}.
+     */
+    public interface Visitor {
+
+        void visit(int index);
+    }
+
+    /**
+     * Decides which pickups {@link PickupGrid#findNearest} may return.
+     */
+    public interface Filter {
+
+        boolean accept(int index);
+    }
+
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    private final float[] positions;
+    private final float pickUpRadius;
+
+    private final float minX;
+    private final float minZ;
+    private final float cellSize;
+    private final int cellsX;
+    private final int cellsZ;
+
+    private final int[] cellStart; // first entry of every cell in cellItems, cellStart[cells] = count
+    private final int[] cellItems; // pickup indices sorted by cell
+
+    /**
+     * Builds the grid. The positions array is kept, not copied.
+     *
+     * @param positions pickup centers packed as x, y, z triples
+     * @param pickUpRadius the collision radius of a pickup
+     * @param cellSize the preferred cell size, grown if the level is too big for it
+     */
+    public PickupGrid(float[] positions, float pickUpRadius, float cellSize) {
+        this.positions = positions;
+        this.pickUpRadius = pickUpRadius;
+
+        int count = positions.length / 3;
+        float minX = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for(int i = 0; i < count; i++) {
+            minX = Math.min(minX, positions[i * 3]);
+            maxX = Math.max(maxX, positions[i * 3]);
+            minZ = Math.min(minZ, positions[i * 3 + 2]);
+            maxZ = Math.max(maxZ, positions[i * 3 + 2]);
+        }
+        if(count == 0) {
+            minX = maxX = minZ = maxZ = 0.0f;
+        }
+
+        float extent = Math.max(maxX - minX, maxZ - minZ);
+        this.cellSize = Math.max(cellSize, extent / (MAX_CELLS_PER_AXIS - 1));
+        this.minX = minX;
+        this.minZ = minZ;
+        this.cellsX = (int) ((maxX - minX) / this.cellSize) + 1;
+        this.cellsZ = (int) ((maxZ - minZ) / this.cellSize) + 1;
+
+        // counting sort of the pickups by cell
+        cellStart = new int[cellsX * cellsZ + 1];
+        cellItems = new int[count];
+        for(int i = 0; i < count; i++) {
+            cellStart[cellOf(i) + 1]++;
+        }
+        for(int cell = 0; cell < cellsX * cellsZ; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        int[] fill = new int[cellsX * cellsZ];
+        for(int i = 0; i < count; i++) {
+            int cell = cellOf(i);
+            cellItems[cellStart[cell] + fill[cell]++] = i;
+        }
+    }
+
+    private int cellOf(int index) {
+        int x = (int) ((positions[index * 3] - minX) / cellSize);
+        int z = (int) ((positions[index * 3 + 2] - minZ) / cellSize);
+        return z * cellsX + x;
+    }
+
+    public int getPickUpCount() {
+        return cellItems.length;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Reports every pickup whose collision sphere overlaps the given sphere.
+     *
+     * @param center the center of the query sphere
+     * @param radius the radius of the query sphere
+     * @param visitor receives the index of every overlapping pickup
+     */
+    public void query(Vector3f center, float radius, Visitor visitor) {
+        float reach = radius + pickUpRadius;
+        float reachSquared = reach * reach;
+
+        int startX = Math.max(0, (int) FastMath.floor((center.x - reach - minX) / cellSize));
+        int endX = Math.min(cellsX - 1, (int) FastMath.floor((center.x + reach - minX) / cellSize));
+        int startZ = Math.max(0, (int) FastMath.floor((center.z - reach - minZ) / cellSize));
+        int endZ = Math.min(cellsZ - 1, (int) FastMath.floor((center.z + reach - minZ) / cellSize));
+
+        for(int z = startZ; z <= endZ; z++) {
+            for(int x = startX; x <= endX; x++) {
+                int cell = z * cellsX + x;
+                for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int index = cellItems[i];
+                    float dx = positions[index * 3] - center.x;
+                    float dy = positions[index * 3 + 1] - center.y;
+                    float dz = positions[index * 3 + 2] - center.z;
+                    if(dx * dx + dy * dy + dz * dz <= reachSquared) {
+                        visitor.visit(index);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the accepted pickup nearest to a point in the x/z plane. The
+     * cells are searched in rings around the cell of the point, and the
+     * search stops as soon as no ring further out can hold a closer pickup,
+     * so the cost depends on the distance to the nearest pickup and not on
+     * the size of the level.
+     *
+     * @param x the x coordinate of the point
+     * @param z the z coordinate of the point
+     * @param filter decides which pickups count
+     * @return the index of the nearest accepted pickup, -1 if there is none
+     */
+    public int findNearest(float x, float z, Filter filter) {
+        int centerX = Math.max(0, Math.min(cellsX - 1, (int) FastMath.floor((x - minX) / cellSize)));
+        int centerZ = Math.max(0, Math.min(cellsZ - 1, (int) FastMath.floor((z - minZ) / cellSize)));
+        int lastRing = Math.max(Math.max(centerX, cellsX - 1 - centerX), Math.max(centerZ, cellsZ - 1 - centerZ));
+
+        int nearest = -1;
+        float nearestDistance = Float.POSITIVE_INFINITY;
+        for(int ring = 0; ring <= lastRing; ring++) {
+            int startX = centerX - ring, endX = centerX + ring;
+            int startZ = centerZ - ring, endZ = centerZ + ring;
+            for(int cellZ = Math.max(0, startZ); cellZ <= Math.min(cellsZ - 1, endZ); cellZ++) {
+                // the top and bottom rows of the ring are whole, the rows between only have their two ends
+                boolean edge = cellZ == startZ || cellZ == endZ;
+                int step = edge ? 1 : endX - startX;
+                for(int cellX = startX; cellX <= endX; cellX += Math.max(1, step)) {
+                    if(cellX < 0 || cellX >= cellsX) {
+                        continue;
+                    }
+                    int cell = cellZ * cellsX + cellX;
+                    for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        int index = cellItems[i];
+                        float dx = positions[index * 3] - x;
+                        float dz = positions[index * 3 + 2] - z;
+                        float distance = dx * dx + dz * dz;
+                        if(distance < nearestDistance && filter.accept(index)) {
+                            nearestDistance = distance;
+                            nearest = index;
+                        }
+                    }
+                }
+            }
+            // every pickup beyond this ring is at least ring cells away from the point
+            float reach = ring * cellSize;
+            if(nearestDistance <= reach * reach) {
+                break;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,6 @@
+#import "Common/ShaderLib/GLSLCompat.glsllib"
+
+// only the depth of the shadow map is used
+void main() {
+    gl_FragColor = vec4(1.0);
+}
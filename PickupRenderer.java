@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.scene.shape.Box;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Draws every pickup of a level with a single mesh and a single draw call.
+ * <p>
+ * Each pickup is a randomly oriented cube. The cube corners are stored as
+ * offsets from the pickup center, the center and a spin phase travel in
+ * <code>TexCoord2</code>, a visibility flag travels in <code>TexCoord3</code>
+ * and the spin axis, the (1, 1, 1) diagonal of the cube, in <code>TexCoord4</code>.
+ * The vertex shader spins the cubes from the <code>Time</code> world parameter,
+ * so the CPU never touches a pickup transform after construction. Collected
+ * pickups are hidden by clearing their visibility flag, which collapses the
+ * cube onto its center. The material has a <code>PreShadow</code> technique
+ * with the same spin, so the pickups cast shadows. A {@link LevelFile} stores
+ * the merged mesh, so a loaded level draws its pickups straight from the
+ * mapped file.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class PickupRenderer extends Geometry {
+
+    public static final String MATERIAL_DEF = "jme3test/games/Pickup.j3md";
+
+    private final int pickUpCount;
+    private final int vertexCount;
+
+    private final ByteBuffer visibility;
+    private final VertexBuffer visibilityBuffer;
+
+    /**
+     * Creates the renderer for pickups centered on the given positions.
+     *
+     * @param name the name of the geometry
+     * @param positions pickup centers packed as x, y, z triples
+     * @param size the half extent of a pickup cube
+     */
+    public PickupRenderer(String name, float[] positions, float size) {
+        this(name, createMesh(positions, size), positions, size);
+    }
+
+    /**
+     * Creates the renderer from a mesh made by {@link #createMesh(float[], float)},
+     * for example one mapped from a {@link LevelFile}. The buffers of the
+     * mesh are used as they are, only the visibility flags are added.
+     *
+     * @param name the name of the geometry
+     * @param mesh the merged pickup cubes, taken over by the renderer
+     * @param positions the pickup centers the mesh was made for, packed as x, y, z triples
+     * @param size the half extent of a pickup cube
+     */
+    public PickupRenderer(String name, Mesh mesh, float[] positions, float size) {
+        super(name);
+
+        pickUpCount = positions.length / 3;
+        vertexCount = pickUpCount == 0 ? 0 : mesh.getVertexCount() / pickUpCount;
+        visibility = BufferUtils.createByteBuffer(mesh.getVertexCount());
+        for(int v = 0; v < visibility.limit(); v++) {
+            visibility.put(v, (byte) 0xFF);
+        }
+
+        visibilityBuffer = new VertexBuffer(Type.TexCoord3);
+        visibilityBuffer.setupData(Usage.Dynamic, 1, Format.UnsignedByte, visibility);
+        visibilityBuffer.setNormalized(true);
+        mesh.setBuffer(visibilityBuffer);
+
+        // the positions are offsets, so the bound has to come from the centers
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        Vector3f center = new Vector3f();
+        for(int pickUp = 0; pickUp < pickUpCount; pickUp++) {
+            center.set(positions[pickUp * 3], positions[pickUp * 3 + 1], positions[pickUp * 3 + 2]);
+            min.minLocal(center);
+            max.maxLocal(center);
+        }
+        float reach = size * FastMath.sqrt(3.0f);
+        if(pickUpCount == 0) {
+            min.zero();
+            max.zero();
+        }
+        mesh.setBound(new BoundingBox(min.subtractLocal(reach, reach, reach), max.addLocal(reach, reach, reach)));
+
+        setMesh(mesh);
+        setShadowMode(ShadowMode.CastAndReceive); // cast through the PreShadow technique, the shadow filter shades the pickups from the depth buffer
+    }
+
+    /**
+     * Merges one randomly oriented cube per pickup into a mesh with the
+     * offsets, normals, centers and spin axes the shader reads. The
+     * visibility flags are not part of it, they are added by the renderer.
+     *
+     * @param positions pickup centers packed as x, y, z triples
+     * @param size the half extent of a pickup cube
+     * @return a new mesh
+     */
+    public static Mesh createMesh(float[] positions, float size) {
+        Box box = new Box(size, size, size);
+        FloatBuffer boxPositions = box.getFloatBuffer(Type.Position);
+        FloatBuffer boxNormals = box.getFloatBuffer(Type.Normal);
+        ShortBuffer boxIndices = (ShortBuffer) box.getBuffer(Type.Index).getData();
+
+        int pickUpCount = positions.length / 3;
+        int vertexCount = box.getVertexCount();
+        int indexCount = boxIndices.limit();
+
+        FloatBuffer offsets = BufferUtils.createFloatBuffer(pickUpCount * vertexCount * 3);
+        FloatBuffer normals = BufferUtils.createFloatBuffer(pickUpCount * vertexCount * 3);
+        FloatBuffer centers = BufferUtils.createFloatBuffer(pickUpCount * vertexCount * 4);
+        FloatBuffer axes = BufferUtils.createFloatBuffer(pickUpCount * vertexCount * 3);
+        IntBuffer indices = BufferUtils.createIntBuffer(pickUpCount * indexCount);
+
+        Quaternion rotation = new Quaternion();
+        Vector3f vertex = new Vector3f();
+        Vector3f axis = new Vector3f();
+
+        for(int pickUp = 0; pickUp < pickUpCount; pickUp++) {
+            float x = positions[pickUp * 3];
+            float y = positions[pickUp * 3 + 1];
+            float z = positions[pickUp * 3 + 2];
+            float phase = FastMath.rand.nextFloat() * FastMath.TWO_PI;
+
+            rotation.fromAngles(
+                    FastMath.rand.nextFloat() * FastMath.TWO_PI,
+                    FastMath.rand.nextFloat() * FastMath.TWO_PI,
+                    FastMath.rand.nextFloat() * FastMath.TWO_PI);
+            // rotate(s, s, s) spins a cube around its own diagonal, wherever that points after the random rotation
+            rotation.mult(axis.set(1, 1, 1), axis).normalizeLocal();
+
+            for(int v = 0; v < vertexCount; v++) {
+                vertex.set(boxPositions.get(v * 3), boxPositions.get(v * 3 + 1), boxPositions.get(v * 3 + 2));
+                rotation.multLocal(vertex);
+                offsets.put(vertex.x).put(vertex.y).put(vertex.z);
+
+                vertex.set(boxNormals.get(v * 3), boxNormals.get(v * 3 + 1), boxNormals.get(v * 3 + 2));
+                rotation.multLocal(vertex);
+                normals.put(vertex.x).put(vertex.y).put(vertex.z);
+
+                centers.put(x).put(y).put(z).put(phase);
+                axes.put(axis.x).put(axis.y).put(axis.z);
+            }
+
+            int baseVertex = pickUp * vertexCount;
+            for(int i = 0; i < indexCount; i++) {
+                indices.put(baseVertex + boxIndices.get(i));
+            }
+        }
+        offsets.flip();
+        normals.flip();
+        centers.flip();
+        axes.flip();
+        indices.flip();
+
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(Type.Position, 3, offsets);
+        mesh.setBuffer(Type.Normal, 3, normals);
+        mesh.setBuffer(Type.TexCoord2, 4, centers);
+        mesh.setBuffer(Type.TexCoord4, 3, axes);
+        mesh.setBuffer(Type.Index, 3, indices);
+        mesh.getBuffer(Type.Position).setUsage(Usage.Static);
+        mesh.getBuffer(Type.Normal).setUsage(Usage.Static);
+        mesh.getBuffer(Type.TexCoord2).setUsage(Usage.Static);
+        mesh.getBuffer(Type.TexCoord4).setUsage(Usage.Static);
+        mesh.updateCounts();
+        return mesh;
+    }
+
+    /**
+     * Creates a material for this renderer.
+     *
+     * @param assetManager the asset manager used to load the material definition
+     * @param color the diffuse color of the pickups
+     * @param lightDirection the direction of the light shading the pickups
+     * @param spinSpeed the spin speed in radians per second
+     * @return a new material
+     */
+    public static Material createMaterial(AssetManager assetManager, ColorRGBA color, Vector3f lightDirection, float spinSpeed) {
+        Material material = new Material(assetManager, MATERIAL_DEF);
+        material.setColor("Diffuse", color);
+        material.setColor("Ambient", color.mult(0.3f));
+        material.setVector3("LightDirection", lightDirection);
+        material.setFloat("SpinSpeed", spinSpeed);
+        return material;
+    }
+
+    public int getPickUpCount() {
+        return pickUpCount;
+    }
+
+    /**
+     * Shows or hides a single pickup. The change is uploaded with the next frame.
+     *
+     * @param index the index of the pickup
+     * @param visible true to show the pickup
+     */
+    public void setVisible(int index, boolean visible) {
+        byte value = visible ? (byte) 0xFF : (byte) 0;
+        int start = index * vertexCount;
+        for(int v = start; v < start + vertexCount; v++) {
+            visibility.put(v, value);
+        }
+        visibilityBuffer.setUpdateNeeded();
+    }
+
+    /**
+     * Shows or hides every pickup.
+     *
+     * @param visible true to show the pickups
+     */
+    public void setAllVisible(boolean visible) {
+        byte value = visible ? (byte) 0xFF : (byte) 0;
+        for(int v = 0; v < visibility.limit(); v++) {
+            visibility.put(v, value);
+        }
+        visibilityBuffer.setUpdateNeeded();
+    }
+
+    public boolean isVisible(int index) {
+        return visibility.get(index * vertexCount) != 0;
+    }
+}
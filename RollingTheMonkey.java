@@ -33,14 +33,7 @@ package jme3test.games;
 
 import com.jme3.app.SimpleApplication;
 import com.jme3.bullet.BulletAppState;
-import com.jme3.bullet.PhysicsSpace;
-import com.jme3.bullet.collision.PhysicsCollisionEvent;
-import com.jme3.bullet.collision.PhysicsCollisionListener;
-import com.jme3.bullet.collision.shapes.BoxCollisionShape;
-import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
-import com.jme3.bullet.collision.shapes.SphereCollisionShape;
-import com.jme3.bullet.control.GhostControl;
-import com.jme3.bullet.control.RigidBodyControl;
+import com.jme3.bullet.BulletAppState.ThreadingType;
 import com.jme3.font.BitmapText;
 import com.jme3.input.KeyInput;
 import com.jme3.input.controls.ActionListener;
@@ -48,84 +41,154 @@ import com.jme3.input.controls.KeyTrigger;
 import com.jme3.light.DirectionalLight;
 import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
-import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
 import com.jme3.post.FilterPostProcessor;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.Spatial;
-import com.jme3.scene.shape.Box;
 import com.jme3.scene.shape.Sphere;
 import com.jme3.shadow.DirectionalLightShadowFilter;
-import java.util.concurrent.Callable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Physics based marble game.
  *
  * @author SkidRunner (Mark E. Picknell)
  */
-public class RollingTheMonkey extends SimpleApplication implements ActionListener, PhysicsCollisionListener {
+public class RollingTheMonkey extends SimpleApplication implements ActionListener {
 
     private static final String MESSAGE         = "Thanks for Playing!";
-    private static final String INFO_MESSAGE    = "Collect all the spinning cubes!\nPress the 'R' key any time to reset!";
+    private static final String INFO_MESSAGE    = "Collect all the spinning cubes!\nPress the 'R' key any time to reset!"
+                                                + "\nPress 'C' to save a checkpoint and 'L' to go back to it!";
 
-    private static final float PLAYER_DENSITY   = 1200;  // OLK(Java LOL) = 1200, STEEL = 8000, RUBBER = 1000
-    private static final float PLAYER_REST      = 0.1f;     // OLK = 0.1f, STEEL = 0.0f, RUBBER = 1.0f I made these up.
-
-    private static final float PLAYER_RADIUS    = 2.0f;
-    private static final float PLAYER_ACCEL     = 5.0f;    //private static final float PLAYER_ACCEL     = 1.0f;//original value
+    private static final float PLAYER_RADIUS    = MarbleSimulation.PLAYER_RADIUS;
 
     private static final float PICKUP_SIZE      = .5f;//0.5
     private static final float PICKUP_RADIUS    = 15.0f;
     private static final int   PICKUP_COUNT     = 16;//16
     private static final float PICKUP_SPEED     = 5.0f;//50 or 5
+    private static final boolean PICKUP_GRID    = true;  // true = collect with PickupGrid, false = one ghost per pickUp
+
+    private static final boolean PARALLEL_PHYSICS = true; // true = bullet steps on its own thread while the frame renders
 
-    private static final float PLAYER_VOLUME    = (FastMath.pow(PLAYER_RADIUS, 3) * FastMath.PI) / 3;   // V = 4/3 * PI * R pow 3
-    private static final float PLAYER_MASS      = PLAYER_DENSITY * PLAYER_VOLUME;
-    private static final float PLAYER_FORCE     = 80000 * PLAYER_ACCEL;  // F = M(4m diameter steel ball) * A
     private static final Vector3f PLAYER_START  = new Vector3f(0.0f, PLAYER_RADIUS * 2, 0.0f);
 
+    private static final boolean RECORD_INPUT   = false; // true = write the input of the session to RECORD_FILE for InputReplay
+    private static final String RECORD_FILE     = "RollingTheMonkey.input";
+    private static final String CHECKPOINT_FILE = "RollingTheMonkey.checkpoint";
+    private static final String LEVEL_FILE      = "RollingTheMonkey.level"; // loaded when it exists, write it with LevelFile
+    private static final String COLLISION_CACHE = "collision-cache"; // the collision shapes derived from the level meshes
+
+    private static final boolean PROBE_ALLOCATIONS = false; // true = log the bytes simpleUpdate allocates per frame
+    private static final int   PROBE_FRAMES     = 600;   // frames between two allocation reports
+
+    private static final boolean ADAPTIVE_SHADOWS = true; // true = shadow quality follows the CPU and GPU time of a frame
+    private static final float FRAME_BUDGET     = 1.0f / 60.0f; // the frame cost the shadow quality is adapted to
+
+    private static final boolean STREAM_LEVEL   = false; // true = the level is built and loaded in tiles around the player
+    private static final float TILE_SIZE        = 8.0f;
+    private static final float TILE_LOAD_RADIUS = 16.0f; // tiles closer than this to the player are loaded
+    private static final float TILE_UNLOAD_RADIUS = 24.0f; // tiles farther than this from the player are unloaded
+    private static final int   TILE_CACHE       = 32;    // unloaded tiles kept for when the player comes back
+
+    private static final int   CROWD_SIZE       = 0;     // computer controlled marbles chasing the pickUps, 0 = none, recordings with a crowd do not replay
+    private static final float CROWD_CULL_DISTANCE = 80.0f; // marbles farther than this from the camera are not drawn
+
+    private static final int   SESSION_PLAYERS  = 0;     // 0 = play alone, 2 or more = play a shared session on a local SessionServer with bots as the other players
+    private static final boolean SESSION_UDP    = false; // true = the session packets go over loopback UDP instead of staying in process
+    private static final int   SESSION_PORT     = 5110;  // the UDP port of the first player, the others follow
+
+    private static final boolean PROFILE_FRAMES = false; // true = show the frame stage times and append them to PROFILE_FILE
+    private static final String PROFILE_FILE    = "RollingTheMonkey-profile.csv";
+    private static final float PROFILE_EXPORT   = 10.0f; // seconds between two exports to PROFILE_FILE
+
     private static final String INPUT_MAPPING_FORWARD   = "INPUT_MAPPING_FORWARD";
     private static final String INPUT_MAPPING_BACKWARD  = "INPUT_MAPPING_BACKWARD";
     private static final String INPUT_MAPPING_LEFT      = "INPUT_MAPPING_LEFT";
     private static final String INPUT_MAPPING_RIGHT     = "INPUT_MAPPING_RIGHT";
     private static final String INPUT_MAPPING_RESET     = "INPUT_MAPPING_RESET";
+    private static final String INPUT_MAPPING_SAVE      = "INPUT_MAPPING_SAVE";
+    private static final String INPUT_MAPPING_LOAD      = "INPUT_MAPPING_LOAD";
 
     public static void main(String[] args) {
         RollingTheMonkey app = new RollingTheMonkey(); //an object of the same type we are in called app is created
         app.start(); //the method start is called by app. Start is either in the app class or its superclass
     }
 
-    private boolean keyForward; //this boolean variable is true when the up arrow key is pressed and false otherwise
-    private boolean keyBackward; //this boolean variable is true when the down arrow key is pressed and false otherwise
-    private boolean keyLeft; //this boolean variable is true when the left arrow key is pressed and false otherwise
-    private boolean keyRight; //this boolean variable is true when the right arrow key is pressed and false otherwise
+    private MarbleSimulation simulation; //the physics and the rules of the game, everything here is only drawing
+    private int pickUpCount; //the number of pickUps in the loaded level
+    private String levelFileName; //the level file the level was loaded from, null for the built in level
 
-    private PhysicsSpace space; //a private object called space of type PhysicsSpace is declared
+    private Geometry playerGeometry; //follows the player body of simulation
+    private PickupRenderer pickUpRenderer; //draws all the pickUps with a single mesh
 
-    private RigidBodyControl player; //a private object called player of type RigidBodyControl is declared
-    private int score; //a private integer variable called score is declared
+    private CollisionEventQueue events; //carries what happened during the physics step to the render thread
+    private InputRecorder recorder; //writes the input of every physics tick when RECORD_INPUT is true
+    private GameFrame frame; //applies events to the pickUps, counts the collected ones and holds the keys pressed, the part of simpleUpdate that AllocationProbeTest checks
+    private WorldSnapshot checkpoint; //the last checkpoint saved with the 'C' key
 
-    private Node pickUps; //a private node called pickUps is declared
+    private final Vector3f playerLocation = new Vector3f(); //reused to read the player location
+    private final Quaternion playerRotation = new Quaternion(); //reused to read the player rotation
 
     private BitmapText infoText; //a private BitmapText object called infoText is declared
     private BitmapText scoreText; //a private BitmapText object called scoreText is declared
     private BitmapText messageText; //a private BitmapText object called messageText is declared
+
+    private AllocationProbe allocationProbe; //measures the bytes allocated by simpleUpdate when PROBE_ALLOCATIONS is true
+    private MarbleCrowd crowd; //the marbles of crowd mode, null when CROWD_SIZE is 0
+    private CrowdRenderer crowdRenderer; //draws every marble of crowd with one instanced draw call
+    private FrameProfiler profiler; //times the stages of every frame when PROFILE_FRAMES is true
+    private SessionServer sessionServer; //runs the physics of a shared session, null when playing alone
+    private SessionClient session; //the connection of this window to sessionServer, it controls player 0
+    private SessionClient[] sessionBots; //the other players of the session, they hold a random direction for a second
+    private Geometry[] sessionPlayers; //draws the other players of the session
+    private final Random sessionRandom = new Random(); //picks the directions of sessionBots
+    private final Vector3f sessionLocation = new Vector3f(); //reused to read the other players
+    private final Quaternion sessionRotation = new Quaternion();
     //the Bitmaptext class is used to make Bitmap fonts
 
     @Override
     public void simpleInitApp() {
         flyCam.setEnabled(false); //the FlyBy Camera is set to false and ignores arrow key input
-        cam.setLocation(new Vector3f(0.0f, 12.0f, 21.0f)); //sets the camera location at a point in 3D space
+        cam.setLocation(MarbleSimulation.VIEW_LOCATION.clone()); //sets the camera location at a point in 3D space, the input directions are relative to it
         viewPort.setBackgroundColor(new ColorRGBA(0.2118f, 0.0824f, 0.6549f, 1.0f)); //sets the color of the background based on RGB
 
-        // init physics
-        BulletAppState bulletState = new BulletAppState(); //an object of BulletAppState type that manages the physics and collisions
-        stateManager.attach(bulletState); //the physics state is attached to the state manager
-        space = bulletState.getPhysicsSpace(); //the physics state is stored in the physical space
-        space.addCollisionListener(this); //the physical space will now understand collisions
+        LevelFile levelFile = loadLevel(); //the meshes, collision boxes and pickUp positions of the level
+        LevelData levelData = levelFile.getData();
+        pickUpCount = levelData.getPickUpCount();
+        events = new CollisionEventQueue(pickUpCount); //big enough for every pickUp to be collected in one frame
+
+        if(SESSION_PLAYERS > 0) {
+            startSession(levelData); //the server owns the physics, this window only sends input and draws the snapshots
+        } else {
+            // init physics
+            BulletAppState bulletState = new BulletAppState(); //an object of BulletAppState type that manages the physics and collisions
+            if(PARALLEL_PHYSICS) {
+                bulletState.setThreadingType(ThreadingType.PARALLEL); //physics runs on a second core while the scene renders
+            }
+            stateManager.attach(bulletState); //the physics state is attached to the state manager
+
+            if(PROFILE_FRAMES) {
+                profiler = new FrameProfiler();
+                bulletState.getPhysicsSpace().addTickListener(profiler); //added before simulation so it times the bullet step and not the game listeners
+                stateManager.attach(new FrameProfilerState(profiler, new File(PROFILE_FILE), PROFILE_EXPORT)); //shows the times next to the score and writes them to a csv file
+            }
+            simulation = new MarbleSimulation(bulletState.getPhysicsSpace(), levelData, PICKUP_GRID, events); //the level, player and pickUps are added to the physics space
+            simulation.setProfiler(profiler); //pickUp collection and collision dispatch are timed
+            if(RECORD_INPUT) {
+                try {
+                    recorder = new InputRecorder(new File(RECORD_FILE), bulletState.getPhysicsSpace().getAccuracy(),
+                            levelData, levelFileName, PICKUP_GRID ? InputRecorder.FLAG_PICKUP_GRID : 0); //the session can be replayed without a window, on the same level
+                } catch(IOException exception) {
+                    Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot record input", exception);
+                }
+            }
+        }
 
         // create light
         DirectionalLight sun = new DirectionalLight(); //a DirectionalLight object called sun is declared and instantiated
@@ -157,116 +220,62 @@ public class RollingTheMonkey extends SimpleApplication implements ActionListene
         logoMaterial.setColor("Specular", ColorRGBA.White);
         logoMaterial.setFloat("Shininess", 32.0f);
 
-        Material materialYellow = new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md");
-        materialYellow.setBoolean("UseMaterialColors",true);
-        materialYellow.setBoolean("HardwareShadows", true);
-        materialYellow.setColor("Diffuse", new ColorRGBA(0.9529f, 0.7843f, 0.0078f, 1.0f));
-        materialYellow.setColor("Specular", ColorRGBA.White);
-        materialYellow.setFloat("Shininess", 64.0f);
-
         // create level spatial
-        // TODO: create your own level mesh
         Node level = new Node("level"); //an object of type Node called level is created
         level.setShadowMode(ShadowMode.CastAndReceive); //shadow interactions are activated for level
 
-        //Geometry floor = new Geometry("floor", new Box(22.0f, 0.5f, 22.0f)); //an object of type Geometry called floor, a node, is created
-       Geometry floor = new Geometry("floor", new Sphere(8, 8, 20f)); //an object of type Geometry called floor, a node, is created
-        floor.setShadowMode(ShadowMode.Receive); //floor will only receive shadows
-        floor.setLocalTranslation(0.0f, -20f, 0.0f); //the local translation is set
-        floor.setMaterial(materialGreen); //floor is given a green material
-
-        Geometry wallNorth = new Geometry("wallNorth", new Box(22.0f, 2.0f, 0.5f)); //an object of type Geometry called wallNorth, a node, is created
-        wallNorth.setLocalTranslation(0.0f, 2.0f, 21.5f);
-        wallNorth.setMaterial(materialRed);
-
-        Geometry wallSouth = new Geometry("wallSouth", new Box(22.0f, 2.0f, 0.5f));
-        wallSouth.setLocalTranslation(0.0f, 2.0f, -21.5f);
-        wallSouth.setMaterial(materialRed);
-
-        Geometry wallEast = new Geometry("wallEast", new Box(0.5f, 2.0f, 21.0f));
-        wallEast.setLocalTranslation(-21.5f, 2.0f, 0.0f);
-        wallEast.setMaterial(materialRed);
-
-        Geometry wallWest = new Geometry("wallWest", new Box(0.5f, 2.0f, 21.0f));
-        wallWest.setLocalTranslation(21.5f, 2.0f, 0.0f);
-        wallWest.setMaterial(materialRed);
-
-        //floor, wallNorth, wallSouth, wallEast, wallWest are all attached to level as children
-        level.attachChild(floor);
-        level.attachChild(wallNorth);
-        level.attachChild(wallSouth);
-        level.attachChild(wallEast);
-        level.attachChild(wallWest);
-
-        // The easy way: level.addControl(new RigidBodyControl(0));
-
-        // create level Shape
-        CompoundCollisionShape levelShape = new CompoundCollisionShape(); //a custom collision shape called levelShape is created
-        BoxCollisionShape floorShape = new BoxCollisionShape(new Vector3f(22.0f, 0.5f, 22.0f)); //a box collision shape called floorShape is created and its size is set
-        //SphereCollisionShape floorShape = new SphereCollisionShape(200);
-        BoxCollisionShape wallNorthShape = new BoxCollisionShape(new Vector3f(22.0f, 2.0f, 0.5f));
-        BoxCollisionShape wallSouthShape = new BoxCollisionShape(new Vector3f(22.0f, 2.0f, 0.5f));
-        BoxCollisionShape wallEastShape = new BoxCollisionShape(new Vector3f(0.5f, 2.0f, 21.0f));
-        BoxCollisionShape wallWestShape = new BoxCollisionShape(new Vector3f(0.5f, 2.0f, 21.0f));
-
-        levelShape.addChildShape(floorShape, new Vector3f(0.0f, -0.5f, 0.0f)); //the box collision shapes from above are attached to levelShape as children at a given location
-        levelShape.addChildShape(wallNorthShape, new Vector3f(0.0f, 2.0f, -21.5f));
-        levelShape.addChildShape(wallSouthShape, new Vector3f(0.0f, 2.0f, 21.5f));
-        levelShape.addChildShape(wallEastShape, new Vector3f(-21.5f, 2.0f, 0.0f));
-        levelShape.addChildShape(wallWestShape, new Vector3f(21.5f, 2.0f, 0.0f));
-
-        level.addControl(new RigidBodyControl(levelShape, 0)); //level is given RigidBodyControl of levelShape
-
-        rootNode.attachChild(level); //level is added as a node to the rootNode in Simple Application
-        space.addAll(level); //physics controls and joints are added to level
-
-        // create Pickups ?
-        // TODO: create your own pickUp mesh
-        //       create single mesh for all pickups
-        // HINT: think particles.
-        pickUps = new Node("pickups");
-
-        Quaternion rotation = new Quaternion(); //an object of type Quaternion called rotation is created
-        Vector3f translation = new Vector3f(0.0f, PICKUP_SIZE * 1.5f, -PICKUP_RADIUS); //an object of type Vector3f called translation is created?
-        int index = 0; //a variable of type int called index is declared and initialized to 0
-        float ammount = FastMath.TWO_PI / PICKUP_COUNT; //a variable of type float called ammount is declared and initialized to the result of the approximation of two pi divided by the pickup count
-        for(float angle = 0; angle < FastMath.TWO_PI; angle += ammount) { //a variable of type float called angle is initialized to 0. checks if angle is less than 2 PI. Angle is incremented by ammount
-            Geometry pickUp = new Geometry("pickUp" + (index++), new Box(PICKUP_SIZE,PICKUP_SIZE, PICKUP_SIZE)); //an object of type geometry called pickup is declared and instantiated
-            pickUp.setShadowMode(ShadowMode.CastAndReceive); //pickUp is given the ability to cast and receive shadows
-            pickUp.setMaterial(materialYellow); //pickUp is given a yellow material
-            pickUp.setLocalRotation(rotation.fromAngles(
-                    FastMath.rand.nextFloat() * FastMath.TWO_PI,
-                    FastMath.rand.nextFloat() * FastMath.TWO_PI,
-                    FastMath.rand.nextFloat() * FastMath.TWO_PI)); //various angles of rotation are given to pickUp
-
-            rotation.fromAngles(0.0f, angle, 0.0f); //rotation is given angles of rotation
-            rotation.mult(translation, pickUp.getLocalTranslation()); //creating a new vector from the quaternion
-            pickUps.attachChild(pickUp); //pickUP is attached to pickUps as a child node
-
-            pickUp.addControl(new GhostControl(new SphereCollisionShape(PICKUP_SIZE))); //the control of a sphere collision shape is given to pickUp
-
-
-            space.addAll(pickUp); //pickUp is added to the physics space
-            //space.addCollisionListener(pickUpControl);
+        Material[] levelMaterials = { materialGreen, materialRed }; //indexed by the LevelFile.MATERIAL_ values
+        for(LevelFile.Part part : levelFile.getParts()) {
+            Geometry geometry = new Geometry(part.getName(), part.getMesh()); //the mesh reads straight from the level file
+            geometry.setLocalTranslation(part.getTranslation());
+            geometry.setMaterial(levelMaterials[part.getMaterial()]);
+            geometry.setShadowMode(part.getShadowMode());
+            LodBuilder.attach(geometry); //detailed meshes switch to their baked levels of detail when small on screen
+            level.attachChild(geometry); //every part is attached to level as a child
         }
-        rootNode.attachChild(pickUps); //pickUps is made a child node of a node in Simple Application
+
+        if(STREAM_LEVEL && simulation != null) { //the tiles are cut from the collision boxes, so they replace both the level node and the level body
+            simulation.setLevelBodyEnabled(false);
+            stateManager.attach(new LevelChunkState(levelData, simulation, levelMaterials,
+                    TILE_SIZE, TILE_LOAD_RADIUS, TILE_UNLOAD_RADIUS, TILE_CACHE));
+        } else {
+            rootNode.attachChild(level); //level is added as a node to the rootNode in Simple Application, its collision shape lives in simulation
+        }
+
+        // create Pickups
+        // TODO: create your own pickUp mesh
+        // all the pickups are drawn with one mesh, the spinning is done in the vertex shader
+        pickUpRenderer = new PickupRenderer("pickUpRenderer", levelFile.getPickUpMesh(),
+                levelData.getPickUps(), levelData.getPickUpSize()); //a loaded level draws the pickUps straight from the mapped file
+        pickUpRenderer.setMaterial(PickupRenderer.createMaterial(assetManager,
+                new ColorRGBA(0.9529f, 0.7843f, 0.0078f, 1.0f), sun.getDirection(), PICKUP_SPEED));
+        rootNode.attachChild(pickUpRenderer); //pickUpRenderer is attached to the rootNode
+        frame = new GameFrame(pickUpRenderer); //the events of simulation hide and show the cubes of pickUpRenderer
 
         // Create player
         // TODO: create your own player mesh
-        Geometry playerGeometry = new Geometry("player", new Sphere(5, 5, 2*PLAYER_RADIUS)); // an object of type Geometry called playerGeometry is declared and instantiated
+        playerGeometry = new Geometry("player", LodBuilder.bake(MarbleSimulation.createPlayerMesh())); // a round ball up close, its levels of detail take over when it is small on screen
+        LodBuilder.attach(playerGeometry);
         playerGeometry.setShadowMode(ShadowMode.CastAndReceive); //playerGeometry can cast and receive shadows
-        playerGeometry.setLocalTranslation(PLAYER_START.clone()); //the local translation of playerGeemetry is set
+        playerGeometry.setLocalTranslation(levelData.getPlayerStart().clone()); //the local translation of playerGeemetry is set
         playerGeometry.setMaterial(logoMaterial); //the material of playerGeometry is set
 
-        // Store control for applying forces
-        // TODO: create your own player control
-        player = new RigidBodyControl(new SphereCollisionShape(2*PLAYER_RADIUS), PLAYER_MASS); //the rigid body control of a sphere collision shape is given to player
-        player.setRestitution(PLAYER_REST); //the bounciness of the player is set
+        rootNode.attachChild(playerGeometry); //playerGeometry is attached as a node to the root node in Simple Application
 
-        playerGeometry.addControl(player); //control of player is given to playerGeometry
+        if(session != null) { //the other players of the session look like the player
+            sessionPlayers = new Geometry[SESSION_PLAYERS - 1];
+            for(int other = 0; other < sessionPlayers.length; other++) {
+                sessionPlayers[other] = playerGeometry.clone(false); //shares the mesh and the material
+                sessionPlayers[other].setName("player" + (other + 1));
+                rootNode.attachChild(sessionPlayers[other]);
+            }
+        }
 
-        rootNode.attachChild(playerGeometry); //playerGeometry is attached as a node to the root node in Simple Application
-        space.addAll(playerGeometry); //playerGeometry is added to the physics space
+        if(CROWD_SIZE > 0 && simulation != null) {
+            crowd = new MarbleCrowd(simulation, CROWD_SIZE); //the marbles are steered together on the physics thread
+            crowdRenderer = new CrowdRenderer("crowd", crowd, new Sphere(12, 12, 2*PLAYER_RADIUS), logoMaterial.clone()); //instances cannot switch levels of detail, so the marbles share one light mesh
+            rootNode.attachChild(crowdRenderer);
+        }
 
         inputManager.addMapping(INPUT_MAPPING_FORWARD, new KeyTrigger(KeyInput.KEY_UP)
                 , new KeyTrigger(KeyInput.KEY_W)); //movement forward is mapped to the up arrow and the w key
@@ -277,146 +286,302 @@ public class RollingTheMonkey extends SimpleApplication implements ActionListene
         inputManager.addMapping(INPUT_MAPPING_RIGHT, new KeyTrigger(KeyInput.KEY_RIGHT)
                 , new KeyTrigger(KeyInput.KEY_D)); //movement right is mapped to the right arrow and the d key
         inputManager.addMapping(INPUT_MAPPING_RESET, new KeyTrigger(KeyInput.KEY_R)); //resetting the game is mapped to the r key
+        inputManager.addMapping(INPUT_MAPPING_SAVE, new KeyTrigger(KeyInput.KEY_C)); //saving a checkpoint is mapped to the c key
+        inputManager.addMapping(INPUT_MAPPING_LOAD, new KeyTrigger(KeyInput.KEY_L)); //going back to the checkpoint is mapped to the l key
         inputManager.addListener(this, INPUT_MAPPING_FORWARD, INPUT_MAPPING_BACKWARD
-                , INPUT_MAPPING_LEFT, INPUT_MAPPING_RIGHT, INPUT_MAPPING_RESET); //listens for inputs
+                , INPUT_MAPPING_LEFT, INPUT_MAPPING_RIGHT, INPUT_MAPPING_RESET
+                , INPUT_MAPPING_SAVE, INPUT_MAPPING_LOAD); //listens for inputs
 
         // init UI
-        infoText = new BitmapText(guiFont, false); //a bitmap font called infoText is created
+        infoText = new BitmapText(guiFont); //a bitmap font called infoText is created
         infoText.setText(INFO_MESSAGE); //the text for the infoText is set
         guiNode.attachChild(infoText); //infoText is attached to guiNode as a child node
 
-        scoreText = new BitmapText(guiFont, false); //a bitmap font called scoreText is created
-        scoreText.setText("Score: 0"); //the text for scoreText is set
+        scoreText = new BitmapText(guiFont); //a bitmap font called scoreText is created
+        updateScoreText(frame.pollScoreLabel(0)); //the text for scoreText is set
         guiNode.attachChild(scoreText); //scoreText is attached to guiNode as a child node
 
-        messageText = new BitmapText(guiFont, false); //a bitmap font called messageText is created
+        messageText = new BitmapText(guiFont); //a bitmap font called messageText is created
         messageText.setText(MESSAGE); //the text for messageText is set
         messageText.setLocalScale(0.0f); //the scale of messageText is set
         guiNode.attachChild(messageText); //messageText is attacshed to guiNode as a child node
 
         infoText.setLocalTranslation(0.0f, cam.getHeight(), 0.0f); //the local translation of infoText is set
-        scoreText.setLocalTranslation((cam.getWidth() - scoreText.getLineWidth()) / 2.0f,
-                scoreText.getLineHeight(), 0.0f); //the local translation of scoreText is set
         messageText.setLocalTranslation((cam.getWidth() - messageText.getLineWidth()) / 2.0f,
                 (cam.getHeight() - messageText.getLineHeight()) / 2, 0.0f); //the local translation of messageText is set
 
         // init shadows
         FilterPostProcessor processor = new FilterPostProcessor(assetManager); //an object of type FilterPostProcessor called processor is declared and initialized. This object manages filters applied to the scene.
-        DirectionalLightShadowFilter filter = new DirectionalLightShadowFilter(assetManager, 2048, 1); //an object of type DirectionalLightShadowFilter called filter is declared and initialized
-        filter.setLight(sun); //the type of light that filter would use is set to sun
-        processor.addFilter(filter); //filter is added to processor
+        if(ADAPTIVE_SHADOWS) { //the shadow filter is created and replaced by the state, starting with a 2048 map and 1 split
+            stateManager.attach(new AdaptiveShadowState(processor, sun, FRAME_BUDGET, 3));
+        } else {
+            DirectionalLightShadowFilter filter = new DirectionalLightShadowFilter(assetManager, 2048, 1); //an object of type DirectionalLightShadowFilter called filter is declared and initialized
+            filter.setLight(sun); //the type of light that filter would use is set to sun
+            processor.addFilter(filter); //filter is added to processor
+        }
+        if(profiler != null) {
+            viewPort.addProcessor(profiler.createFilterStartProbe()); //the probes around processor time the shadow maps and the post processing
+        }
         viewPort.addProcessor(processor); //processor is added to viewPort
+        if(profiler != null) {
+            viewPort.addProcessor(profiler.createFilterEndProbe());
+        }
+
+        if(PROBE_ALLOCATIONS) {
+            allocationProbe = new AllocationProbe(); //simpleUpdate runs on this thread
+        }
 
     }
 
     @Override
     public void simpleUpdate(float tpf) {
-        // Update and position the score
-        scoreText.setText("Score: " + score); //the text that displays the score is being updated based on the score you obtain
-        scoreText.setLocalTranslation((cam.getWidth() - scoreText.getLineWidth()) / 2.0f,
-                scoreText.getLineHeight(), 0.0f); //the location of scoreText is set based on the width and height of the line in scoreText?
+        long updateStart = System.nanoTime(); //the time simpleUpdate takes is given to profiler
+        if(allocationProbe != null) {
+            allocationProbe.begin();
+        }
+
+        if(session != null) {
+            updateSession(tpf); //the snapshots that arrived offer their pickUp changes to events
+        }
+
+        // Apply what happened during the last physics step
+        applyEvents();
+
+        // Update and position the score, only when it changed
+        int score = session != null ? session.getLatest().getScore(0) : frame.getCollected(); //in a session the server counts what this player collected
+        String scoreLabel = frame.pollScoreLabel(score);
+        if(scoreLabel != null) {
+            updateScoreText(scoreLabel);
+        }
+
+        // The pickups are spun by the vertex shader of pickUpRenderer
+
+        //the keys held down are sent to simulation, which pushes the player relative to the camera
+        int input = frame.getInput();
+        if(session != null) {
+            session.setInput(input); //sent to the server with the next update
+            playerGeometry.setLocalTranslation(session.getLocation(0, playerLocation)); //the player is drawn between the two snapshots around the render time
+            playerGeometry.setLocalRotation(session.getRotation(0, playerRotation));
+            for(int other = 0; other < sessionPlayers.length; other++) {
+                sessionPlayers[other].setLocalTranslation(session.getLocation(other + 1, sessionLocation));
+                sessionPlayers[other].setLocalRotation(session.getRotation(other + 1, sessionRotation));
+            }
+        } else {
+            simulation.setInput(input);
+            record(input); //the input applies to the ticks stepped after this frame
 
-        // Rotate all the pickups
-        float pickUpSpeed = PICKUP_SPEED * tpf; //the constant speed of the pickups is set
-        for(Spatial pickUp : pickUps.getChildren()) { //a Spatial called pickUp is being declared. Every time we make a pickUp, we return all the children to pickUps.
-            pickUp.rotate(pickUpSpeed, pickUpSpeed, pickUpSpeed); //pickUp is rotated in all directions
+            //the physics is not stepping during update, so the player body can be read safely
+            playerGeometry.setLocalTranslation(simulation.getPlayer().getPhysicsLocation(playerLocation)); //playerGeometry follows the player body
+            playerGeometry.setLocalRotation(simulation.getPlayer().getPhysicsRotation(playerRotation));
         }
 
-        Vector3f centralForce = new Vector3f(); //an object of type Vector3f called centralForce is declared and initialized to 0
+        cam.lookAt(playerLocation, Vector3f.UNIT_Y); //the camera follows player based on player's location
+        if(crowdRenderer != null) {
+            crowdRenderer.update(cam, CROWD_CULL_DISTANCE); //after lookAt, so the marbles are culled against this frame's view
+        }
 
-        //the input from the user triggers the retrieval of a positive or negative vector based on the direction of the camera
-        if(keyForward) centralForce.addLocal(cam.getDirection());
-        if(keyBackward) centralForce.addLocal(cam.getDirection().negate());
-        if(keyLeft) centralForce.addLocal(cam.getLeft());
-        if(keyRight) centralForce.addLocal(cam.getLeft().negate());
+        if(profiler != null) {
+            profiler.add(FrameProfiler.Stage.UPDATE, System.nanoTime() - updateStart);
+        }
 
-        if(!Vector3f.ZERO.equals(centralForce)) {
-            centralForce.setY(0);                   // stop ball from pushing down or flying up
-            centralForce.normalizeLocal();          // normalize force
-            centralForce.multLocal(PLAYER_FORCE);   // scale vector to force
+        if(allocationProbe != null) {
+            allocationProbe.end();
+            if(allocationProbe.getSamples() >= PROBE_FRAMES) { //the report is outside of the measured section
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.INFO,
+                        "simpleUpdate only, without physics and rendering: allocated {0} bytes per frame on average, {1} at most",
+                        new Object[] { allocationProbe.getAverage(), allocationProbe.getMax() });
+                allocationProbe.clear();
+            }
+        }
+    }
 
-            player.applyCentralForce(centralForce); // apply force to player
+    private void applyEvents() {
+        if(frame.drain(events) > 0) { //the pickUps are hidden and shown by frame
+            messageText.setLocalScale(frame.isComplete() ? 1.0f : 0.0f); //messageText is shown when every pickUp is collected, by anyone in a session
         }
+    }
 
-        cam.lookAt(player.getPhysicsLocation(), Vector3f.UNIT_Y); //the camera follows player based on player's location
+    private void updateScoreText(String label) {
+        scoreText.setText(label); //the text that displays the score is being updated based on the score you obtain
+        scoreText.setLocalTranslation((cam.getWidth() - scoreText.getLineWidth()) / 2.0f,
+                scoreText.getLineHeight(), 0.0f); //the location of scoreText is set based on the width and height of the line in scoreText
     }
 
     @Override
     public void onAction(String name, boolean isPressed, float tpf) {
         switch(name) { //the case that is checked is based on what the input the user presses
             case INPUT_MAPPING_FORWARD:
-                keyForward = isPressed; //if the user presses the up arrow or the w key, the keyForward variable is true. This applies a force to player in simpleUpdate
+                frame.setKey(MarbleSimulation.INPUT_FORWARD, isPressed); //while the user holds the up arrow or the w key, simpleUpdate sends this bit and simulation applies a force to player
                 break;
             case INPUT_MAPPING_BACKWARD:
-                keyBackward = isPressed;
+                frame.setKey(MarbleSimulation.INPUT_BACKWARD, isPressed);
                 break;
             case INPUT_MAPPING_LEFT:
-                keyLeft = isPressed;
+                frame.setKey(MarbleSimulation.INPUT_LEFT, isPressed);
                 break;
             case INPUT_MAPPING_RIGHT:
-                keyRight = isPressed;
+                frame.setKey(MarbleSimulation.INPUT_RIGHT, isPressed);
                 break;
             case INPUT_MAPPING_RESET:
-                enqueue(new Callable<Void>() {
-                    @Override
-                    public Void call() {
-                        reset();
-                        return null;
-                    }
-                });
+                if(isPressed && session == null) { //in a session the server owns the world
+                    reset(); //onAction runs in update, while the physics is not stepping, so no Callable is needed
+                }
+                break;
+            case INPUT_MAPPING_SAVE:
+                if(isPressed && session == null) {
+                    saveCheckpoint(); //onAction runs in update, while the physics is not stepping
+                }
+                break;
+            case INPUT_MAPPING_LOAD:
+                if(isPressed && session == null) {
+                    loadCheckpoint();
+                }
                 break;
         }
     }
-    @Override
-    public void collision(PhysicsCollisionEvent event) {
-        //this method receives an object that stores all the physical collision information
-        Spatial nodeA = event.getNodeA(); //The Spatial called nodeA is being set as the value of NodeA in event
-        Spatial nodeB = event.getNodeB(); //The Spatial called nodeB is being set as the value of NodeB in event
-
-        String nameA = nodeA == null ? "" : nodeA.getName(); //checks to see if nodeA has a name
-        String nameB = nodeB == null ? "" : nodeB.getName(); //checks to see if nodeB has a name
-
-        if(nameA.equals("player") && nameB.startsWith("pickUp")) { //checks to see if the labels of the nodes are what they are supposed to be
-            GhostControl pickUpControl = nodeB.getControl(GhostControl.class); //a GhostControl called pickUpControl is being set to the value of a GhostControl in nodeB
-            if(pickUpControl != null && pickUpControl.isEnabled()) { //checks to see if pickUpControl is not null and pickUpControl is enabled
-                pickUpControl.setEnabled(false); //pickUpControl is set to false
-                nodeB.removeFromParent(); //nodeB is removed from its parent node
-                nodeB.setLocalScale(0.0f); //nodeB is scaled locally
-                score += 1; //score is incremented by 1
-                if(score >= PICKUP_COUNT) { //checks if the score is greater than or equal to pickup count
-                    messageText.setLocalScale(1.0f); //messageText is scaled locally
+    private LevelFile loadLevel() {
+        File file = new File(LEVEL_FILE);
+        if(file.exists()) {
+            try {
+                long start = System.nanoTime();
+                LevelFile level = LevelFile.load(file); //the file is memory mapped, the meshes are not copied
+                levelFileName = LEVEL_FILE;
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.INFO, "Loaded {0} pickUps and {1} meshes in {2} ms",
+                        new Object[] { level.getData().getPickUpCount(), level.getParts().size(), (System.nanoTime() - start) / 1000000 });
+                return level;
+            } catch(IOException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot load level, using the default", exception);
+            }
+        }
+        return LevelFile.createDefault(PICKUP_COUNT, PICKUP_SIZE, PICKUP_RADIUS, PLAYER_START,
+                new CollisionDeriver(new File(COLLISION_CACHE))); //the collision is derived from the level meshes
+    }
+
+    private void record(int input) {
+        if(recorder != null) {
+            try {
+                recorder.record(simulation.getTick(), input);
+            } catch(IOException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Input recording stopped", exception);
+                recorder = null;
+            }
+        }
+    }
+
+    private void startSession(LevelData levelData) {
+        SessionChannel[] serverChannels = new SessionChannel[SESSION_PLAYERS];
+        SessionClient[] clients = new SessionClient[SESSION_PLAYERS];
+        try {
+            for(int player = 0; player < SESSION_PLAYERS; player++) {
+                SessionChannel clientChannel;
+                if(SESSION_UDP) {
+                    serverChannels[player] = SessionChannel.bindUdp(SESSION_PORT + player);
+                    clientChannel = SessionChannel.connectUdp(SESSION_PORT + player);
+                } else {
+                    SessionChannel[] pair = SessionChannel.createLocalPair();
+                    serverChannels[player] = pair[0];
+                    clientChannel = pair[1];
                 }
+                clients[player] = new SessionClient(player, clientChannel, SESSION_PLAYERS, pickUpCount, player == 0 ? events : null); //only this window reports the pickUps
             }
-        } else if(nameA.startsWith("pickUp") && nameB.equals("player")) { //checks to see if the labels of the nodes are what they are supposed to be
-            GhostControl pickUpControl = nodeA.getControl(GhostControl.class); //a GhostControl called pickUpControl is being set to the value of a GhostControl in nodeA
-            if(pickUpControl != null && pickUpControl.isEnabled()) { //checks to see if pickUpControl is not null and pickUpControl is enabled
-                pickUpControl.setEnabled(false); //pickUpControl is set to false
-                nodeA.setLocalScale(0.0f); //nodeA is scaled locally
-                score += 1; //score is incremented by 1
-                if(score >= PICKUP_COUNT) { //checks if the score is greater than or equal to pickup count
-                    messageText.setLocalScale(1.0f); //messageText is scaled locally
+        } catch(IOException exception) {
+            throw new IllegalStateException("Cannot open the session channels", exception);
+        }
+        session = clients[0];
+        sessionBots = new SessionClient[SESSION_PLAYERS - 1];
+        System.arraycopy(clients, 1, sessionBots, 0, sessionBots.length);
+        sessionServer = new SessionServer(levelData, serverChannels);
+        sessionServer.start();
+    }
+
+    private void updateSession(float tpf) {
+        session.update(tpf);
+        for(SessionClient bot : sessionBots) {
+            if(sessionRandom.nextInt(60) == 0) {
+                bot.setInput(sessionRandom.nextInt(16)); //about once a second a new direction
+            }
+            bot.update(tpf); //reads its snapshots, so the channel does not fill up
+        }
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        if(sessionServer != null) {
+            try {
+                sessionServer.stop();
+                session.close();
+                for(SessionClient bot : sessionBots) {
+                    bot.close();
                 }
+            } catch(IOException | InterruptedException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot stop the session", exception);
+            }
+        }
+        if(recorder != null) {
+            try {
+                recorder.close(simulation.getTick()); //the replay runs up to the last tick of the session
+            } catch(IOException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot close input recording", exception);
             }
         }
     }
 
     private void reset() {
-        // Reset the pickups
-        for(Spatial pickUp : pickUps.getChildren()) {  //a Spatial called pickUp is being declared. Every time we make a pickUp, we return all the children to pickUps.
-            GhostControl pickUpControl = pickUp.getControl(GhostControl.class); //a GhostControl called pickUpControl is being set to the value of a GhostControl in pickUp
-            if(pickUpControl != null) { //if pickUpControl is not null, the ghost object remains in the physics space
-                pickUpControl.setEnabled(true);
+        // Apply the events that are still queued so they do not undo the reset
+        applyEvents();
+        record(frame.getInput() | InputRecorder.RESET); //the replay resets at the same tick
+        // Reset the pickups, the player and the score, only the pickups that changed are visited
+        simulation.reset();
+        if(crowd != null) {
+            crowd.reset();
+        }
+        // Show the pickups that came back
+        applyEvents();
+    }
+
+    private void saveCheckpoint() {
+        applyEvents();
+        if(checkpoint == null || checkpoint.getPickUpCount() != pickUpCount) {
+            checkpoint = new WorldSnapshot(pickUpCount);
+        }
+        simulation.capture(checkpoint); //the state of the world is copied into flat arrays
+        try {
+            checkpoint.save(new File(CHECKPOINT_FILE)); //the run can restart from here in a later session
+        } catch(IOException exception) {
+            Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot save checkpoint", exception);
+        }
+    }
+
+    private void loadCheckpoint() {
+        if(checkpoint == null) { //no checkpoint in this session, try the one saved by the last session
+            try {
+                checkpoint = WorldSnapshot.load(new File(CHECKPOINT_FILE));
+            } catch(IOException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.INFO, "No checkpoint to load", exception);
+                return;
             }
-            pickUp.setLocalScale(1.0f); //the pickUp is scaled locally
         }
-        // Reset the player
-        player.setPhysicsLocation(PLAYER_START.clone()); //the location of player is reset
-        player.setAngularVelocity(Vector3f.ZERO.clone()); //the angular velocity of player is reset
-        player.setLinearVelocity(Vector3f.ZERO.clone()); //the linear velocity of player is reset
-        // Reset the score
-        score = 0; //score is set to 0
-        // Reset the message
-        messageText.setLocalScale(0.0f); //messageText is scaled locally
+        if(checkpoint.getLevelChecksum() != simulation.getLevelChecksum()) {
+            Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.INFO, "The checkpoint belongs to another level");
+            checkpoint = null;
+            return;
+        }
+        if(recorder != null) { //InputReplay can only replay resets, not checkpoints
+            Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Input recording stopped at a checkpoint");
+            try {
+                recorder.close(simulation.getTick());
+            } catch(IOException exception) {
+                Logger.getLogger(RollingTheMonkey.class.getName()).log(Level.WARNING, "Cannot close input recording", exception);
+            }
+            recorder = null;
+        }
+        applyEvents();
+        simulation.restore(checkpoint);
+        if(crowd != null) { //the checkpoint does not hold the marbles, they start over like after a reset
+            crowd.reset();
+        }
+        applyEvents();
     }
 
 }
\ No newline at end of file
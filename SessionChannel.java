@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One end of the unreliable packet link between a {@link SessionServer} and a
+ * {@link SessionClient}. Packets may be lost but are never split. Both ends
+ * never block.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public abstract class SessionChannel implements Closeable {
+
+    public static final int MAX_PACKET_SIZE = 1200; // stays below the usual network MTU
+
+    /**
+     * Sends the remaining bytes of a packet.
+     *
+     * @param packet the packet, consumed
+     * @throws IOException if the packet cannot be sent
+     */
+    public abstract void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Reads the next packet, if there is one.
+     *
+     * @param packet cleared and filled with the packet, flipped for reading
+     * @return false if no packet was waiting
+     * @throws IOException if the channel failed
+     */
+    public abstract boolean receive(ByteBuffer packet) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Creates two connected ends that pass packets between threads of one
+     * process.
+     *
+     * @return the server end and the client end
+     */
+    public static SessionChannel[] createLocalPair() {
+        Queue<byte[]> toClient = new ConcurrentLinkedQueue<>();
+        Queue<byte[]> toServer = new ConcurrentLinkedQueue<>();
+        return new SessionChannel[] { new LocalChannel(toClient, toServer), new LocalChannel(toServer, toClient) };
+    }
+
+    /**
+     * Opens the server end of a UDP link on the loopback address. The client
+     * is whoever sends the first packet.
+     *
+     * @param port the port to listen on
+     * @return the server end
+     * @throws IOException if the port cannot be bound
+     */
+    public static SessionChannel bindUdp(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.configureBlocking(false);
+        return new UdpChannel(channel, null);
+    }
+
+    /**
+     * Opens the client end of a UDP link to a server on the loopback address.
+     *
+     * @param port the port of the server
+     * @return the client end
+     * @throws IOException if the channel cannot be opened
+     */
+    public static SessionChannel connectUdp(int port) throws IOException {
+        SocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(server);
+        channel.configureBlocking(false);
+        return new UdpChannel(channel, server);
+    }
+
+    private static class LocalChannel extends SessionChannel {
+
+        private final Queue<byte[]> out;
+        private final Queue<byte[]> in;
+
+        LocalChannel(Queue<byte[]> out, Queue<byte[]> in) {
+            this.out = out;
+            this.in = in;
+        }
+
+        @Override
+        public void send(ByteBuffer packet) {
+            byte[] bytes = new byte[packet.remaining()];
+            packet.get(bytes);
+            out.add(bytes);
+        }
+
+        @Override
+        public boolean receive(ByteBuffer packet) {
+            byte[] bytes = in.poll();
+            if(bytes == null) {
+                return false;
+            }
+            packet.clear();
+            packet.put(bytes);
+            packet.flip();
+            return true;
+        }
+    }
+
+    private static class UdpChannel extends SessionChannel {
+
+        private final DatagramChannel channel;
+        private SocketAddress peer;
+
+        UdpChannel(DatagramChannel channel, SocketAddress peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+
+        @Override
+        public void send(ByteBuffer packet) throws IOException {
+            if(peer != null) { // the server does not know the client before its first packet
+                channel.send(packet, peer);
+            }
+        }
+
+        @Override
+        public boolean receive(ByteBuffer packet) throws IOException {
+            packet.clear();
+            SocketAddress sender = channel.receive(packet);
+            if(sender == null) {
+                return false;
+            }
+            if(peer == null) {
+                peer = sender;
+            }
+            packet.flip();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
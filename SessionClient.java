@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The client end of a shared session run by a {@link SessionServer}.
+ * <p>
+ * Sends the input bitmask and the sequence of the newest snapshot it has,
+ * decodes the snapshots against the states it kept and draws the players a
+ * little in the past. The decoded states are kept in a short buffer ordered
+ * by tick, a late packet included, and the players are interpolated between
+ * the two states around the render time. Pickups that change are reported to
+ * an event queue like the events of a local {@link MarbleSimulation}. Call
+ * every method from one thread.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SessionClient implements Closeable {
+
+    /** the players are drawn this many ticks behind the newest snapshot, two send intervals */
+    public static final float INTERPOLATION_TICKS = SessionServer.SEND_TICKS * 2;
+
+    private static final int BUFFERED = 8; // states kept for interpolation, a few more than INTERPOLATION_TICKS covers
+
+    private static final Logger logger = Logger.getLogger(SessionClient.class.getName());
+
+    private final int player;
+    private final SessionChannel channel;
+    private final CollisionEventQueue events;
+    private final SnapshotCodec.State[] history = new SnapshotCodec.State[SessionServer.HISTORY];
+
+    private final SnapshotCodec.State[] buffered = new SnapshotCodec.State[BUFFERED]; // ordered by tick, oldest first
+    private int bufferedCount;
+    private final SnapshotCodec.State empty; // stands in until the first snapshot arrives
+    private final SnapshotCodec.State shown; // the pickups reported to events so far
+    private final SnapshotCodec.State decoded; // a packet is decoded here and only kept when it was whole
+    private float renderTick;
+    private int input;
+    private long received;
+
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(SessionChannel.MAX_PACKET_SIZE);
+    private final Vector3f from = new Vector3f();
+    private final Quaternion fromRotation = new Quaternion();
+
+    /**
+     * @param player the player this client controls
+     * @param channel the client end of the channel to the server
+     * @param playerCount the number of players of the session
+     * @param pickUpCount the number of pickups of the level
+     * @param events receives the pickups collected and restored, may be null
+     */
+    public SessionClient(int player, SessionChannel channel, int playerCount, int pickUpCount, CollisionEventQueue events) {
+        this.player = player;
+        this.channel = channel;
+        this.events = events;
+        for(int i = 0; i < history.length; i++) {
+            history[i] = new SnapshotCodec.State(playerCount, pickUpCount);
+        }
+        for(int i = 0; i < buffered.length; i++) {
+            buffered[i] = new SnapshotCodec.State(playerCount, pickUpCount);
+        }
+        empty = new SnapshotCodec.State(playerCount, pickUpCount);
+        shown = new SnapshotCodec.State(playerCount, pickUpCount);
+        decoded = new SnapshotCodec.State(playerCount, pickUpCount);
+    }
+
+    /**
+     * Sets the keys held down, a combination of the MarbleSimulation INPUT_ flags.
+     *
+     * @param input the input bitmask
+     */
+    public void setInput(int input) {
+        this.input = input;
+    }
+
+    /**
+     * Reads the snapshots that arrived, advances the render time and sends the
+     * input. Call it once per frame.
+     *
+     * @param tpf the time since the last update in seconds
+     */
+    public void update(float tpf) {
+        try {
+            while(channel.receive(packet)) {
+                if(packet.remaining() > 0 && packet.get(0) == SnapshotCodec.SNAPSHOT) {
+                    receive();
+                }
+            }
+        } catch(IOException | RuntimeException exception) {
+            logger.log(Level.WARNING, "Cannot read snapshot", exception);
+        }
+
+        SnapshotCodec.State latest = getLatest();
+        if(latest.getSequence() != SnapshotCodec.NO_BASELINE) {
+            // follow the server clock but stay behind the newest snapshot
+            float target = latest.getTick() - INTERPOLATION_TICKS;
+            renderTick += tpf / MarbleSimulation.TIMESTEP;
+            if(Math.abs(renderTick - target) > INTERPOLATION_TICKS * 2) {
+                renderTick = target;
+            }
+            renderTick = Math.min(renderTick, latest.getTick());
+        }
+
+        packet.clear();
+        packet.put(SnapshotCodec.INPUT);
+        packet.put((byte) player);
+        packet.put((byte) input);
+        packet.putInt(latest.getSequence());
+        packet.flip();
+        try {
+            channel.send(packet);
+        } catch(IOException exception) {
+            logger.log(Level.WARNING, "Cannot send input", exception);
+        }
+    }
+
+    private void receive() {
+        int sequence = SnapshotCodec.peekSequence(packet);
+        int baselineSequence = SnapshotCodec.peekBaseline(packet);
+        if(sequence <= getLatest().getSequence() - SessionServer.HISTORY) {
+            return; // its slot in history is taken by a newer state
+        }
+        SnapshotCodec.State baseline = null;
+        if(baselineSequence != SnapshotCodec.NO_BASELINE) {
+            baseline = history[baselineSequence % history.length];
+            if(baseline.getSequence() != baselineSequence) {
+                return; // the baseline is gone, the server moves on once a newer acknowledgment arrives
+            }
+        }
+        SnapshotCodec.State state = history[sequence % history.length]; // the server never uses a baseline this old
+        if(state.getSequence() == sequence) {
+            return; // repeated
+        }
+        SnapshotCodec.decode(packet, baseline, decoded); // a broken packet throws and leaves history as it was
+        state.set(decoded);
+        received++;
+
+        boolean newest = state.getTick() > getLatest().getTick() || bufferedCount == 0;
+        buffer(state);
+        if(newest) {
+            reportPickUps();
+        }
+    }
+
+    private void buffer(SnapshotCodec.State state) {
+        int position = bufferedCount;
+        while(position > 0 && buffered[position - 1].getTick() > state.getTick()) {
+            position--;
+        }
+        if(position > 0 && buffered[position - 1].getTick() == state.getTick()) {
+            return;
+        }
+        SnapshotCodec.State slot;
+        if(bufferedCount == buffered.length) {
+            if(position == 0) {
+                return; // older than every state kept
+            }
+            slot = buffered[0]; // the oldest state makes room
+            System.arraycopy(buffered, 1, buffered, 0, position - 1);
+            position--;
+        } else {
+            slot = buffered[bufferedCount];
+            System.arraycopy(buffered, position, buffered, position + 1, bufferedCount - position);
+            bufferedCount++;
+        }
+        slot.set(state);
+        buffered[position] = slot;
+    }
+
+    private void reportPickUps() {
+        if(events == null) {
+            return;
+        }
+        SnapshotCodec.State latest = getLatest();
+        for(int word = 0; word < latest.collected.length; word++) {
+            long changed = latest.collected[word] ^ shown.collected[word];
+            while(changed != 0) {
+                long bit = changed & -changed;
+                int index = (word << 6) + Long.numberOfTrailingZeros(changed);
+                boolean collected = (latest.collected[word] & bit) != 0;
+                if(!events.offer(collected ? MarbleSimulation.EVENT_PICKUP_COLLECTED : MarbleSimulation.EVENT_PICKUP_RESTORED, index)) {
+                    return; // the rest is reported after the next drain
+                }
+                shown.collected[word] ^= bit;
+                changed ^= bit;
+            }
+        }
+    }
+
+    /**
+     * Interpolates the location of a player at the render time.
+     *
+     * @param player the player
+     * @param store receives the location
+     * @return store
+     */
+    public Vector3f getLocation(int player, Vector3f store) {
+        int next = findNext();
+        buffered[Math.max(0, next - 1)].getLocation(player, from);
+        getState(next).getLocation(player, store);
+        return store.set(from.interpolateLocal(store, getBlend(next)));
+    }
+
+    /**
+     * Interpolates the rotation of a player at the render time.
+     *
+     * @param player the player
+     * @param store receives the rotation
+     * @return store
+     */
+    public Quaternion getRotation(int player, Quaternion store) {
+        int next = findNext();
+        buffered[Math.max(0, next - 1)].getRotation(player, fromRotation);
+        getState(next).getRotation(player, store);
+        return store.slerp(fromRotation, store, getBlend(next));
+    }
+
+    /**
+     * @return the first buffered state at or after the render time, the newest when all are before it
+     */
+    private int findNext() {
+        int next = 0;
+        while(next < bufferedCount - 1 && buffered[next].getTick() < renderTick) {
+            next++;
+        }
+        return next;
+    }
+
+    private SnapshotCodec.State getState(int index) {
+        return bufferedCount > 0 ? buffered[index] : empty;
+    }
+
+    private float getBlend(int next) {
+        if(next == 0) {
+            return 1;
+        }
+        long previousTick = buffered[next - 1].getTick();
+        long span = buffered[next].getTick() - previousTick;
+        return FastMath.clamp((renderTick - previousTick) / span, 0, 1);
+    }
+
+    public float getRenderTick() {
+        return renderTick;
+    }
+
+    /**
+     * @return the newest state received, not interpolated
+     */
+    public SnapshotCodec.State getLatest() {
+        return getState(bufferedCount - 1);
+    }
+
+    public int getPlayer() {
+        return player;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the authoritative simulation of a shared session on its own thread.
+ * <p>
+ * Player 0 is the player ball of a headless {@link MarbleSimulation}, the
+ * other players are guest balls driven by the same force. The server steps at
+ * the fixed {@link MarbleSimulation#TIMESTEP}, applies the latest input of
+ * every client and owns the pickups and the scores. Every few ticks it sends
+ * each client a {@link SnapshotCodec} packet encoded against the last
+ * snapshot that client acknowledged, so an idle session costs a few bytes per
+ * player no matter how many pickups the level has.
+ * <p>
+ * Usage: <code>SessionServer [clients] [pickUps] [seconds] [udp]</code> runs a
+ * session with bot clients and prints the bandwidth and the tick time.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SessionServer implements PhysicsTickListener, Runnable {
+
+    public static final int SEND_TICKS = 3;    // 20 snapshots per second
+    public static final int HISTORY    = 32;   // snapshots kept per client to decode against
+
+    private static final Logger logger = Logger.getLogger(SessionServer.class.getName());
+    private static final long TICK_NANOS = (long) (MarbleSimulation.TIMESTEP * 1e9);
+    private static final int BASE_PORT = 5110;
+    private static final float PICKUP_SIZE   = 0.5f;
+    private static final float PICKUP_RADIUS = 15.0f;
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+
+    /**
+     * What the server knows about one client.
+     */
+    private static class Client {
+
+        final SessionChannel channel;
+        final SnapshotCodec.State[] history;
+        volatile int input;
+        int acknowledged = SnapshotCodec.NO_BASELINE;
+        int sequence;
+        long bytesSent;
+
+        Client(SessionChannel channel, int playerCount, int pickUpCount) {
+            this.channel = channel;
+            history = new SnapshotCodec.State[HISTORY];
+            for(int i = 0; i < HISTORY; i++) {
+                history[i] = new SnapshotCodec.State(playerCount, pickUpCount);
+            }
+        }
+    }
+
+    private final LevelData level;
+    private final Client[] clients;
+    private final PhysicsRigidBody[] guests;
+    private final int[] guestScores;
+
+    private MarbleSimulation simulation;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long ticks;
+    private volatile long tickNanos;
+    private volatile long maxTickNanos;
+
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(SessionChannel.MAX_PACKET_SIZE);
+    private final Vector3f location = new Vector3f();
+    private final Vector3f force = new Vector3f();
+    private final Quaternion rotation = new Quaternion();
+
+    /**
+     * @param level the level of the session, must use a pickup count the clients know
+     * @param channels the server end of the channel to every client, the index is the player
+     */
+    public SessionServer(LevelData level, SessionChannel[] channels) {
+        this.level = level;
+        clients = new Client[channels.length];
+        for(int player = 0; player < channels.length; player++) {
+            clients[player] = new Client(channels[player], channels.length, level.getPickUpCount());
+        }
+        guests = new PhysicsRigidBody[Math.max(0, channels.length - 1)];
+        guestScores = new int[guests.length];
+    }
+
+    /**
+     * Starts the server thread. The physics is created on it.
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "SessionServer");
+        thread.start();
+    }
+
+    /**
+     * Stops the server thread and waits for it.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        simulation = MarbleSimulation.createHeadless(level, true);
+        PhysicsSpace space = simulation.getPhysicsSpace();
+        CollisionShape shape = MarbleSimulation.createPlayerShape();
+        for(int guest = 0; guest < guests.length; guest++) {
+            PhysicsRigidBody body = new PhysicsRigidBody(shape, MarbleSimulation.PLAYER_MASS);
+            body.setRestitution(MarbleSimulation.PLAYER_REST);
+            body.setCollisionGroup(MarbleSimulation.PLAYER_GROUP);
+            body.setCollideWithGroups(MarbleSimulation.LEVEL_GROUP | MarbleSimulation.PLAYER_GROUP);
+            // guests start in a row next to the player
+            float offset = (guest / 2 + 1) * 5 * MarbleSimulation.PLAYER_RADIUS * (guest % 2 == 0 ? 1 : -1);
+            body.setPhysicsLocation(level.getPlayerStart().add(offset, 0, 0));
+            guests[guest] = body;
+            space.add(body);
+        }
+        space.addTickListener(this); // after the simulation, so collectAround sees this tick's positions
+
+        long next = System.nanoTime();
+        try {
+            while(running) {
+                long start = System.nanoTime();
+                tick();
+                long elapsed = System.nanoTime() - start;
+                tickNanos += elapsed;
+                maxTickNanos = Math.max(maxTickNanos, elapsed);
+
+                next += TICK_NANOS;
+                long sleep = next - System.nanoTime();
+                if(sleep > 0) {
+                    LockSupport.parkNanos(sleep);
+                } else if(sleep < -10 * TICK_NANOS) {
+                    next = System.nanoTime(); // too far behind, do not try to catch up
+                }
+            }
+        } finally {
+            space.removeTickListener(this);
+            for(PhysicsRigidBody guest : guests) {
+                space.remove(guest);
+            }
+            simulation.destroy();
+            for(Client client : clients) {
+                try {
+                    client.channel.close();
+                } catch(IOException exception) {
+                    logger.log(Level.WARNING, "Cannot close client channel", exception);
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        for(Client client : clients) {
+            receive(client);
+        }
+        simulation.setInput(clients.length > 0 ? clients[0].input : 0);
+        simulation.step();
+        ticks++;
+
+        if(simulation.getTick() % SEND_TICKS == 0) {
+            for(Client client : clients) {
+                send(client);
+            }
+        }
+    }
+
+    private void receive(Client client) {
+        try {
+            while(client.channel.receive(packet)) {
+                if(packet.remaining() < SnapshotCodec.INPUT_SIZE || packet.get(0) != SnapshotCodec.INPUT) {
+                    continue;
+                }
+                client.input = packet.get(2) & 0xFF;
+                int acknowledged = packet.getInt(3);
+                if(acknowledged > client.acknowledged && acknowledged < client.sequence) { // packets may come out of order
+                    client.acknowledged = acknowledged;
+                }
+            }
+        } catch(IOException exception) {
+            logger.log(Level.WARNING, "Cannot receive from client", exception);
+        }
+    }
+
+    private void send(Client client) {
+        SnapshotCodec.State baseline = null;
+        if(client.acknowledged != SnapshotCodec.NO_BASELINE && client.sequence - client.acknowledged < HISTORY) {
+            baseline = client.history[client.acknowledged % HISTORY];
+        }
+        SnapshotCodec.State current = client.history[client.sequence % HISTORY];
+        current.sequence = client.sequence++;
+        current.tick = simulation.getTick();
+        capture(current);
+
+        packet.clear();
+        SnapshotCodec.encode(current, baseline, packet);
+        packet.flip();
+        client.bytesSent += packet.remaining();
+        try {
+            client.channel.send(packet);
+        } catch(IOException exception) {
+            logger.log(Level.WARNING, "Cannot send to client", exception);
+        }
+    }
+
+    private void capture(SnapshotCodec.State state) {
+        int guestTotal = 0;
+        for(int guest = 0; guest < guests.length; guest++) {
+            guestTotal += guestScores[guest];
+            state.setPlayer(guest + 1, guests[guest].getPhysicsLocation(location),
+                    guests[guest].getPhysicsRotation(rotation), guestScores[guest]);
+        }
+        PhysicsRigidBody player = simulation.getPlayer();
+        state.setPlayer(0, player.getPhysicsLocation(location), player.getPhysicsRotation(rotation),
+                simulation.getScore() - guestTotal);
+        simulation.getCollected(state.collected);
+    }
+
+    @Override
+    public void prePhysicsTick(PhysicsSpace space, float tpf) {
+        for(int guest = 0; guest < guests.length; guest++) {
+            int input = clients[guest + 1].input;
+            if(input != 0) {
+                simulation.computeForce(input, guests[guest].getPhysicsLocation(location), force);
+                guests[guest].activate();
+                MarbleSimulation.applyTickForce(guests[guest], force, tpf);
+            }
+        }
+    }
+
+    @Override
+    public void physicsTick(PhysicsSpace space, float tpf) {
+        for(int guest = 0; guest < guests.length; guest++) {
+            guestScores[guest] += simulation.collectAround(guests[guest].getPhysicsLocation(location));
+        }
+    }
+
+    public int getPlayerCount() {
+        return clients.length;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return the mean time of a server tick in nanoseconds
+     */
+    public long getMeanTickNanos() {
+        long count = ticks;
+        return count > 0 ? tickNanos / count : 0;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    /**
+     * @param player the player of the client
+     * @return the bytes sent to the client so far
+     */
+    public long getBytesSent(int player) {
+        return clients[player].bytesSent;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int pickUpCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        float seconds = args.length > 2 ? Float.parseFloat(args[2]) : 10;
+        boolean udp = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        LevelData level = LevelData.createDefault(pickUpCount, PICKUP_SIZE, PICKUP_RADIUS, PLAYER_START);
+
+        SessionChannel[] serverChannels = new SessionChannel[clientCount];
+        SessionClient[] clients = new SessionClient[clientCount];
+        for(int player = 0; player < clientCount; player++) {
+            SessionChannel clientChannel;
+            if(udp) {
+                serverChannels[player] = SessionChannel.bindUdp(BASE_PORT + player);
+                clientChannel = SessionChannel.connectUdp(BASE_PORT + player);
+            } else {
+                SessionChannel[] pair = SessionChannel.createLocalPair();
+                serverChannels[player] = pair[0];
+                clientChannel = pair[1];
+            }
+            clients[player] = new SessionClient(player, clientChannel, clientCount, pickUpCount, null);
+        }
+
+        SessionServer server = new SessionServer(level, serverChannels);
+        server.start();
+
+        // the bots hold a random direction for a second, the clients update at 60 frames per second
+        Random random = new Random(1);
+        long frames = (long) (seconds * 60);
+        for(long frame = 0; frame < frames; frame++) {
+            for(SessionClient client : clients) {
+                if(frame % 60 == 0) {
+                    client.setInput(random.nextInt(16));
+                }
+                client.update(1 / 60f);
+            }
+            Thread.sleep(1000 / 60);
+        }
+        server.stop();
+        for(SessionClient client : clients) {
+            client.close();
+        }
+
+        System.out.printf("%d clients, %d pickups, %s: %d ticks, tick mean %d us max %d us%n",
+                clientCount, pickUpCount, udp ? "udp" : "in process", server.getTicks(),
+                server.getMeanTickNanos() / 1000, server.getMaxTickNanos() / 1000);
+        for(int player = 0; player < clientCount; player++) {
+            System.out.printf("  client %d: %.0f bytes/s, %d snapshots, score %d%n", player,
+                    server.getBytesSent(player) / seconds, clients[player].getReceived(),
+                    clients[player].getLatest().getScore(player));
+        }
+    }
+}
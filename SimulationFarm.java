@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many headless {@link MarbleSimulation} instances across a thread pool.
+ * <p>
+ * Every instance has its own physics space and is created and stepped on a
+ * single worker thread with a fixed timestep, as fast as the machine allows.
+ * A simple bot drives the ball toward the nearest pickup. When all instances
+ * are done the farm prints episodes per second and the step latency of every
+ * instance.
+ * <p>
+ * Usage: <code>SimulationFarm [instances] [threads] [episodes] [maxSteps] [pickUps]</code>
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SimulationFarm {
+
+    private static final float PICKUP_SIZE   = 0.5f;
+    private static final float PICKUP_RADIUS = 15.0f;
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+
+    /**
+     * Picks the input bitmask for the next step.
+     */
+    public interface Bot {
+
+        int decide(MarbleSimulation simulation);
+    }
+
+    /**
+     * Rolls toward the nearest pickup that has not been collected. The
+     * pickup is found with the {@link PickupGrid} of the simulation, so a
+     * decision costs the same with 16 or 100k pickups; a simulation with one
+     * ghost per pickup has no grid and is scanned.
+     */
+    public static class NearestPickUpBot implements Bot, PickupGrid.Filter {
+
+        private final Vector3f location = new Vector3f();
+        private final Vector3f forward = new Vector3f();
+        private final Vector3f left = new Vector3f();
+        private MarbleSimulation simulation; // the simulation of the current decision, read by accept
+
+        @Override
+        public int decide(MarbleSimulation simulation) {
+            simulation.getPlayer().getPhysicsLocation(location);
+            float[] pickUps = simulation.getLevel().getPickUps();
+
+            int nearest;
+            PickupGrid grid = simulation.getPickUpGrid();
+            if(grid != null) {
+                this.simulation = simulation;
+                nearest = grid.findNearest(location.x, location.z, this);
+            } else {
+                nearest = scan(simulation, pickUps);
+            }
+            if(nearest < 0) {
+                return 0;
+            }
+
+            // the inputs are relative to the view, so project the target direction onto it
+            location.subtract(MarbleSimulation.VIEW_LOCATION, forward).setY(0);
+            forward.normalizeLocal();
+            left.set(forward.z, 0, -forward.x);
+            float dx = pickUps[nearest * 3] - location.x;
+            float dz = pickUps[nearest * 3 + 2] - location.z;
+            float alongForward = dx * forward.x + dz * forward.z;
+            float alongLeft = dx * left.x + dz * left.z;
+
+            int input = 0;
+            if(alongForward > 0.5f) input |= MarbleSimulation.INPUT_FORWARD;
+            if(alongForward < -0.5f) input |= MarbleSimulation.INPUT_BACKWARD;
+            if(alongLeft > 0.5f) input |= MarbleSimulation.INPUT_LEFT;
+            if(alongLeft < -0.5f) input |= MarbleSimulation.INPUT_RIGHT;
+            return input;
+        }
+
+        @Override
+        public boolean accept(int index) {
+            return !simulation.isCollected(index);
+        }
+
+        private int scan(MarbleSimulation simulation, float[] pickUps) {
+            int nearest = -1;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for(int index = 0; index < pickUps.length / 3; index++) {
+                if(!simulation.isCollected(index)) {
+                    float dx = pickUps[index * 3] - location.x;
+                    float dz = pickUps[index * 3 + 2] - location.z;
+                    float distance = dx * dx + dz * dz;
+                    if(distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = index;
+                    }
+                }
+            }
+            return nearest;
+        }
+    }
+
+    /**
+     * What one instance measured.
+     */
+    public static class Result {
+
+        public int instance;
+        public int episodes;
+        public int completed;
+        public long steps;
+        public long stepNanos;
+        public long maxStepNanos;
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        final int instances = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        final int episodes = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final int maxSteps = args.length > 3 ? Integer.parseInt(args[3]) : 60 * 60;
+        final int pickUpCount = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        final LevelData level = LevelData.createDefault(pickUpCount, PICKUP_SIZE, PICKUP_RADIUS, PLAYER_START);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>(instances);
+        long start = System.nanoTime();
+        for(int i = 0; i < instances; i++) {
+            final int instance = i;
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return run(instance, level, episodes, maxSteps);
+                }
+            }));
+        }
+
+        List<Result> results = new ArrayList<>(instances);
+        for(Future<Result> future : futures) {
+            results.add(future.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        int totalEpisodes = 0;
+        long totalSteps = 0;
+        for(Result result : results) {
+            totalEpisodes += result.episodes;
+            totalSteps += result.steps;
+            System.out.printf("instance %3d: %d/%d episodes completed, mean step %.1f us, max step %.1f us%n",
+                    result.instance, result.completed, result.episodes,
+                    result.stepNanos / 1e3 / Math.max(1, result.steps), result.maxStepNanos / 1e3);
+        }
+        System.out.printf("%d instances on %d threads: %.1f episodes/s, %.0f steps/s (%.1fx real time)%n",
+                instances, threads, totalEpisodes / seconds, totalSteps / seconds,
+                totalSteps * MarbleSimulation.TIMESTEP / seconds);
+    }
+
+    /**
+     * Creates one simulation on the calling thread and plays the episodes.
+     *
+     * @param instance the number of the instance
+     * @param level the level to play
+     * @param episodes the number of episodes to play
+     * @param maxSteps the step limit of an episode
+     * @return the measurements of the instance
+     */
+    public static Result run(int instance, LevelData level, int episodes, int maxSteps) {
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(level, true);
+        Bot bot = new NearestPickUpBot();
+        Result result = new Result();
+        result.instance = instance;
+        try {
+            for(int episode = 0; episode < episodes; episode++) {
+                simulation.reset();
+                for(int step = 0; step < maxSteps && !simulation.isComplete(); step++) {
+                    simulation.setInput(bot.decide(simulation));
+                    long begin = System.nanoTime();
+                    simulation.step();
+                    long nanos = System.nanoTime() - begin;
+                    result.stepNanos += nanos;
+                    result.maxStepNanos = Math.max(result.maxStepNanos, nanos);
+                    result.steps++;
+                }
+                result.episodes++;
+                if(simulation.isComplete()) {
+                    result.completed++;
+                }
+            }
+        } finally {
+            simulation.destroy();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Quantizes the state of a shared session and encodes it as the difference to
+ * a baseline the receiver already has.
+ * <p>
+ * Positions are stored in 1/256 of a unit, rotations as the smallest three
+ * components in 10 bits each. A player that did not move since the baseline
+ * costs one byte. Pickups are sent as the gaps between the indices whose
+ * collected bit changed, so the size of a snapshot follows the number of
+ * changes, not the number of pickups.
+ *
+ * <pre>
+ * byte   SNAPSHOT
+ * int    sequence
+ * int    baseline sequence or NO_BASELINE
+ * varint tick
+ * varint player count
+ *        per player: byte CHANGED_ flags, zigzag varint x, y, z deltas,
+ *        int rotation, zigzag varint score delta, each only when flagged
+ * varint changed pickup count
+ *        varint gap to the previous changed index, for each change
+ * </pre>
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SnapshotCodec {
+
+    public static final byte INPUT    = 1; // byte INPUT, byte client, byte input, int acknowledged sequence
+    public static final byte SNAPSHOT = 2;
+    public static final int INPUT_SIZE = 7;
+
+    public static final int NO_BASELINE = -1;
+    public static final float POSITION_SCALE = 256.0f;
+
+    private static final int CHANGED_POSITION = 1;
+    private static final int CHANGED_ROTATION = 2;
+    private static final int CHANGED_SCORE    = 4;
+
+    private static final int ROTATION_MAX = (1 << 10) - 1;
+
+    /**
+     * The quantized state of a session at one tick.
+     */
+    public static class State {
+
+        int sequence = NO_BASELINE;
+        long tick;
+        final int[] positions; // x, y, z per player
+        final int[] rotations;
+        final int[] scores;
+        final long[] collected;
+        final int pickUpCount;
+
+        public State(int playerCount, int pickUpCount) {
+            this.pickUpCount = pickUpCount;
+            positions = new int[playerCount * 3];
+            rotations = new int[playerCount];
+            scores = new int[playerCount];
+            collected = new long[(pickUpCount + 63) >>> 6];
+        }
+
+        public void set(State other) {
+            sequence = other.sequence;
+            tick = other.tick;
+            System.arraycopy(other.positions, 0, positions, 0, positions.length);
+            System.arraycopy(other.rotations, 0, rotations, 0, rotations.length);
+            System.arraycopy(other.scores, 0, scores, 0, scores.length);
+            System.arraycopy(other.collected, 0, collected, 0, collected.length);
+        }
+
+        public void setPlayer(int player, Vector3f location, Quaternion rotation, int score) {
+            positions[player * 3] = Math.round(location.x * POSITION_SCALE);
+            positions[player * 3 + 1] = Math.round(location.y * POSITION_SCALE);
+            positions[player * 3 + 2] = Math.round(location.z * POSITION_SCALE);
+            rotations[player] = packRotation(rotation);
+            scores[player] = score;
+        }
+
+        public void setCollected(long[] bits) {
+            System.arraycopy(bits, 0, collected, 0, collected.length);
+        }
+
+        public Vector3f getLocation(int player, Vector3f store) {
+            return store.set(positions[player * 3] / POSITION_SCALE, positions[player * 3 + 1] / POSITION_SCALE,
+                    positions[player * 3 + 2] / POSITION_SCALE);
+        }
+
+        public Quaternion getRotation(int player, Quaternion store) {
+            return unpackRotation(rotations[player], store);
+        }
+
+        public int getScore(int player) {
+            return scores[player];
+        }
+
+        public boolean isCollected(int index) {
+            return (collected[index >>> 6] & (1L << index)) != 0;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public long getTick() {
+            return tick;
+        }
+
+        public int getPlayerCount() {
+            return rotations.length;
+        }
+
+        public int getPickUpCount() {
+            return pickUpCount;
+        }
+    }
+
+    /**
+     * Writes the difference between two states. When the pickup changes do not
+     * fit into the buffer, the ones left out are reverted in current, so
+     * current stays exactly what the receiver will decode.
+     *
+     * @param current the state to send, its sequence must be set
+     * @param baseline a state the receiver has, null to send against an empty state
+     * @param out receives the packet
+     */
+    public static void encode(State current, State baseline, ByteBuffer out) {
+        out.put(SNAPSHOT);
+        out.putInt(current.sequence);
+        out.putInt(baseline != null ? baseline.sequence : NO_BASELINE);
+        writeVarint(out, current.tick);
+
+        int playerCount = current.rotations.length;
+        writeVarint(out, playerCount);
+        for(int player = 0; player < playerCount; player++) {
+            int i = player * 3;
+            int dx = current.positions[i] - (baseline != null ? baseline.positions[i] : 0);
+            int dy = current.positions[i + 1] - (baseline != null ? baseline.positions[i + 1] : 0);
+            int dz = current.positions[i + 2] - (baseline != null ? baseline.positions[i + 2] : 0);
+            int rotation = current.rotations[player];
+            int score = current.scores[player] - (baseline != null ? baseline.scores[player] : 0);
+
+            int flags = 0;
+            if(dx != 0 || dy != 0 || dz != 0) flags |= CHANGED_POSITION;
+            if(baseline == null || rotation != baseline.rotations[player]) flags |= CHANGED_ROTATION;
+            if(score != 0) flags |= CHANGED_SCORE;
+            out.put((byte) flags);
+            if((flags & CHANGED_POSITION) != 0) {
+                writeVarint(out, zigzag(dx));
+                writeVarint(out, zigzag(dy));
+                writeVarint(out, zigzag(dz));
+            }
+            if((flags & CHANGED_ROTATION) != 0) {
+                out.putInt(rotation);
+            }
+            if((flags & CHANGED_SCORE) != 0) {
+                writeVarint(out, zigzag(score));
+            }
+        }
+
+        int changes = 0;
+        for(int word = 0; word < current.collected.length; word++) {
+            changes += Long.bitCount(current.collected[word] ^ (baseline != null ? baseline.collected[word] : 0));
+        }
+        int limit = Math.max(0, (out.remaining() - 5) / 5); // a gap never takes more than 5 bytes
+        int sent = Math.min(changes, limit);
+        writeVarint(out, sent);
+
+        int previous = -1;
+        int written = 0;
+        for(int word = 0; word < current.collected.length; word++) {
+            long changed = current.collected[word] ^ (baseline != null ? baseline.collected[word] : 0);
+            while(changed != 0) {
+                long bit = changed & -changed;
+                if(written < sent) {
+                    int index = (word << 6) + Long.numberOfTrailingZeros(changed);
+                    writeVarint(out, index - previous - 1);
+                    previous = index;
+                    written++;
+                } else {
+                    current.collected[word] ^= bit; // goes out with a later snapshot
+                }
+                changed ^= bit;
+            }
+        }
+    }
+
+    /**
+     * @param in a snapshot packet positioned at its first byte
+     * @return the sequence of the state it was encoded against, or NO_BASELINE
+     */
+    public static int peekBaseline(ByteBuffer in) {
+        return in.getInt(in.position() + 5);
+    }
+
+    /**
+     * @param in a snapshot packet positioned at its first byte
+     * @return the sequence of the state it holds
+     */
+    public static int peekSequence(ByteBuffer in) {
+        return in.getInt(in.position() + 1);
+    }
+
+    /**
+     * Reads a snapshot packet.
+     *
+     * @param in the packet
+     * @param baseline the state with the baseline sequence of the packet, null for NO_BASELINE
+     * @param store receives the decoded state, may be the baseline
+     * @return store
+     * @throws IllegalArgumentException if the packet does not fit the players
+     * and pickups of store, store is then only partly written
+     */
+    public static State decode(ByteBuffer in, State baseline, State store) {
+        if(in.get() != SNAPSHOT) {
+            throw new IllegalArgumentException("Not a snapshot packet");
+        }
+        int sequence = in.getInt();
+        in.getInt();
+        if(baseline != null) {
+            store.set(baseline);
+        } else {
+            Arrays.fill(store.positions, 0);
+            Arrays.fill(store.rotations, 0);
+            Arrays.fill(store.scores, 0);
+            Arrays.fill(store.collected, 0);
+        }
+        store.sequence = sequence;
+        store.tick = readVarint(in);
+
+        int playerCount = (int) readVarint(in);
+        if(playerCount != store.rotations.length) {
+            throw new IllegalArgumentException("Snapshot of a session with " + playerCount + " players");
+        }
+        for(int player = 0; player < playerCount; player++) {
+            int flags = in.get();
+            if((flags & CHANGED_POSITION) != 0) {
+                store.positions[player * 3] += unzigzag(readVarint(in));
+                store.positions[player * 3 + 1] += unzigzag(readVarint(in));
+                store.positions[player * 3 + 2] += unzigzag(readVarint(in));
+            }
+            if((flags & CHANGED_ROTATION) != 0) {
+                store.rotations[player] = in.getInt();
+            }
+            if((flags & CHANGED_SCORE) != 0) {
+                store.scores[player] += unzigzag(readVarint(in));
+            }
+        }
+
+        int changes = (int) readVarint(in);
+        int index = -1;
+        for(int change = 0; change < changes; change++) {
+            index += (int) readVarint(in) + 1;
+            if(index < 0 || index >= store.pickUpCount) {
+                throw new IllegalArgumentException("Snapshot changes pickup " + index + " of " + store.pickUpCount);
+            }
+            store.collected[index >>> 6] ^= 1L << index;
+        }
+        return store;
+    }
+
+    /**
+     * Packs a unit quaternion as the index of its largest component and the
+     * other three in 10 bits each.
+     *
+     * @param rotation the rotation
+     * @return the packed rotation
+     */
+    public static int packRotation(Quaternion rotation) {
+        float x = rotation.getX(), y = rotation.getY(), z = rotation.getZ(), w = rotation.getW();
+        int largest = 0;
+        float max = Math.abs(x);
+        if(Math.abs(y) > max) { largest = 1; max = Math.abs(y); }
+        if(Math.abs(z) > max) { largest = 2; max = Math.abs(z); }
+        if(Math.abs(w) > max) { largest = 3; }
+
+        float a, b, c, sign;
+        switch(largest) {
+            case 0:  a = y; b = z; c = w; sign = x; break;
+            case 1:  a = x; b = z; c = w; sign = y; break;
+            case 2:  a = x; b = y; c = w; sign = z; break;
+            default: a = x; b = y; c = z; sign = w; break;
+        }
+        if(sign < 0) { // q and -q are the same rotation, keep the largest positive
+            a = -a;
+            b = -b;
+            c = -c;
+        }
+        return (largest << 30) | (quantize(a) << 20) | (quantize(b) << 10) | quantize(c);
+    }
+
+    public static Quaternion unpackRotation(int packed, Quaternion store) {
+        float a = dequantize((packed >>> 20) & ROTATION_MAX);
+        float b = dequantize((packed >>> 10) & ROTATION_MAX);
+        float c = dequantize(packed & ROTATION_MAX);
+        float d = FastMath.sqrt(Math.max(0, 1 - a * a - b * b - c * c));
+        switch(packed >>> 30) {
+            case 0:  return store.set(d, a, b, c);
+            case 1:  return store.set(a, d, b, c);
+            case 2:  return store.set(a, b, d, c);
+            default: return store.set(a, b, c, d);
+        }
+    }
+
+    private static int quantize(float value) {
+        // the three smallest components lie within +-1/sqrt(2)
+        float normalized = (value * FastMath.sqrt(2) + 1) * 0.5f;
+        return Math.max(0, Math.min(ROTATION_MAX, Math.round(normalized * ROTATION_MAX)));
+    }
+
+    private static float dequantize(int value) {
+        return ((value / (float) ROTATION_MAX) * 2 - 1) / FastMath.sqrt(2);
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value) {
+        int bits = (int) value;
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    static void writeVarint(ByteBuffer out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The state of a {@link MarbleSimulation} in flat primitive arrays.
+ * <p>
+ * Holds the player body state, one bit per pickup and the score. Capturing
+ * into an existing snapshot does not allocate, and restoring a snapshot only
+ * touches the pickups that changed since it was taken. A snapshot can be saved
+ * to a file and loaded again to restart a level from a checkpoint. It keeps
+ * the {@link LevelData#checksum()} of its level, so it is never restored onto
+ * another level with the same number of pickups.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class WorldSnapshot {
+
+    private static final int MAGIC = 0x524D5332; // "RMS2"
+
+    /** location x, y, z, rotation x, y, z, w, linear velocity x, y, z, angular velocity x, y, z */
+    public static final int PLAYER_STATE_SIZE = 13;
+
+    final float[] player = new float[PLAYER_STATE_SIZE];
+    final long[] collected;
+    final int pickUpCount;
+    int score;
+    long tick;
+    int levelChecksum;
+
+    /**
+     * @param pickUpCount the number of pickups of the level
+     */
+    public WorldSnapshot(int pickUpCount) {
+        this.pickUpCount = pickUpCount;
+        this.collected = new long[(pickUpCount + 63) >>> 6];
+    }
+
+    public boolean isCollected(int index) {
+        return (collected[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public int getPickUpCount() {
+        return pickUpCount;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * @return the {@link LevelData#checksum()} of the level the snapshot was captured on
+     */
+    public int getLevelChecksum() {
+        return levelChecksum;
+    }
+
+    /**
+     * @return the simulation tick the snapshot was captured at
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Writes the snapshot to a checkpoint file.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(levelChecksum);
+            out.writeInt(pickUpCount);
+            out.writeInt(score);
+            out.writeLong(tick);
+            for(float value : player) {
+                out.writeFloat(value);
+            }
+            for(long word : collected) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint file.
+     *
+     * @param file the file to read
+     * @return a new snapshot
+     * @throws IOException if the file cannot be read, is not a checkpoint or is broken
+     */
+    public static WorldSnapshot load(File file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int levelChecksum = in.readInt();
+            int pickUpCount = in.readInt();
+            long size = 4 * 4 + 8 + PLAYER_STATE_SIZE * 4 + ((pickUpCount + 63L) >>> 6) * 8;
+            if(pickUpCount < 0 || size != file.length()) {
+                throw new IOException("Broken checkpoint of " + pickUpCount + " pickups: " + file);
+            }
+            WorldSnapshot snapshot = new WorldSnapshot(pickUpCount);
+            snapshot.levelChecksum = levelChecksum;
+            snapshot.score = in.readInt();
+            snapshot.tick = in.readLong();
+            for(int i = 0; i < PLAYER_STATE_SIZE; i++) {
+                snapshot.player[i] = in.readFloat();
+            }
+            for(int i = 0; i < snapshot.collected.length; i++) {
+                snapshot.collected[i] = in.readLong();
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.collision.PhysicsCollisionEvent;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.bullet.objects.PhysicsGhostObject;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Dispatches synthetic collision events through a {@link CollisionDispatcher}
+ * set up like the one of {@link MarbleSimulation}: most events are player and
+ * level contacts that have no handler, some are player and pickup contacts.
+ * The events are built once with a zero manifold point, the dispatcher only
+ * reads their two objects.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CollisionDispatchBenchmark {
+
+    private static final int EVENTS = 1024;
+
+    @Param({"16", "1000", "100000"})
+    public int pickUpCount;
+
+    @Param({"0.1"})
+    public float pickUpShare; // the share of events between the player and a pickup
+
+    private final CollisionDispatcher dispatcher = new CollisionDispatcher();
+    private final PhysicsCollisionEvent[] events = new PhysicsCollisionEvent[EVENTS];
+    private int collisions;
+
+    @Setup
+    public void setUp() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+
+        PhysicsRigidBody level = new PhysicsRigidBody(new BoxCollisionShape(new Vector3f(22, 0.5f, 22)), 0);
+        level.setCollisionGroup(MarbleSimulation.LEVEL_GROUP);
+        PhysicsRigidBody player = new PhysicsRigidBody(MarbleSimulation.createPlayerShape(), MarbleSimulation.PLAYER_MASS);
+        player.setCollisionGroup(MarbleSimulation.PLAYER_GROUP);
+
+        SphereCollisionShape pickUpShape = new SphereCollisionShape(0.5f);
+        PhysicsGhostObject[] ghosts = new PhysicsGhostObject[pickUpCount];
+        for(int index = 0; index < pickUpCount; index++) {
+            ghosts[index] = new PhysicsGhostObject(pickUpShape);
+            ghosts[index].setCollisionGroup(MarbleSimulation.PICKUP_GROUP);
+            dispatcher.setTag(ghosts[index], index);
+        }
+        dispatcher.addHandler(MarbleSimulation.PLAYER_GROUP, MarbleSimulation.PICKUP_GROUP, new CollisionDispatcher.Handler() {
+            @Override
+            public void collide(PhysicsCollisionObject self, int selfTag, PhysicsCollisionObject other, int otherTag) {
+                collisions += otherTag;
+            }
+        });
+
+        Random random = new Random(1);
+        for(int i = 0; i < EVENTS; i++) {
+            if(random.nextFloat() < pickUpShare) {
+                PhysicsGhostObject ghost = ghosts[random.nextInt(pickUpCount)];
+                boolean playerFirst = random.nextBoolean(); // bullet reports pairs in either order
+                events[i] = playerFirst ? new PhysicsCollisionEvent(0, player, ghost, 0)
+                        : new PhysicsCollisionEvent(0, ghost, player, 0);
+            } else {
+                events[i] = new PhysicsCollisionEvent(0, player, level, 0);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void dispatch(Blackhole blackhole) {
+        for(PhysicsCollisionEvent event : events) {
+            dispatcher.collision(event);
+        }
+        blackhole.consume(collisions);
+    }
+}
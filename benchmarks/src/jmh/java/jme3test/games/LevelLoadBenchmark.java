@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The startup cost of a level with many pickups.
+ * <p>
+ * <code>mappedMesh</code> maps a {@link LevelFile} and draws the pickups from
+ * the merged mesh stored in it, which is what the game does now.
+ * <code>builtMesh</code> maps the same file but builds the pickup mesh from
+ * the positions like the game did before, one rotated cube per pickup.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LevelLoadBenchmark {
+
+    private static final float PICKUP_SIZE = 0.5f;
+
+    @Param({"50000"})
+    public int pickUpCount;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        // a square field of pickups on the floor of the default level
+        LevelFile level = LevelFile.createDefault(0, PICKUP_SIZE, 15.0f, new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f));
+        LevelData data = level.getData();
+        int side = (int) Math.ceil(Math.sqrt(pickUpCount));
+        float[] positions = new float[pickUpCount * 3];
+        for(int index = 0; index < pickUpCount; index++) {
+            positions[index * 3] = (index % side) * 40.0f / side - 20.0f;
+            positions[index * 3 + 1] = PICKUP_SIZE * 1.5f;
+            positions[index * 3 + 2] = (index / side) * 40.0f / side - 20.0f;
+        }
+        LevelData field = new LevelData(data.getCollisionBoxes(), data.getCollisionSpheres(), data.getCollisionHulls(),
+                data.getPieceMaterials(), positions, PICKUP_SIZE, data.getPlayerStart());
+
+        file = File.createTempFile("LevelLoadBenchmark", ".level");
+        new LevelFile(field, level.getParts()).save(file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public PickupRenderer mappedMesh() throws IOException {
+        LevelFile level = LevelFile.load(file);
+        return new PickupRenderer("pickUpRenderer", level.getPickUpMesh(),
+                level.getData().getPickUps(), level.getData().getPickUpSize());
+    }
+
+    @Benchmark
+    public PickupRenderer builtMesh() throws IOException {
+        LevelFile level = LevelFile.load(file);
+        return new PickupRenderer("pickUpRenderer", level.getData().getPickUps(), level.getData().getPickUpSize());
+    }
+}
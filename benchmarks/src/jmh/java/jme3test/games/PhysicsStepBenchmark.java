@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One fixed physics step of the headless game with the level compound shape,
+ * the player driven by {@link SimulationFarm.NearestPickUpBot} and an optional
+ * {@link MarbleCrowd}. The level is reset when every pickup is collected.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PhysicsStepBenchmark {
+
+    @Param({"16", "1000"})
+    public int pickUpCount;
+
+    @Param({"true", "false"})
+    public boolean pickUpGrid;
+
+    @Param({"0", "200"})
+    public int crowdSize;
+
+    private MarbleSimulation simulation;
+    private MarbleCrowd crowd;
+    private final SimulationFarm.Bot bot = new SimulationFarm.NearestPickUpBot();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        LevelData level = LevelData.createDefault(pickUpCount, 0.5f, 15.0f,
+                new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f));
+        simulation = MarbleSimulation.createHeadless(level, pickUpGrid);
+        if(crowdSize > 0) {
+            crowd = new MarbleCrowd(simulation, crowdSize);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(crowd != null) {
+            crowd.destroy();
+        }
+        simulation.destroy();
+    }
+
+    @Benchmark
+    public MarbleSimulation step() {
+        if(simulation.isComplete()) {
+            simulation.reset();
+            if(crowd != null) {
+                crowd.reset();
+            }
+        }
+        simulation.setInput(bot.decide(simulation));
+        simulation.step();
+        return simulation;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per frame cost of the pickups on the render thread.
+ * <p>
+ * <code>nodeRotation</code> is the loop simpleUpdate used to run, rotating one
+ * geometry per pickup and updating the scene graph. <code>mergedMesh</code> is
+ * what a frame costs now with {@link PickupRenderer}, where the spinning is
+ * done in the vertex shader and only a collected pickup touches the mesh.
+ * <code>gridQuery</code> is the pickup test of one physics tick.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PickupUpdateBenchmark {
+
+    private static final float PICKUP_SIZE = 0.5f;
+    private static final float PICKUP_SPEED = 5.0f;
+    private static final float TPF = 1.0f / 60.0f;
+
+    @Param({"16", "1000", "10000", "100000"})
+    public int pickUpCount;
+
+    private Node pickUps;
+    private PickupRenderer renderer;
+    private PickupGrid grid;
+    private final Vector3f location = new Vector3f();
+    private int frame;
+    private int visited;
+    private final PickupGrid.Visitor counter = new PickupGrid.Visitor() {
+        @Override
+        public void visit(int index) {
+            visited++;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        // a square field of pickups, the ring of the default level would overlap at these counts
+        int side = (int) FastMath.ceil(FastMath.sqrt(pickUpCount));
+        float[] positions = new float[pickUpCount * 3];
+        for(int index = 0; index < pickUpCount; index++) {
+            positions[index * 3] = (index % side) * 2.0f;
+            positions[index * 3 + 1] = PICKUP_SIZE * 1.5f;
+            positions[index * 3 + 2] = (index / side) * 2.0f;
+        }
+
+        pickUps = new Node("pickUps");
+        Box mesh = new Box(PICKUP_SIZE, PICKUP_SIZE, PICKUP_SIZE);
+        for(int index = 0; index < pickUpCount; index++) {
+            Geometry pickUp = new Geometry("pickUp" + index, mesh);
+            pickUp.setLocalTranslation(positions[index * 3], positions[index * 3 + 1], positions[index * 3 + 2]);
+            pickUps.attachChild(pickUp);
+        }
+        pickUps.updateGeometricState();
+
+        renderer = new PickupRenderer("pickUpRenderer", positions, PICKUP_SIZE);
+        renderer.updateGeometricState();
+        grid = new PickupGrid(positions, PICKUP_SIZE, MarbleSimulation.PICKUP_CELL_SIZE);
+    }
+
+    @Benchmark
+    public Node nodeRotation() {
+        for(int index = 0; index < pickUpCount; index++) {
+            pickUps.getChild(index).rotate(TPF * PICKUP_SPEED, TPF * PICKUP_SPEED, TPF * PICKUP_SPEED); // the rotation of the original game
+        }
+        pickUps.updateGeometricState();
+        return pickUps;
+    }
+
+    @Benchmark
+    public PickupRenderer mergedMesh() {
+        int index = frame++ % pickUpCount;
+        renderer.setVisible(index, !renderer.isVisible(index)); // one pickup changes per frame
+        renderer.updateGeometricState();
+        return renderer;
+    }
+
+    @Benchmark
+    public void gridQuery(Blackhole blackhole) {
+        float[] positions = grid.getPositions();
+        int index = frame++ % pickUpCount;
+        location.set(positions[index * 3], positions[index * 3 + 1], positions[index * 3 + 2]);
+        grid.query(location, 2 * MarbleSimulation.PLAYER_RADIUS, counter);
+        blackhole.consume(visited);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Resets a headless level after a share of its pickups was collected. The
+ * collected state is restored from a snapshot first, then reset only visits
+ * the pickups that changed.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResetBenchmark {
+
+    @Param({"16", "1000", "100000"})
+    public int pickUpCount;
+
+    @Param({"0.1", "1.0"})
+    public float collectedShare;
+
+    private MarbleSimulation simulation;
+    private WorldSnapshot collected;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        LevelData level = LevelData.createDefault(pickUpCount, 0.5f, 15.0f,
+                new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f));
+        simulation = MarbleSimulation.createHeadless(level, true);
+
+        collected = simulation.capture(new WorldSnapshot(pickUpCount));
+        int count = Math.round(pickUpCount * collectedShare);
+        int step = Math.max(1, pickUpCount / Math.max(1, count));
+        for(int index = 0, done = 0; index < pickUpCount && done < count; index += step, done++) {
+            collected.collected[index >>> 6] |= 1L << index;
+            collected.score++;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulation.destroy();
+    }
+
+    @Benchmark
+    public MarbleSimulation restoreAndReset() {
+        simulation.restore(collected); // compared word by word, the start snapshot is not the baseline
+        simulation.reset();            // only the pickups changed by the restore are visited
+        return simulation;
+    }
+}
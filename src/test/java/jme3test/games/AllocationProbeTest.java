@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fails the build when the frame of {@link GameFrame} starts allocating.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class AllocationProbeTest {
+
+    private static final int PICKUPS = 16;
+    private static final int FRAMES = 60 * 60;
+    private static final int WARM_UP_RUNS = 5; // the JIT allocates a few bytes while it swaps in compiled code
+
+    @Test
+    public void gameFrameDoesNotAllocate() {
+        PickupRenderer pickUps = new PickupRenderer("pickUps", new float[PICKUPS * 3], 0.5f);
+        GameFrame frame = new GameFrame(pickUps);
+        CollisionEventQueue events = new CollisionEventQueue(PICKUPS);
+        AllocationProbe probe = new AllocationProbe();
+
+        // the first runs build every score label and let the JIT settle
+        for(int run = 0; run < WARM_UP_RUNS; run++) {
+            runFrames(frame, events, probe);
+        }
+        probe.clear();
+        runFrames(frame, events, probe);
+
+        assertEquals(FRAMES, probe.getSamples());
+        probe.assertAtMost(0);
+    }
+
+    /**
+     * Collects a pickUp every few frames until all are collected, then gives
+     * them all back, while the keys change.
+     */
+    private static void runFrames(GameFrame frame, CollisionEventQueue events, AllocationProbe probe) {
+        int collected = frame.getCollected(); // carries on from the last run
+        for(int i = 0; i < FRAMES; i++) {
+            // the physics side, not measured
+            if(i % 7 == 0) {
+                if(collected < PICKUPS) {
+                    events.offer(MarbleSimulation.EVENT_PICKUP_COLLECTED, collected++);
+                } else {
+                    while(collected > 0) {
+                        events.offer(MarbleSimulation.EVENT_PICKUP_RESTORED, --collected);
+                    }
+                }
+            }
+
+            probe.begin();
+            frame.setKey(MarbleSimulation.INPUT_FORWARD, (i & 1) == 0);
+            frame.setKey(MarbleSimulation.INPUT_LEFT, (i & 2) == 0);
+            frame.drain(events);
+            frame.pollScoreLabel(frame.getCollected());
+            frame.getInput();
+            frame.isComplete();
+            probe.end();
+        }
+        frame.drain(events);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Box;
+import com.jme3.scene.shape.Cylinder;
+import com.jme3.scene.shape.Sphere;
+import com.jme3.util.BufferUtils;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Derives collision from render meshes with {@link CollisionDeriver} and
+ * checks the kinds, the sizes and the cache.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionDeriverTest {
+
+    private static final float EPSILON = 1e-4f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void boxMeshBecomesABox() {
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(new Box(2, 0.5f, 3), new Vector3f(1, 2, 3));
+        assertEquals(CollisionDeriver.BOX, shape.getKind());
+        assertArrayEquals(new float[] { 1, 2, 3, 2, 0.5f, 3 }, shape.getData(), EPSILON);
+    }
+
+    @Test
+    public void flatBoxKeepsAThickness() {
+        Mesh quad = new Box(2, 0, 2); // a floor without height must still stop the ball
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(quad, new Vector3f());
+        assertEquals(CollisionDeriver.BOX, shape.getKind());
+        assertTrue(shape.getData()[4] > 0);
+    }
+
+    @Test
+    public void sphereMeshBecomesASphere() {
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(new Sphere(32, 32, 1.5f), new Vector3f(0, 4, 0));
+        assertEquals(CollisionDeriver.SPHERE, shape.getKind());
+        assertArrayEquals(new float[] { 0, 4, 0, 1.5f }, shape.getData(), 1e-3f);
+    }
+
+    @Test
+    public void tetrahedronInABoxIsAHull() {
+        // every vertex lies on the bounding box, but the area tells it apart from a box
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer(
+                0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1));
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, BufferUtils.createShortBuffer(
+                (short) 0, (short) 2, (short) 1, (short) 0, (short) 1, (short) 3,
+                (short) 0, (short) 3, (short) 2, (short) 1, (short) 2, (short) 3));
+        mesh.updateCounts();
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(mesh, new Vector3f());
+        assertEquals(CollisionDeriver.HULL, shape.getKind());
+        assertEquals(4 * 3, shape.getData().length);
+    }
+
+    @Test
+    public void detailedMeshBecomesASmallHullOfItsVertices() {
+        Mesh cylinder = new Cylinder(16, 64, 1, 4, true);
+        Vector3f translation = new Vector3f(5, 2, -5);
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(cylinder, translation);
+        assertEquals(CollisionDeriver.HULL, shape.getKind());
+        float[] points = shape.getData();
+        assertTrue(points.length / 3 <= CollisionDeriver.HULL_DIRECTIONS);
+        assertTrue(points.length / 3 >= 4);
+        for(int i = 0; i < points.length; i += 3) {
+            // every point is a vertex of the cylinder: on its side and within its caps
+            float radius = FastMath.sqrt(FastMath.sqr(points[i] - translation.x) + FastMath.sqr(points[i + 1] - translation.y));
+            assertEquals(1, radius, 1e-3f);
+            assertTrue(Math.abs(points[i + 2] - translation.z) <= 2 + EPSILON);
+        }
+    }
+
+    @Test
+    public void cachedShapesAreReused() throws IOException {
+        File cache = folder.newFolder("cache");
+        CollisionDeriver deriver = new CollisionDeriver(cache);
+        CollisionDeriver.Shape derived = deriver.derive(new Cylinder(16, 64, 1, 4, true), new Vector3f());
+        File[] files = cache.listFiles();
+        assertEquals(1, files.length);
+
+        CollisionDeriver.Shape cached = new CollisionDeriver(cache).derive(new Cylinder(16, 64, 1, 4, true), new Vector3f());
+        assertEquals(derived.getKind(), cached.getKind());
+        assertArrayEquals(derived.getData(), cached.getData(), 0);
+
+        // another placement is another shape, not the cached one
+        CollisionDeriver.Shape moved = new CollisionDeriver(cache).derive(new Cylinder(16, 64, 1, 4, true), new Vector3f(1, 0, 0));
+        assertFalse(Arrays.equals(derived.getData(), moved.getData()));
+        assertEquals(2, cache.listFiles().length);
+    }
+
+    @Test
+    public void cacheKeyCoversTheTriangles() throws IOException {
+        // the same vertices, once as a closed box and once as its bottom face only
+        File cache = folder.newFolder("triangles");
+        Box box = new Box(1, 1, 1);
+        Mesh bottom = new Mesh();
+        bottom.setBuffer(box.getBuffer(VertexBuffer.Type.Position));
+        bottom.setBuffer(VertexBuffer.Type.Index, 3, BufferUtils.createShortBuffer((short) 12, (short) 13, (short) 14));
+        bottom.updateCounts();
+
+        assertEquals(CollisionDeriver.BOX, new CollisionDeriver(cache).derive(box, new Vector3f()).getKind());
+        assertEquals(CollisionDeriver.HULL, new CollisionDeriver(cache).derive(bottom, new Vector3f()).getKind());
+        assertEquals(2, cache.listFiles().length);
+    }
+
+    @Test
+    public void brokenCacheFilesAreDerivedAgain() throws IOException {
+        File cache = folder.newFolder("broken");
+        Box box = new Box(2, 0.5f, 3);
+        CollisionDeriver.Shape derived = new CollisionDeriver(cache).derive(box, new Vector3f());
+        File file = cache.listFiles()[0];
+        int magic;
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            magic = in.readInt();
+        }
+
+        int hullLength = (CollisionDeriver.HULL_DIRECTIONS + 1) * 3;
+        int[][] files = { // kind, length, floats written
+            { CollisionDeriver.BOX, 6, 3 }, // cut off
+            { CollisionDeriver.BOX, 6, 7 }, // more than the shape
+            { 99, 6, 6 }, // no such kind
+            { CollisionDeriver.BOX, Integer.MAX_VALUE, 6 },
+            { CollisionDeriver.BOX, -1, 6 },
+            { CollisionDeriver.SPHERE, 6, 6 }, // a box read as a sphere
+            { CollisionDeriver.HULL, 4, 4 }, // not whole points
+            { CollisionDeriver.HULL, hullLength, hullLength }, // more points than the mesh has vertices
+        };
+        for(int[] broken : files) {
+            try(DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                out.writeInt(magic);
+                out.writeInt(broken[0]);
+                out.writeInt(broken[1]);
+                for(int i = 0; i < broken[2]; i++) {
+                    out.writeFloat(i < 6 ? derived.getData()[i] : 0);
+                }
+            }
+            assertSameShape(derived, new CollisionDeriver(cache).derive(box, new Vector3f()));
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(magic);
+            out.writeInt(CollisionDeriver.BOX);
+            out.writeInt(6);
+            for(int i = 0; i < 6; i++) {
+                out.writeFloat(i == 3 ? Float.NaN : derived.getData()[i]);
+            }
+        }
+        assertSameShape(derived, new CollisionDeriver(cache).derive(box, new Vector3f()));
+    }
+
+    private static void assertSameShape(CollisionDeriver.Shape expected, CollisionDeriver.Shape actual) {
+        assertEquals(expected.getKind(), actual.getKind());
+        assertArrayEquals(expected.getData(), actual.getData(), 0);
+    }
+
+    @Test
+    public void playerBallIsDerivedFromItsMesh() {
+        CollisionDeriver.Shape shape = new CollisionDeriver(null).derive(MarbleSimulation.createPlayerMesh(), Vector3f.ZERO);
+        assertEquals(CollisionDeriver.SPHERE, shape.getKind());
+        assertEquals(2 * MarbleSimulation.PLAYER_RADIUS, shape.getData()[3], 1e-3f);
+    }
+
+    @Test
+    public void levelKeepsTheMaterialOfEveryPiece() {
+        List<LevelFile.Part> parts = Arrays.asList(
+                new LevelFile.Part("pillar", LevelFile.MATERIAL_WALL, ShadowMode.Cast, new Vector3f(), new Cylinder(8, 32, 1, 4, true)),
+                new LevelFile.Part("ball", LevelFile.MATERIAL_FLOOR, ShadowMode.Cast, new Vector3f(), new Sphere(16, 16, 2)),
+                new LevelFile.Part("floor", LevelFile.MATERIAL_FLOOR, ShadowMode.Receive, new Vector3f(), new Box(10, 0.5f, 10)),
+                new LevelFile.Part("wall", LevelFile.MATERIAL_WALL, ShadowMode.Inherit, new Vector3f(), new Box(0.5f, 2, 10)));
+        LevelData level = new CollisionDeriver(null).deriveLevel(parts, new float[0], 0.5f, new Vector3f());
+        assertEquals(2, level.getCollisionBoxCount());
+        assertEquals(1, level.getCollisionSphereCount());
+        assertEquals(1, level.getCollisionHulls().length);
+        // boxes first, then spheres, then hulls
+        assertArrayEquals(new int[] { LevelFile.MATERIAL_FLOOR, LevelFile.MATERIAL_WALL, LevelFile.MATERIAL_FLOOR, LevelFile.MATERIAL_WALL },
+                level.getPieceMaterials());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.bullet.collision.PhysicsCollisionEvent;
+import com.jme3.bullet.collision.PhysicsCollisionObject;
+import com.jme3.bullet.collision.shapes.SphereCollisionShape;
+import com.jme3.bullet.objects.PhysicsGhostObject;
+import com.jme3.bullet.objects.PhysicsRigidBody;
+import com.jme3.system.NativeLibraryLoader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the tag map and the handler table of {@link CollisionDispatcher}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionDispatcherTest {
+
+    private static SphereCollisionShape shape;
+
+    @BeforeClass
+    public static void loadBullet() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+        shape = new SphereCollisionShape(0.5f);
+    }
+
+    private static PhysicsGhostObject ghost(int group) {
+        PhysicsGhostObject ghost = new PhysicsGhostObject(shape);
+        ghost.setCollisionGroup(group);
+        return ghost;
+    }
+
+    /** a contact as bullet reports it, with objectA first */
+    private static PhysicsCollisionEvent event(PhysicsCollisionObject objectA, PhysicsCollisionObject objectB) {
+        return new PhysicsCollisionEvent(0, objectA, objectB, 0);
+    }
+
+    private static class Recorder implements CollisionDispatcher.Handler {
+
+        PhysicsCollisionObject self;
+        PhysicsCollisionObject other;
+        int selfTag;
+        int otherTag;
+        int calls;
+
+        @Override
+        public void collide(PhysicsCollisionObject self, int selfTag, PhysicsCollisionObject other, int otherTag) {
+            this.self = self;
+            this.selfTag = selfTag;
+            this.other = other;
+            this.otherTag = otherTag;
+            calls++;
+        }
+    }
+
+    @Test
+    public void tagsSurviveGrowthAndOverwrites() {
+        CollisionDispatcher dispatcher = new CollisionDispatcher();
+        PhysicsGhostObject[] ghosts = new PhysicsGhostObject[1000]; // the map starts with 64 slots
+        for(int index = 0; index < ghosts.length; index++) {
+            ghosts[index] = ghost(MarbleSimulation.PICKUP_GROUP);
+            dispatcher.setTag(ghosts[index], index);
+        }
+        dispatcher.setTag(ghosts[7], 70000);
+        for(int index = 0; index < ghosts.length; index++) {
+            assertEquals(index == 7 ? 70000 : index, dispatcher.getTag(ghosts[index]));
+        }
+        assertEquals(CollisionDispatcher.NO_TAG, dispatcher.getTag(ghost(MarbleSimulation.PICKUP_GROUP)));
+
+        dispatcher.clearTags();
+        for(PhysicsGhostObject ghost : ghosts) {
+            assertEquals(CollisionDispatcher.NO_TAG, dispatcher.getTag(ghost));
+        }
+        dispatcher.setTag(ghosts[0], 1);
+        assertEquals(1, dispatcher.getTag(ghosts[0]));
+    }
+
+    @Test
+    public void handlerReceivesItsFirstGroupFirst() {
+        CollisionDispatcher dispatcher = new CollisionDispatcher();
+        Recorder recorder = new Recorder();
+        dispatcher.addHandler(MarbleSimulation.PLAYER_GROUP, MarbleSimulation.PICKUP_GROUP, recorder);
+        PhysicsRigidBody player = new PhysicsRigidBody(shape, MarbleSimulation.PLAYER_MASS);
+        player.setCollisionGroup(MarbleSimulation.PLAYER_GROUP);
+        PhysicsGhostObject pickUp = ghost(MarbleSimulation.PICKUP_GROUP);
+        dispatcher.setTag(pickUp, 42);
+
+        dispatcher.collision(event(player, pickUp));
+        assertSame(player, recorder.self);
+        assertEquals(CollisionDispatcher.NO_TAG, recorder.selfTag);
+        assertSame(pickUp, recorder.other);
+        assertEquals(42, recorder.otherTag);
+
+        recorder.self = null;
+        dispatcher.collision(event(pickUp, player)); // bullet reported the pair the other way round
+        assertSame(player, recorder.self);
+        assertSame(pickUp, recorder.other);
+        assertEquals(42, recorder.otherTag);
+        assertEquals(2, recorder.calls);
+    }
+
+    @Test
+    public void contactsWithoutAHandlerAreDropped() {
+        CollisionDispatcher dispatcher = new CollisionDispatcher();
+        Recorder recorder = new Recorder();
+        dispatcher.addHandler(MarbleSimulation.PLAYER_GROUP, MarbleSimulation.PICKUP_GROUP, recorder);
+        PhysicsGhostObject player = ghost(MarbleSimulation.PLAYER_GROUP);
+        PhysicsGhostObject level = ghost(MarbleSimulation.LEVEL_GROUP);
+        PhysicsGhostObject pickUp = ghost(MarbleSimulation.PICKUP_GROUP);
+
+        dispatcher.collision(event(player, level));
+        dispatcher.collision(event(level, pickUp));
+        assertEquals(0, recorder.calls);
+
+        dispatcher.removeHandler(MarbleSimulation.PICKUP_GROUP, MarbleSimulation.PLAYER_GROUP);
+        dispatcher.collision(event(player, pickUp));
+        dispatcher.collision(event(pickUp, player));
+        assertEquals(0, recorder.calls);
+    }
+
+    @Test
+    public void removedHandlerLeavesNoOrientationBehind() {
+        CollisionDispatcher dispatcher = new CollisionDispatcher();
+        PhysicsGhostObject player = ghost(MarbleSimulation.PLAYER_GROUP);
+        PhysicsGhostObject pickUp = ghost(MarbleSimulation.PICKUP_GROUP);
+        dispatcher.addHandler(MarbleSimulation.PLAYER_GROUP, MarbleSimulation.PICKUP_GROUP, new Recorder());
+        dispatcher.removeHandler(MarbleSimulation.PLAYER_GROUP, MarbleSimulation.PICKUP_GROUP);
+
+        // registered the other way round, the pickup is now self
+        Recorder recorder = new Recorder();
+        dispatcher.addHandler(MarbleSimulation.PICKUP_GROUP, MarbleSimulation.PLAYER_GROUP, recorder);
+        dispatcher.collision(event(pickUp, player));
+        assertSame(pickUp, recorder.self);
+        dispatcher.collision(event(player, pickUp));
+        assertSame(pickUp, recorder.self);
+        assertSame(player, recorder.other);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void handlersNeedSingleGroups() {
+        new CollisionDispatcher().addHandler(MarbleSimulation.PLAYER_GROUP | MarbleSimulation.LEVEL_GROUP,
+                MarbleSimulation.PICKUP_GROUP, new Recorder());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order, the capacity and the thread handoff of {@link CollisionEventQueue}.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class CollisionEventQueueTest {
+
+    private static class Recorder implements CollisionEventQueue.Listener {
+
+        final List<int[]> events = new ArrayList<>();
+
+        @Override
+        public void event(int type, int index) {
+            events.add(new int[] { type, index });
+        }
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new CollisionEventQueue(0).capacity());
+        assertEquals(16, new CollisionEventQueue(16).capacity());
+        assertEquals(32, new CollisionEventQueue(17).capacity());
+    }
+
+    @Test
+    public void drainsInOfferOrder() {
+        CollisionEventQueue queue = new CollisionEventQueue(8);
+        assertTrue(queue.offer(MarbleSimulation.EVENT_PICKUP_COLLECTED, 3));
+        assertTrue(queue.offer(MarbleSimulation.EVENT_PICKUP_RESTORED, -1)); // the index keeps its sign
+        assertTrue(queue.offer(MarbleSimulation.EVENT_PICKUP_COLLECTED, Integer.MAX_VALUE));
+
+        Recorder recorder = new Recorder();
+        assertEquals(3, queue.drain(recorder));
+        assertArrayEquals(new int[] { MarbleSimulation.EVENT_PICKUP_COLLECTED, 3 }, recorder.events.get(0));
+        assertArrayEquals(new int[] { MarbleSimulation.EVENT_PICKUP_RESTORED, -1 }, recorder.events.get(1));
+        assertArrayEquals(new int[] { MarbleSimulation.EVENT_PICKUP_COLLECTED, Integer.MAX_VALUE }, recorder.events.get(2));
+        assertEquals(0, queue.drain(recorder));
+    }
+
+    @Test
+    public void refusesEventsWhenFullAndWrapsAround() {
+        CollisionEventQueue queue = new CollisionEventQueue(4);
+        Recorder recorder = new Recorder();
+        int next = 0;
+        for(int round = 0; round < 10; round++) {
+            for(int i = 0; i < queue.capacity(); i++) {
+                assertTrue(queue.offer(1, next++));
+            }
+            assertFalse("full", queue.offer(1, -1));
+            assertEquals(queue.capacity(), queue.drain(recorder));
+        }
+        for(int i = 0; i < next; i++) {
+            assertEquals(i, recorder.events.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void handsEventsToAnotherThread() throws InterruptedException {
+        final int count = 100000;
+        final CollisionEventQueue queue = new CollisionEventQueue(256);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int index = 0; index < count; index++) {
+                    while(!queue.offer(1, index)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        final int[] expected = new int[1];
+        CollisionEventQueue.Listener checker = new CollisionEventQueue.Listener() {
+            @Override
+            public void event(int type, int index) {
+                assertEquals(expected[0]++, index);
+            }
+        };
+        while(expected[0] < count) {
+            queue.drain(checker);
+        }
+        producer.join();
+        assertEquals(0, queue.drain(checker));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes input logs with {@link InputRecorder} and reads them back with
+ * {@link InputReplay}, without running a simulation.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class InputRecorderTest {
+
+    private static final LevelData LEVEL = new LevelData(new float[] { 0, -0.5f, 0, 22, 0.5f, 22 },
+            LevelData.createRing(16, 0.5f, 15.0f), 0.5f, new Vector3f(0, 2, 0));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesTheHeader() throws IOException {
+        File file = folder.newFile("header.input");
+        InputRecorder recorder = new InputRecorder(file, 1 / 60f, LEVEL, "levels/ring.level", InputRecorder.FLAG_PICKUP_GRID);
+        recorder.record(5, MarbleSimulation.INPUT_FORWARD);
+        recorder.close(100);
+
+        InputReplay replay = new InputReplay(file);
+        assertEquals(1 / 60f, replay.getTimestep(), 0);
+        assertEquals(100, replay.getLastTick());
+        assertEquals(16, replay.getPickUpCount());
+        assertEquals(InputRecorder.FLAG_PICKUP_GRID, replay.getFlags());
+        assertEquals(LEVEL.checksum(), replay.getLevelChecksum());
+        assertEquals("levels/ring.level", replay.getLevelFile());
+    }
+
+    @Test
+    public void recordsOnlyChangesAndEveryReset() throws IOException {
+        File file = folder.newFile("changes.input");
+        InputRecorder recorder = new InputRecorder(file, 1 / 60f, LEVEL, null, 0);
+        recorder.record(0, 0); // nothing held, nothing written
+        recorder.record(10, MarbleSimulation.INPUT_LEFT);
+        recorder.record(11, MarbleSimulation.INPUT_LEFT);
+        recorder.record(12, MarbleSimulation.INPUT_LEFT | InputRecorder.RESET);
+        recorder.record(13, MarbleSimulation.INPUT_LEFT | InputRecorder.RESET);
+        recorder.record(14, MarbleSimulation.INPUT_LEFT);
+        recorder.record(300000, 0); // a delta of three varint bytes
+        assertEquals(3 * 2 + 3 + 1, recorder.getLength());
+        recorder.close(300000);
+        assertEquals("cut to the records", InputRecorder.HEADER_SIZE + 3 * 2 + 3 + 1, file.length());
+
+        InputReplay replay = new InputReplay(file);
+        assertNull(replay.getLevelFile());
+        long[] expected = {
+            10, MarbleSimulation.INPUT_LEFT,
+            12, MarbleSimulation.INPUT_LEFT | InputRecorder.RESET,
+            13, MarbleSimulation.INPUT_LEFT | InputRecorder.RESET,
+            300000, 0,
+        };
+        for(int i = 0; i < expected.length; i += 2) {
+            assertTrue(replay.next());
+            assertEquals(expected[i], replay.getTick());
+            assertEquals(expected[i + 1], replay.getInput());
+        }
+        assertFalse(replay.next());
+
+        replay.rewind();
+        assertTrue(replay.next());
+        assertEquals(10, replay.getTick());
+    }
+
+    @Test
+    public void growsPastOneChunk() throws IOException {
+        File file = folder.newFile("long.input");
+        InputRecorder recorder = new InputRecorder(file, 1 / 60f, LEVEL, null, 0);
+        int records = 100000; // two bytes each, more than one 64 KiB mapping
+        for(int tick = 0; tick < records; tick++) {
+            recorder.record(tick, (tick & 1) == 0 ? MarbleSimulation.INPUT_FORWARD : MarbleSimulation.INPUT_BACKWARD);
+        }
+        // the header is current before close, so a session that died is still readable
+        InputReplay replay = new InputReplay(file);
+        assertEquals(records - 1, replay.getLastTick());
+        int read = 0;
+        while(replay.next()) {
+            assertEquals(read, replay.getTick());
+            read++;
+        }
+        assertEquals(records, read);
+        recorder.close();
+    }
+
+    @Test
+    public void refusesBrokenHeaders() throws IOException {
+        File file = folder.newFile("broken.input");
+        InputRecorder recorder = new InputRecorder(file, 1 / 60f, LEVEL, null, 0);
+        recorder.record(1, MarbleSimulation.INPUT_LEFT);
+        recorder.close(10);
+        byte[] original = Files.readAllBytes(file.toPath());
+        int[][] changes = {
+            { 36, -1 },                               // negative level name length
+            { 36, InputRecorder.MAX_LEVEL_NAME + 1 }, // level name longer than the header
+            { 8, 1000 },                              // more records than the file holds
+        };
+        for(int[] change : changes) {
+            ByteBuffer bytes = ByteBuffer.wrap(original.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putInt(change[0], change[1]);
+            Files.write(file.toPath(), bytes.array());
+            try {
+                new InputReplay(file);
+                fail("read a log with " + change[1] + " at " + change[0]);
+            } catch(IOException expected) {
+                // refused, not a NegativeArraySizeException
+            }
+        }
+        Files.write(file.toPath(), Arrays.copyOf(original, InputRecorder.HEADER_SIZE - 1));
+        try {
+            new InputReplay(file);
+            fail("read a log shorter than its header");
+        } catch(IOException expected) {
+            // refused
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLongLevelNames() throws IOException {
+        char[] name = new char[InputRecorder.MAX_LEVEL_NAME + 1];
+        Arrays.fill(name, 'a');
+        new InputRecorder(folder.newFile("name.input"), 1 / 60f, LEVEL, new String(name), 0);
+    }
+}
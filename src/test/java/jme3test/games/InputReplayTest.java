@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import java.io.File;
+import java.io.IOException;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a scripted headless session with {@link InputRecorder}, replays it
+ * with {@link InputReplay} and checks that both end in the same state.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class InputReplayTest {
+
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+    private static final int TICKS = 900;
+
+    // tick, input; RESET puts the player back to the start like the 'R' key
+    private static final int[] SCRIPT = {
+        0,   MarbleSimulation.INPUT_FORWARD,
+        120, MarbleSimulation.INPUT_FORWARD | MarbleSimulation.INPUT_LEFT,
+        240, MarbleSimulation.INPUT_RIGHT,
+        360, 0,
+        420, MarbleSimulation.INPUT_BACKWARD | InputRecorder.RESET,
+        600, MarbleSimulation.INPUT_LEFT,
+        780, 0,
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadBullet() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+    }
+
+    @Test
+    public void replayEndsInTheRecordedState() throws IOException {
+        LevelData level = LevelData.createDefault(16, 0.5f, 15.0f, PLAYER_START);
+        File log = folder.newFile("session.input");
+
+        MarbleSimulation recorded = MarbleSimulation.createHeadless(level, true);
+        WorldSnapshot expected = new WorldSnapshot(level.getPickUpCount());
+        try(InputRecorder recorder = new InputRecorder(log, MarbleSimulation.TIMESTEP, level, null, InputRecorder.FLAG_PICKUP_GRID)) {
+            int next = 0;
+            for(int step = 0; step < TICKS; step++) {
+                while(next < SCRIPT.length && SCRIPT[next] == step) {
+                    int input = SCRIPT[next + 1];
+                    recorder.record(recorded.getTick(), input);
+                    if((input & InputRecorder.RESET) != 0) {
+                        recorded.reset();
+                    }
+                    recorded.setInput(input & ~InputRecorder.RESET);
+                    next += 2;
+                }
+                recorded.step();
+            }
+            recorder.close(recorded.getTick());
+        }
+        recorded.capture(expected);
+        recorded.destroy();
+
+        InputReplay replay = new InputReplay(log);
+        assertEquals(TICKS, replay.getLastTick());
+        assertNull(replay.getLevelFile());
+        MarbleSimulation replayed = MarbleSimulation.createHeadless(replay.loadLevel(),
+                (replay.getFlags() & InputRecorder.FLAG_PICKUP_GRID) != 0);
+        replay.replay(replayed);
+        WorldSnapshot actual = replayed.capture(new WorldSnapshot(level.getPickUpCount()));
+        replayed.destroy();
+
+        assertEquals(expected.getTick(), actual.getTick());
+        assertEquals(expected.getScore(), actual.getScore());
+        assertArrayEquals(expected.collected, actual.collected);
+        assertArrayEquals(expected.player, actual.player, 0.0f); // the same inputs on the same steps must give the same bits
+    }
+
+    @Test
+    public void replayRejectsAChangedLevel() throws IOException {
+        LevelData level = LevelData.createDefault(16, 0.5f, 15.0f, PLAYER_START);
+        File log = folder.newFile("moved.input");
+        LevelData moved = new LevelData(level.getCollisionBoxes(), level.getCollisionSpheres(), level.getCollisionHulls(),
+                level.getPickUps(), level.getPickUpSize(), new Vector3f(1.0f, PLAYER_START.y, 0.0f));
+        new InputRecorder(log, MarbleSimulation.TIMESTEP, moved, null, 0).close(0);
+
+        try {
+            new InputReplay(log).loadLevel();
+            fail("The built in level does not start at " + moved.getPlayerStart());
+        } catch(IOException expected) {
+            assertTrue(expected.getMessage().contains("changed since the recording"));
+        }
+    }
+
+    @Test
+    public void replayLoadsTheRecordedLevelFile() throws IOException {
+        LevelFile level = LevelFile.createDefault(8, 0.5f, 10.0f, PLAYER_START);
+        File levelFile = folder.newFile("small.level");
+        level.save(levelFile);
+        File log = folder.newFile("small.input");
+        new InputRecorder(log, MarbleSimulation.TIMESTEP, level.getData(), levelFile.getPath(), 0).close(0);
+
+        InputReplay replay = new InputReplay(log);
+        assertEquals(levelFile.getPath(), replay.getLevelFile());
+        assertEquals(8, replay.loadLevel().getPickUpCount());
+    }
+}
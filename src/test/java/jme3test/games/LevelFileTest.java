@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Cylinder;
+import com.jme3.scene.shape.Sphere;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves and maps {@link LevelFile}s and checks that broken files are refused
+ * when they are loaded.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class LevelFileTest {
+
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** the default level with a sphere and a hull added, so every kind of collision piece is stored */
+    private static LevelFile createLevel() {
+        LevelFile level = LevelFile.createDefault(40, 0.5f, 15.0f, PLAYER_START);
+        List<LevelFile.Part> parts = new ArrayList<>(level.getParts());
+        parts.add(new LevelFile.Part("ball", LevelFile.MATERIAL_WALL, ShadowMode.CastAndReceive,
+                new Vector3f(5, 2, 5), new Sphere(16, 16, 2)));
+        parts.add(new LevelFile.Part("pillar", LevelFile.MATERIAL_FLOOR, ShadowMode.Cast,
+                new Vector3f(-5, 2, -5), new Cylinder(8, 32, 1, 4, true)));
+        LevelData data = new CollisionDeriver(null).deriveLevel(parts, level.getData().getPickUps(), 0.5f, PLAYER_START);
+        return new LevelFile(data, parts);
+    }
+
+    private File save(LevelFile level) throws IOException {
+        File file = folder.newFile();
+        level.save(file);
+        return file;
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        LevelFile level = createLevel();
+        LevelFile loaded = LevelFile.load(save(level));
+
+        LevelData data = level.getData();
+        LevelData loadedData = loaded.getData();
+        assertArrayEquals(data.getCollisionBoxes(), loadedData.getCollisionBoxes(), 0);
+        assertArrayEquals(data.getCollisionSpheres(), loadedData.getCollisionSpheres(), 0);
+        assertEquals(1, loadedData.getCollisionSphereCount());
+        assertEquals(1, loadedData.getCollisionHulls().length);
+        assertArrayEquals(data.getCollisionHulls()[0], loadedData.getCollisionHulls()[0], 0);
+        assertArrayEquals(data.getPieceMaterials(), loadedData.getPieceMaterials());
+        assertArrayEquals(data.getPickUps(), loadedData.getPickUps(), 0);
+        assertEquals(data.getPickUpSize(), loadedData.getPickUpSize(), 0);
+        assertEquals(data.getPlayerStart(), loadedData.getPlayerStart());
+        assertEquals(data.checksum(), loadedData.checksum());
+
+        assertEquals(level.getParts().size(), loaded.getParts().size());
+        for(int i = 0; i < level.getParts().size(); i++) {
+            LevelFile.Part part = level.getParts().get(i);
+            LevelFile.Part loadedPart = loaded.getParts().get(i);
+            assertEquals(part.getName(), loadedPart.getName());
+            assertEquals(part.getMaterial(), loadedPart.getMaterial());
+            assertEquals(part.getShadowMode(), loadedPart.getShadowMode());
+            assertEquals(part.getTranslation(), loadedPart.getTranslation());
+            assertSameMesh(part.getMesh(), loadedPart.getMesh());
+            assertEquals(part.getMesh().getNumLodLevels(), loadedPart.getMesh().getNumLodLevels());
+        }
+        assertSameMesh(level.getPickUpMesh(), loaded.getPickUpMesh());
+    }
+
+    private static void assertSameMesh(Mesh expected, Mesh actual) {
+        assertEquals(expected.getMode(), actual.getMode());
+        assertEquals(expected.getVertexCount(), actual.getVertexCount());
+        assertEquals(expected.getTriangleCount(), actual.getTriangleCount());
+        for(VertexBuffer buffer : expected.getBufferList()) {
+            if(buffer.getBufferType() == VertexBuffer.Type.TexCoord3) {
+                continue; // the visibility of the pickups is built by PickupRenderer, not stored
+            }
+            VertexBuffer loaded = actual.getBuffer(buffer.getBufferType());
+            assertNotNull(buffer.getBufferType() + " buffer", loaded);
+            assertEquals(buffer.getFormat(), loaded.getFormat());
+            assertEquals(buffer.getNumComponents(), loaded.getNumComponents());
+            assertEquals(buffer.getBufferType() + " data", contents(buffer.getData()), contents(loaded.getData()));
+        }
+    }
+
+    private static String contents(Buffer buffer) {
+        if(buffer instanceof FloatBuffer) {
+            FloatBuffer copy = ((FloatBuffer) buffer).duplicate();
+            float[] values = new float[copy.clear().capacity()];
+            copy.get(values);
+            return Arrays.toString(values);
+        } else if(buffer instanceof IntBuffer) {
+            IntBuffer copy = ((IntBuffer) buffer).duplicate();
+            int[] values = new int[copy.clear().capacity()];
+            copy.get(values);
+            return Arrays.toString(values);
+        } else if(buffer instanceof ShortBuffer) {
+            ShortBuffer copy = ((ShortBuffer) buffer).duplicate();
+            short[] values = new short[copy.clear().capacity()];
+            copy.get(values);
+            return Arrays.toString(values);
+        }
+        ByteBuffer copy = ((ByteBuffer) buffer).duplicate();
+        byte[] values = new byte[copy.clear().capacity()];
+        copy.get(values);
+        return Arrays.toString(values);
+    }
+
+    @Test
+    public void refusesTruncatedFiles() throws IOException {
+        File file = save(createLevel());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File truncated = folder.newFile();
+        for(int length = 1; length < bytes.length; length += 61) {
+            Files.write(truncated.toPath(), Arrays.copyOf(bytes, length));
+            try {
+                LevelFile.load(truncated);
+                fail("loaded a level file cut at " + length + " of " + bytes.length + " bytes");
+            } catch(IOException expected) {
+                // refused when loaded, not when a mesh is drawn
+            }
+        }
+    }
+
+    @Test
+    public void refusesBrokenCounts() throws IOException {
+        File file = save(createLevel());
+        int[] counts = { 8, 12, 16, 20, 24 }; // boxes, spheres, hulls, pickups, parts
+        byte[] original = Files.readAllBytes(file.toPath());
+        for(int offset : counts) {
+            for(int value : new int[] { -1, Integer.MAX_VALUE, original.length }) {
+                Files.write(file.toPath(), original);
+                try(RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.seek(offset);
+                    out.writeInt(Integer.reverseBytes(value)); // the file is little endian
+                }
+                try {
+                    LevelFile.load(file);
+                    fail("loaded a level file with " + value + " at " + offset);
+                } catch(IOException expected) {
+                    assertTrue(expected.getMessage(), expected.getMessage().contains("broken"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void refusesUnknownMaterials() throws IOException {
+        LevelFile level = createLevel();
+        LevelData data = level.getData();
+        int[] materials = data.getPieceMaterials().clone();
+        materials[materials.length - 1] = LevelFile.MATERIAL_WALL + 1;
+        LevelData broken = new LevelData(data.getCollisionBoxes(), data.getCollisionSpheres(), data.getCollisionHulls(),
+                materials, data.getPickUps(), data.getPickUpSize(), data.getPlayerStart());
+        assertBroken(new LevelFile(broken, level.getParts()), "material");
+
+        List<LevelFile.Part> parts = new ArrayList<>(level.getParts());
+        parts.add(new LevelFile.Part("glass", LevelFile.MATERIAL_WALL + 1, ShadowMode.Off, new Vector3f(), new Sphere(4, 4, 1)));
+        assertBroken(new LevelFile(data, parts), "material");
+    }
+
+    @Test
+    public void refusesPickUpMeshesOfAnotherCount() throws IOException {
+        LevelFile level = createLevel();
+        float[] pickUps = level.getData().getPickUps();
+        Mesh mesh = PickupRenderer.createMesh(Arrays.copyOf(pickUps, pickUps.length - 3), 0.5f); // made for one pickup less
+        assertBroken(new LevelFile(level.getData(), level.getParts(), mesh), "pickup vertices");
+    }
+
+    @Test
+    public void refusesIndicesPastTheVertices() throws IOException {
+        LevelFile level = createLevel();
+        Mesh mesh = new Sphere(4, 4, 1);
+        ((ShortBuffer) mesh.getBuffer(VertexBuffer.Type.Index).getData()).put(0, (short) mesh.getVertexCount());
+        List<LevelFile.Part> parts = new ArrayList<>(level.getParts());
+        parts.add(new LevelFile.Part("hole", LevelFile.MATERIAL_WALL, ShadowMode.Off, new Vector3f(), mesh));
+        assertBroken(new LevelFile(level.getData(), parts), "index");
+    }
+
+    private void assertBroken(LevelFile level, String reason) throws IOException {
+        File file = save(level);
+        try {
+            LevelFile.load(file);
+            fail("loaded a level file with a broken " + reason);
+        } catch(IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(reason));
+        }
+    }
+
+    @Test
+    public void refusesOtherFilesAndVersions() throws IOException {
+        File file = save(createLevel());
+        try(RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(4);
+            out.writeInt(Integer.reverseBytes(LevelFile.VERSION + 1));
+        }
+        try {
+            LevelFile.load(file);
+            fail("loaded another version");
+        } catch(IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("version"));
+        }
+
+        File other = folder.newFile();
+        Files.write(other.toPath(), new byte[LevelFile.HEADER_SIZE]);
+        try {
+            LevelFile.load(other);
+            fail("loaded a file of zeros");
+        } catch(IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("not a level file"));
+        }
+    }
+
+    @Test
+    public void refusesToSaveUnsupportedFormats() throws IOException {
+        assertTrue(LevelFile.isSupported(VertexBuffer.Format.Float));
+        assertFalse(LevelFile.isSupported(VertexBuffer.Format.Half));
+
+        Mesh mesh = new Sphere(4, 4, 1);
+        VertexBuffer half = new VertexBuffer(VertexBuffer.Type.TexCoord2);
+        half.setupData(VertexBuffer.Usage.Static, 2, VertexBuffer.Format.Half, ByteBuffer.allocate(mesh.getVertexCount() * 4));
+        mesh.setBuffer(half);
+        List<LevelFile.Part> parts = new ArrayList<>(createLevel().getParts());
+        parts.add(new LevelFile.Part("half", LevelFile.MATERIAL_WALL, ShadowMode.Off, new Vector3f(), mesh));
+        try {
+            new LevelFile(createLevel().getData(), parts).save(folder.newFile());
+            fail("saved a half float buffer");
+        } catch(IOException expected) {
+            // the loader could not read it back
+        }
+    }
+}
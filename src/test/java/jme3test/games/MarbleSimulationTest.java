@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import com.jme3.system.NativeLibraryLoader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Captures and restores the state of a headless {@link MarbleSimulation}
+ * through the dirty list of the baseline and through the word by word
+ * comparison of any other snapshot.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class MarbleSimulationTest {
+
+    private static final Vector3f PLAYER_START = new Vector3f(0.0f, MarbleSimulation.PLAYER_RADIUS * 2, 0.0f);
+    private static final int PICKUPS = 200; // more than one word of collected bits
+
+    @BeforeClass
+    public static void loadBullet() {
+        NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+    }
+
+    /** drops the player onto a pickup and steps until it was collected */
+    private static void collectAt(MarbleSimulation simulation, int index) {
+        float[] pickUps = simulation.getLevel().getPickUps();
+        simulation.getPlayer().setPhysicsLocation(new Vector3f(pickUps[index * 3], pickUps[index * 3 + 1], pickUps[index * 3 + 2]));
+        for(int step = 0; step < 10 && !simulation.isCollected(index); step++) {
+            simulation.step();
+        }
+        assertTrue("pickup " + index + " collected", simulation.isCollected(index));
+    }
+
+    private static void assertState(WorldSnapshot expected, MarbleSimulation simulation) {
+        WorldSnapshot actual = new WorldSnapshot(PICKUPS);
+        long[] collected = simulation.getCollected(new long[actual.collected.length]);
+        assertArrayEquals(expected.collected, collected);
+        assertEquals(expected.getScore(), simulation.getScore());
+        simulation.capture(actual);
+        for(int i = 0; i < 7; i++) { // location and rotation, bullet may round the velocities
+            assertEquals("player state " + i, expected.player[i], actual.player[i], 1e-4f);
+        }
+    }
+
+    @Test
+    public void restoresTheBaselineFromTheDirtyList() {
+        LevelData level = LevelData.createDefault(PICKUPS, 0.5f, 15.0f, PLAYER_START);
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(level, true);
+        collectAt(simulation, 5);
+        WorldSnapshot checkpoint = simulation.capture(new WorldSnapshot(PICKUPS)); // the baseline now
+
+        collectAt(simulation, 70);
+        collectAt(simulation, 150);
+        assertTrue(simulation.getScore() > checkpoint.getScore());
+        simulation.restore(checkpoint);
+        assertState(checkpoint, simulation);
+        assertTrue(simulation.isCollected(5));
+        assertFalse(simulation.isCollected(70));
+        assertFalse(simulation.isCollected(150));
+    }
+
+    @Test
+    public void restoresOtherSnapshotsWordByWord() {
+        LevelData level = LevelData.createDefault(PICKUPS, 0.5f, 15.0f, PLAYER_START);
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(level, true);
+        collectAt(simulation, 10);
+        WorldSnapshot first = simulation.capture(new WorldSnapshot(PICKUPS));
+        collectAt(simulation, 100);
+        WorldSnapshot second = simulation.capture(new WorldSnapshot(PICKUPS)); // the baseline now, first is not
+        collectAt(simulation, 190);
+
+        simulation.restore(first);
+        assertState(first, simulation);
+        assertFalse(simulation.isCollected(100));
+        assertFalse(simulation.isCollected(190));
+
+        simulation.restore(second); // not the baseline either, pickups come back and go again
+        assertState(second, simulation);
+        assertTrue(simulation.isCollected(100));
+        assertFalse(simulation.isCollected(190));
+
+        simulation.reset();
+        assertEquals(0, simulation.getScore());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesSnapshotsOfAnotherLevel() {
+        MarbleSimulation simulation = MarbleSimulation.createHeadless(
+                LevelData.createDefault(PICKUPS, 0.5f, 15.0f, PLAYER_START), true);
+        MarbleSimulation other = MarbleSimulation.createHeadless(
+                LevelData.createDefault(PICKUPS, 0.5f, 12.0f, PLAYER_START), true); // the same pickup count on a smaller ring
+        simulation.restore(other.capture(new WorldSnapshot(PICKUPS)));
+    }
+}
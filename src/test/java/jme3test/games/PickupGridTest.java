@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the {@link PickupGrid} queries and searches against a scan over every pickup.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class PickupGridTest {
+
+    private static float[] scatter(Random random, int count, float extent) {
+        float[] positions = new float[count * 3];
+        for(int i = 0; i < positions.length; i += 3) {
+            positions[i] = (random.nextFloat() - 0.5f) * extent;
+            positions[i + 1] = 0.75f;
+            positions[i + 2] = (random.nextFloat() - 0.5f) * extent;
+        }
+        return positions;
+    }
+
+    private static float distanceSquared(float[] positions, int index, float x, float z) {
+        float dx = positions[index * 3] - x;
+        float dz = positions[index * 3 + 2] - z;
+        return dx * dx + dz * dz;
+    }
+
+    @Test
+    public void queryMatchesAFullScan() {
+        Random random = new Random(5);
+        final float[] positions = scatter(random, 2000, 200.0f);
+        float pickUpRadius = 0.5f;
+        PickupGrid grid = new PickupGrid(positions, pickUpRadius, MarbleSimulation.PICKUP_CELL_SIZE);
+        Vector3f center = new Vector3f();
+        final boolean[] visited = new boolean[2000];
+        PickupGrid.Visitor marker = new PickupGrid.Visitor() {
+            @Override
+            public void visit(int index) {
+                assertFalse("visited twice", visited[index]);
+                visited[index] = true;
+            }
+        };
+
+        for(int query = 0; query < 500; query++) {
+            center.set((random.nextFloat() - 0.5f) * 300.0f, random.nextFloat() * 2, (random.nextFloat() - 0.5f) * 300.0f);
+            float radius = random.nextFloat() * 10.0f;
+            Arrays.fill(visited, false);
+            grid.query(center, radius, marker);
+            float reach = radius + pickUpRadius;
+            for(int index = 0; index < visited.length; index++) {
+                float dy = positions[index * 3 + 1] - center.y;
+                boolean overlaps = distanceSquared(positions, index, center.x, center.z) + dy * dy <= reach * reach;
+                assertEquals("pickup " + index, overlaps, visited[index]);
+            }
+        }
+    }
+
+    @Test
+    public void findNearestMatchesAFullScan() {
+        Random random = new Random(7);
+        float[] positions = scatter(random, 2000, 200.0f);
+        PickupGrid grid = new PickupGrid(positions, 0.5f, MarbleSimulation.PICKUP_CELL_SIZE);
+        final boolean[] collected = new boolean[2000];
+        for(int i = 0; i < collected.length; i++) {
+            collected[i] = random.nextFloat() < 0.9f;
+        }
+        PickupGrid.Filter open = new PickupGrid.Filter() {
+            @Override
+            public boolean accept(int index) {
+                return !collected[index];
+            }
+        };
+
+        for(int query = 0; query < 500; query++) {
+            // some of the points lie outside the grid
+            float x = (random.nextFloat() - 0.5f) * 300.0f;
+            float z = (random.nextFloat() - 0.5f) * 300.0f;
+            float best = Float.POSITIVE_INFINITY;
+            for(int index = 0; index < collected.length; index++) {
+                if(!collected[index]) {
+                    best = Math.min(best, distanceSquared(positions, index, x, z));
+                }
+            }
+            int found = grid.findNearest(x, z, open);
+            assertTrue(found >= 0);
+            assertFalse(collected[found]);
+            assertEquals(best, distanceSquared(positions, found, x, z), 0.0f);
+        }
+    }
+
+    @Test
+    public void findNearestWithoutAcceptedPickups() {
+        PickupGrid grid = new PickupGrid(scatter(new Random(3), 100, 50.0f), 0.5f, MarbleSimulation.PICKUP_CELL_SIZE);
+        assertEquals(-1, grid.findNearest(0, 0, new PickupGrid.Filter() {
+            @Override
+            public boolean accept(int index) {
+                return false;
+            }
+        }));
+        assertEquals(-1, new PickupGrid(new float[0], 0.5f, 4.0f).findNearest(0, 0, new PickupGrid.Filter() {
+            @Override
+            public boolean accept(int index) {
+                return true;
+            }
+        }));
+    }
+}
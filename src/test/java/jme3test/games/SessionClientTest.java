@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds a {@link SessionClient} hand made snapshots and checks that the player
+ * is drawn between the two states around the render time.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SessionClientTest {
+
+    private static final float TOLERANCE = 1 / SnapshotCodec.POSITION_SCALE;
+
+    /** the player jumps between 0 and 10 every snapshot, so a skipped state shows */
+    private static float locationAt(float tick) {
+        float step = tick / SessionServer.SEND_TICKS;
+        int before = (int) Math.floor(step);
+        float blend = step - before;
+        float from = (before & 1) == 0 ? 0 : 10;
+        float to = (before & 1) == 0 ? 10 : 0;
+        return from + (to - from) * blend;
+    }
+
+    private static void send(SessionChannel server, int sequence) throws Exception {
+        long tick = (long) sequence * SessionServer.SEND_TICKS;
+        SnapshotCodec.State state = new SnapshotCodec.State(1, 1);
+        state.setPlayer(0, new Vector3f(locationAt(tick), 0, 0), Quaternion.IDENTITY, 0);
+        state.sequence = sequence;
+        state.tick = tick;
+        ByteBuffer packet = ByteBuffer.allocate(SessionChannel.MAX_PACKET_SIZE);
+        SnapshotCodec.encode(state, null, packet);
+        packet.flip();
+        server.send(packet);
+    }
+
+    private static void play(boolean late) throws Exception {
+        SessionChannel[] pair = SessionChannel.createLocalPair();
+        SessionClient client = new SessionClient(0, pair[1], 1, 1, null);
+        Vector3f location = new Vector3f();
+        int interpolated = 0;
+        for(int tick = 0; tick < 120; tick++) {
+            if(tick % SessionServer.SEND_TICKS == 0) {
+                int sequence = tick / SessionServer.SEND_TICKS;
+                if(late && sequence % 4 == 1) {
+                    // held back, it arrives after the next one
+                } else {
+                    send(pair[0], sequence);
+                    if(late && sequence % 4 == 2) {
+                        send(pair[0], sequence - 1);
+                    }
+                }
+            }
+            client.update(MarbleSimulation.TIMESTEP);
+            float renderTick = client.getRenderTick();
+            assertTrue("behind the newest snapshot", renderTick <= client.getLatest().getTick());
+            if(tick > SessionClient.INTERPOLATION_TICKS * 2) {
+                assertEquals("at tick " + renderTick, locationAt(renderTick), client.getLocation(0, location).x, TOLERANCE);
+                if(renderTick % SessionServer.SEND_TICKS != 0) {
+                    interpolated++;
+                }
+            }
+        }
+        assertTrue("drawn between snapshots", interpolated > 0);
+        client.close();
+    }
+
+    @Test
+    public void interpolatesBetweenBufferedStates() throws Exception {
+        play(false);
+    }
+
+    @Test
+    public void placesLatePacketsInOrder() throws Exception {
+        play(true);
+    }
+
+    @Test
+    public void brokenPacketsLeaveTheHistoryAlone() throws Exception {
+        SessionChannel[] pair = SessionChannel.createLocalPair();
+        SessionClient client = new SessionClient(0, pair[1], 1, 1, null);
+        send(pair[0], 0);
+        client.update(MarbleSimulation.TIMESTEP);
+
+        SnapshotCodec.State broken = new SnapshotCodec.State(1, 2); // collects a pickup the client does not have
+        broken.setCollected(new long[] { 2L });
+        broken.sequence = 1;
+        broken.tick = SessionServer.SEND_TICKS;
+        ByteBuffer packet = ByteBuffer.allocate(SessionChannel.MAX_PACKET_SIZE);
+        SnapshotCodec.encode(broken, null, packet);
+        packet.flip();
+        pair[0].send(packet);
+        client.update(MarbleSimulation.TIMESTEP);
+        assertEquals(0, client.getLatest().getSequence());
+
+        send(pair[0], 1); // not taken for a repeat of the broken one
+        client.update(MarbleSimulation.TIMESTEP);
+        assertEquals(1, client.getLatest().getSequence());
+        assertEquals(2, client.getReceived());
+        client.close();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips {@link SnapshotCodec} packets and checks the rotation packing.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class SnapshotCodecTest {
+
+    private static final int PLAYERS = 4;
+    private static final int PICKUPS = 5000;
+    private static final float MAX_ROTATION_ERROR = 0.005f; // radians, 10 bits per component
+
+    private static SnapshotCodec.State randomState(Random random, int sequence, float collectedChance) {
+        SnapshotCodec.State state = new SnapshotCodec.State(PLAYERS, PICKUPS);
+        Quaternion rotation = new Quaternion();
+        for(int player = 0; player < PLAYERS; player++) {
+            rotation.fromAngles(random.nextFloat() * FastMath.TWO_PI, random.nextFloat() * FastMath.TWO_PI,
+                    random.nextFloat() * FastMath.TWO_PI);
+            state.setPlayer(player, new Vector3f(random.nextFloat() * 200 - 100, random.nextFloat() * 10,
+                    random.nextFloat() * 200 - 100), rotation, random.nextInt(PICKUPS));
+        }
+        long[] bits = new long[(PICKUPS + 63) >>> 6];
+        for(int index = 0; index < PICKUPS; index++) {
+            if(random.nextFloat() < collectedChance) {
+                bits[index >>> 6] |= 1L << index;
+            }
+        }
+        state.setCollected(bits);
+        state.sequence = sequence;
+        state.tick = sequence * SessionServer.SEND_TICKS;
+        return state;
+    }
+
+    private static SnapshotCodec.State roundTrip(SnapshotCodec.State current, SnapshotCodec.State baseline, int capacity) {
+        ByteBuffer packet = ByteBuffer.allocate(capacity);
+        SnapshotCodec.encode(current, baseline, packet);
+        packet.flip();
+        assertEquals(baseline != null ? baseline.getSequence() : SnapshotCodec.NO_BASELINE, SnapshotCodec.peekBaseline(packet));
+        assertEquals(current.getSequence(), SnapshotCodec.peekSequence(packet));
+        SnapshotCodec.State decoded = SnapshotCodec.decode(packet, baseline, new SnapshotCodec.State(PLAYERS, PICKUPS));
+        assertFalse("the whole packet is read", packet.hasRemaining());
+        return decoded;
+    }
+
+    private static void assertSameState(SnapshotCodec.State expected, SnapshotCodec.State actual) {
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getTick(), actual.getTick());
+        assertArrayEquals(expected.positions, actual.positions);
+        assertArrayEquals(expected.rotations, actual.rotations);
+        assertArrayEquals(expected.scores, actual.scores);
+        assertArrayEquals(expected.collected, actual.collected);
+    }
+
+    @Test
+    public void decodesAgainstAnAcknowledgedBaseline() {
+        Random random = new Random(3);
+        SnapshotCodec.State baseline = randomState(random, 10, 0.5f);
+        SnapshotCodec.State current = new SnapshotCodec.State(PLAYERS, PICKUPS);
+        current.set(baseline);
+        current.sequence = 11;
+        current.tick = baseline.tick + SessionServer.SEND_TICKS;
+        current.positions[0] += 37; // player 0 moved, player 1 turned, player 2 scored, player 3 did nothing
+        current.rotations[1] = SnapshotCodec.packRotation(new Quaternion().fromAngles(0.1f, 0.2f, 0.3f));
+        current.scores[2] += 2;
+        current.collected[0] ^= 0x5L;
+        current.collected[PICKUPS >>> 6] ^= 1L << (PICKUPS - 1);
+
+        assertSameState(current, roundTrip(current, baseline, SessionChannel.MAX_PACKET_SIZE));
+    }
+
+    @Test
+    public void decodesWithoutABaseline() {
+        SnapshotCodec.State current = randomState(new Random(4), 0, 0.01f);
+
+        assertSameState(current, roundTrip(current, null, SessionChannel.MAX_PACKET_SIZE));
+    }
+
+    @Test
+    public void refusesPickupsPastTheLevel() {
+        SnapshotCodec.State current = new SnapshotCodec.State(PLAYERS, PICKUPS);
+        current.collected[PICKUPS >>> 6] |= 1L << (PICKUPS - 1);
+        ByteBuffer packet = ByteBuffer.allocate(SessionChannel.MAX_PACKET_SIZE);
+        SnapshotCodec.encode(current, null, packet);
+        packet.flip();
+        try {
+            SnapshotCodec.decode(packet, null, new SnapshotCodec.State(PLAYERS, PICKUPS - 1)); // the same number of words
+            fail("decoded a pickup the level does not have");
+        } catch(IllegalArgumentException expected) {
+            // the client drops the packet
+        }
+    }
+
+    @Test
+    public void sendsTheRestOfTruncatedPickupsLater() {
+        Random random = new Random(5);
+        SnapshotCodec.State baseline = randomState(random, 20, 0.0f);
+        SnapshotCodec.State wanted = randomState(random, 21, 0.5f); // about 2500 changes, far more than one packet holds
+        SnapshotCodec.State current = new SnapshotCodec.State(PLAYERS, PICKUPS);
+        current.set(wanted);
+
+        SnapshotCodec.State decoded = roundTrip(current, baseline, SessionChannel.MAX_PACKET_SIZE);
+        assertSameState(current, decoded); // encode reverted the changes that did not fit
+        int sent = 0;
+        for(int index = 0; index < PICKUPS; index++) {
+            if(decoded.isCollected(index)) {
+                sent++;
+                assertTrue(wanted.isCollected(index));
+            }
+        }
+        assertTrue("some changes fit", sent > 0);
+        assertTrue("some changes were left out", sent < countCollected(wanted));
+
+        // the next snapshots carry the rest, each against the one before
+        SnapshotCodec.State previous = decoded;
+        for(int sequence = 22; sequence < 60 && !Arrays.equals(previous.collected, wanted.collected); sequence++) {
+            current = new SnapshotCodec.State(PLAYERS, PICKUPS);
+            current.set(wanted);
+            current.sequence = sequence;
+            decoded = roundTrip(current, previous, SessionChannel.MAX_PACKET_SIZE);
+            assertSameState(current, decoded);
+            previous = decoded;
+        }
+        assertArrayEquals(wanted.collected, previous.collected);
+    }
+
+    private static int countCollected(SnapshotCodec.State state) {
+        int count = 0;
+        for(long word : state.collected) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Test
+    public void packedRotationsStayWithinTheErrorBound() {
+        Random random = new Random(6);
+        Quaternion rotation = new Quaternion();
+        Quaternion unpacked = new Quaternion();
+        float maxError = 0;
+        for(int i = 0; i < 100000; i++) {
+            rotation.set(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1,
+                    random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1).normalizeLocal();
+            SnapshotCodec.unpackRotation(SnapshotCodec.packRotation(rotation), unpacked);
+            float dot = Math.min(1, Math.abs(rotation.dot(unpacked)));
+            maxError = Math.max(maxError, 2 * (float) Math.acos(dot)); // the angle of the rotation between the two
+        }
+        assertTrue("max rotation error " + maxError, maxError < MAX_ROTATION_ERROR);
+    }
+}
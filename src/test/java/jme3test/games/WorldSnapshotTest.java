@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2009-2021 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package jme3test.games;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves and loads {@link WorldSnapshot} checkpoints.
+ *
+ * @author SkidRunner (Mark E. Picknell)
+ */
+public class WorldSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        WorldSnapshot snapshot = new WorldSnapshot(130); // the last word is partly used
+        snapshot.score = 3;
+        snapshot.levelChecksum = 0xCAFEBABE;
+        snapshot.tick = 1L << 40;
+        for(int i = 0; i < WorldSnapshot.PLAYER_STATE_SIZE; i++) {
+            snapshot.player[i] = i * 0.25f - 1;
+        }
+        snapshot.collected[0] = 1L | (1L << 63);
+        snapshot.collected[2] = 1L << 1;
+        File file = folder.newFile("checkpoint");
+        snapshot.save(file);
+
+        WorldSnapshot loaded = WorldSnapshot.load(file);
+        assertEquals(130, loaded.getPickUpCount());
+        assertEquals(0xCAFEBABE, loaded.getLevelChecksum());
+        assertEquals(3, loaded.getScore());
+        assertEquals(1L << 40, loaded.getTick());
+        assertArrayEquals(snapshot.player, loaded.player, 0);
+        assertArrayEquals(snapshot.collected, loaded.collected);
+        assertTrue(loaded.isCollected(0));
+        assertTrue(loaded.isCollected(63));
+        assertFalse(loaded.isCollected(64));
+        assertTrue(loaded.isCollected(129));
+    }
+
+    @Test
+    public void rejectsBrokenCounts() throws IOException {
+        WorldSnapshot snapshot = new WorldSnapshot(100);
+        File file = folder.newFile("broken");
+        snapshot.save(file);
+        for(int count : new int[] { -1, Integer.MIN_VALUE, 129, 200, Integer.MAX_VALUE }) {
+            try(RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.seek(8); // after MAGIC and the level checksum
+                out.writeInt(count);
+            }
+            try {
+                WorldSnapshot.load(file);
+                fail("loaded a checkpoint of " + count + " pickups");
+            } catch(IOException expected) {
+                // refused, not a NegativeArraySizeException or an EOFException halfway
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("not-a-checkpoint");
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x12345678);
+            out.writeInt(16);
+        }
+        WorldSnapshot.load(file);
+    }
+}